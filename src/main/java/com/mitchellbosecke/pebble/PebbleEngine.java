@@ -10,7 +10,18 @@ package com.mitchellbosecke.pebble;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CharStreams;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.mitchellbosecke.pebble.cache.BaseTagCacheKey;
+import com.mitchellbosecke.pebble.cache.FragmentStore;
+import com.mitchellbosecke.pebble.cache.OffHeapTagCache;
+import com.mitchellbosecke.pebble.cache.TagCacheWeigher;
+import com.mitchellbosecke.pebble.cache.TemplateDependencyGraph;
+import com.mitchellbosecke.pebble.cache.TemplateWeigher;
+import com.mitchellbosecke.pebble.cache.TieredTagCache;
+import com.mitchellbosecke.pebble.cache.TinyLfuCache;
 import com.mitchellbosecke.pebble.error.LoaderException;
 import com.mitchellbosecke.pebble.error.PebbleException;
 import com.mitchellbosecke.pebble.extension.Extension;
@@ -22,25 +33,40 @@ import com.mitchellbosecke.pebble.extension.escaper.EscapingStrategy;
 import com.mitchellbosecke.pebble.extension.i18n.I18nExtension;
 import com.mitchellbosecke.pebble.lexer.LexerImpl;
 import com.mitchellbosecke.pebble.lexer.Syntax;
+import com.mitchellbosecke.pebble.lexer.Token;
 import com.mitchellbosecke.pebble.lexer.TokenStream;
+import com.mitchellbosecke.pebble.loader.BulkLoader;
 import com.mitchellbosecke.pebble.loader.ClasspathLoader;
 import com.mitchellbosecke.pebble.loader.DelegatingLoader;
 import com.mitchellbosecke.pebble.loader.FileLoader;
 import com.mitchellbosecke.pebble.loader.Loader;
+import com.mitchellbosecke.pebble.loader.MetadataLoader;
+import com.mitchellbosecke.pebble.loader.ObservableLoader;
+import com.mitchellbosecke.pebble.loader.TemplateMetadata;
 import com.mitchellbosecke.pebble.node.RootNode;
 import com.mitchellbosecke.pebble.parser.Parser;
 import com.mitchellbosecke.pebble.parser.ParserImpl;
 import com.mitchellbosecke.pebble.template.PebbleTemplate;
 import com.mitchellbosecke.pebble.template.PebbleTemplateImpl;
+import com.mitchellbosecke.pebble.template.TemplateHandle;
+import com.mitchellbosecke.pebble.template.TemplateRepository;
+import com.mitchellbosecke.pebble.utils.TemplateContentReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The main class used for compiling templates. The PebbleEngine is responsible
@@ -51,6 +77,24 @@ import java.util.concurrent.ExecutorService;
  */
 public class PebbleEngine {
 
+    /**
+     * A rough estimate of the memory retained by a single node of the AST, in bytes.
+     */
+    private static final int ESTIMATED_NODE_SIZE = 64;
+
+    /**
+     * A rough estimate of the memory retained by a template sharing its AST
+     * with another one, in bytes.
+     */
+    private static final int ESTIMATED_SHARED_TEMPLATE_SIZE = 4 * ESTIMATED_NODE_SIZE;
+
+    /**
+     * The maximum number of sources fetched ahead of their compilation.
+     */
+    private static final int MAXIMUM_FETCHED_SOURCES = 1024;
+
+    private static final Logger logger = LoggerFactory.getLogger(PebbleEngine.class);
+
     private final Loader<?> loader;
 
     private final Syntax syntax;
@@ -61,12 +105,50 @@ public class PebbleEngine {
 
     private final Cache<BaseTagCacheKey, Object> tagCache;
 
+    private final Cache<Object, String> macroCache;
+
     private final ExecutorService executorService;
 
+    private final ExecutorService prefetchExecutor;
+
+    private final ExecutorService asyncExecutor;
+
+    private final boolean parallelIncludes;
+
     private final Cache<Object, PebbleTemplate> templateCache;
 
+    private final boolean cacheActive;
+
     private final ExtensionRegistry extensionRegistry;
 
+    private final TemplateCompilationService compilationService;
+
+    /**
+     * The compiled templates whose AST is shared with the templates of other
+     * names, or of other engines, compiled from the same content.
+     */
+    private final TemplateRepository templateRepository;
+
+    /**
+     * The sources fetched in a batch for templates which are about to be
+     * compiled. A source is removed once it is compiled and expires if it is
+     * not compiled soon.
+     */
+    private final Cache<Object, FetchedSource> fetchedSources = CacheBuilder.newBuilder()
+            .maximumSize(MAXIMUM_FETCHED_SOURCES).expireAfterWrite(1, TimeUnit.MINUTES).build();
+
+    /**
+     * Advanced whenever cached templates are invalidated or replaced, which
+     * makes the templates linked to one another look them up again.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * How often the source of a cached template is compared with the one it
+     * was compiled from, in nanoseconds; negative to never compare them.
+     */
+    private final long revalidationInterval;
+
     /**
      * Constructor for the Pebble Engine given an instantiated Loader. This
      * method does only load those userProvidedExtensions listed here.
@@ -77,16 +159,38 @@ public class PebbleEngine {
      */
     private PebbleEngine(Loader<?> loader, Syntax syntax, boolean strictVariables, Locale defaultLocale,
                          Cache<BaseTagCacheKey, Object> tagCache, Cache<Object, PebbleTemplate> templateCache,
-                         ExecutorService executorService, Collection<? extends Extension> extensions) {
+                         Cache<Object, String> macroCache, ExecutorService executorService,
+                         ExecutorService prefetchExecutor, ExecutorService asyncExecutor,
+                         boolean parallelIncludes, long revalidationInterval,
+                         TemplateRepository templateRepository, boolean cacheActive,
+                         Collection<? extends Extension> extensions) {
 
         this.loader = loader;
         this.syntax = syntax;
         this.strictVariables = strictVariables;
         this.defaultLocale = defaultLocale;
         this.tagCache = tagCache;
+        this.macroCache = macroCache;
         this.executorService = executorService;
+        this.prefetchExecutor = prefetchExecutor;
+        this.asyncExecutor = asyncExecutor;
+        this.parallelIncludes = parallelIncludes;
+        this.revalidationInterval = revalidationInterval;
+        this.templateRepository = templateRepository;
         this.templateCache = templateCache;
+        this.cacheActive = cacheActive;
         this.extensionRegistry = new ExtensionRegistry(extensions);
+        this.compilationService = new TemplateCompilationService(this);
+
+        // the dependencies of evicted templates no longer have to be tracked
+        if (templateCache instanceof TinyLfuCache) {
+            ((TinyLfuCache<Object, PebbleTemplate>) templateCache).addRemovalListener(compilationService);
+        }
+
+        // a listener registered with a loader which does not watch would only keep this engine reachable
+        if (loader instanceof ObservableLoader && ((ObservableLoader) loader).isWatchingChanges()) {
+            ((ObservableLoader) loader).addChangeListener(new TemplateReloader(compilationService));
+        }
     }
 
     /**
@@ -111,49 +215,313 @@ public class PebbleEngine {
             throw new LoaderException(null, "Loader has not yet been specified.");
         }
 
-        final PebbleEngine self = this;
-        PebbleTemplate result;
+        return compilationService.getTemplate(templateName, this.loader.createCacheKey(templateName));
+    }
+
+    /**
+     * Loads, parses and compiles a template without consulting or populating
+     * the template cache.
+     * <p>
+     * If a template with the same content has been compiled before, by this
+     * engine or another one sharing the template repository, and is still in
+     * use, the new template shares its AST instead of parsing the content
+     * again. Runtime errors which name the template may then name the
+     * template the AST was parsed for.
+     *
+     * @param templateName The name of the template
+     * @param cacheKey     The cache key created by the loader for the template
+     * @return The compiled template
+     * @throws PebbleException Thrown if an error occurs while loading or parsing the template
+     */
+    PebbleTemplateImpl compile(String templateName, Object cacheKey) throws PebbleException {
+        LexerImpl lexer = new LexerImpl(syntax, extensionRegistry.getUnaryOperators().values(),
+                extensionRegistry.getBinaryOperators().values());
+
+        FetchedSource fetched = fetchedSources.asMap().remove(cacheKey);
+        if (fetched == null) {
+            // the metadata is read first so that a change while the template is read is noticed later on
+            long validated = System.nanoTime();
+            TemplateMetadata metadata = readMetadata(cacheKey);
+            fetched = new FetchedSource(this.retrieveReaderFromLoader(this.loader, cacheKey), metadata, validated);
+        }
+        TemplateMetadata metadata = fetched.metadata;
+        long validated = fetched.validated;
+        Reader templateReader = fetched.reader;
+        TokenStream tokenStream = lexer.tokenize(templateReader, templateName);
+        String contentHash = hash(tokenStream);
+
+        PebbleTemplateImpl shared = templateRepository.get(extensionRegistry.getFingerprint(), contentHash);
+        if (shared != null) {
+            PebbleTemplateImpl instance = new PebbleTemplateImpl(this, shared, templateName);
+            instance.setEstimatedSize(ESTIMATED_SHARED_TEMPLATE_SIZE);
+            instance.setMetadata(metadata);
+            instance.setLastValidated(validated);
+            return instance;
+        }
 
+        Parser parser = new ParserImpl(extensionRegistry.getUnaryOperators(),
+                extensionRegistry.getBinaryOperators(), extensionRegistry.getTokenParsers());
+        RootNode root = parser.parse(tokenStream);
+
+        PebbleTemplateImpl instance = new PebbleTemplateImpl(this, root, templateName);
+        instance.setEstimatedSize(estimateSize(tokenStream));
+        instance.setContentHash(contentHash);
+        instance.setMetadata(metadata);
+        instance.setLastValidated(validated);
+
+        for (NodeVisitorFactory visitorFactory : extensionRegistry.getNodeVisitors()) {
+            visitorFactory.createVisitor(instance).visit(root);
+        }
+
+        templateRepository.put(extensionRegistry.getFingerprint(), instance);
+        return instance;
+    }
+
+    /**
+     * Compiles a template, unless it is cached already, and returns a handle
+     * to it which is meant to be kept and evaluated repeatedly. Evaluating the
+     * handle uses the compiled template directly instead of looking it up in
+     * the template cache, yet picks up the template once it is recompiled.
+     *
+     * @param templateName The name of the template
+     * @return The handle of the template
+     * @throws PebbleException Thrown if the template can not be compiled
+     */
+    public TemplateHandle handle(String templateName) throws PebbleException {
+        if (templateName == null) {
+            throw new IllegalArgumentException("The template name can not be null");
+        }
+        if (this.loader == null) {
+            throw new LoaderException(null, "Loader has not yet been specified.");
+        }
+        return new TemplateHandle(this, templateName);
+    }
+
+    /**
+     * Fetches the sources of the given templates from the loader in a single
+     * batch, if the loader is a {@link BulkLoader}, so that they are at hand
+     * once the templates are compiled. Templates which are cached or fetched
+     * already are left out.
+     *
+     * @param templateNames The names of the templates
+     */
+    void fetchSources(Collection<String> templateNames) {
+        if (!(loader instanceof BulkLoader) || templateNames.isEmpty()) {
+            return;
+        }
+        Set<Object> cacheKeys = new LinkedHashSet<>();
+        for (String templateName : templateNames) {
+            Object cacheKey = loader.createCacheKey(templateName);
+            if (templateCache.getIfPresent(cacheKey) == null && fetchedSources.getIfPresent(cacheKey) == null) {
+                cacheKeys.add(cacheKey);
+            }
+        }
+        if (cacheKeys.isEmpty()) {
+            return;
+        }
         try {
-            final Object cacheKey = this.loader.createCacheKey(templateName);
+            // the metadata is read first so that a change while the templates are read is noticed later on
+            long validated = System.nanoTime();
+            Map<Object, TemplateMetadata> metadata = new HashMap<>();
+            for (Object cacheKey : cacheKeys) {
+                metadata.put(cacheKey, readMetadata(cacheKey));
+            }
+            for (Map.Entry<?, Reader> source : retrieveReadersFromLoader(loader, cacheKeys).entrySet()) {
+                Object cacheKey = source.getKey();
+                fetchedSources.put(cacheKey, new FetchedSource(readFully(source.getValue()), metadata.get(cacheKey),
+                        validated));
+            }
+        } catch (LoaderException | IOException | RuntimeException e) {
+            // the templates are loaded one by one instead
+            logger.debug("Could not fetch the templates {}", templateNames, e);
+        }
+    }
 
-            result = templateCache.get(cacheKey, new Callable<PebbleTemplate>() {
+    /**
+     * Reads the metadata of a template if the engine revalidates templates.
+     * It has to be read before the template itself.
+     */
+    private TemplateMetadata readMetadata(Object cacheKey) {
+        if (revalidationInterval < 0) {
+            return null;
+        }
+        try {
+            return retrieveMetadataFromLoader(this.loader, cacheKey);
+        } catch (LoaderException e) {
+            // reading the template reports the problem
+            return null;
+        }
+    }
 
-                public PebbleTemplateImpl call() throws Exception {
+    /**
+     * Reads the content of a fetched template, which may stay in memory for a
+     * while, so that the reader can be closed right away.
+     */
+    private static Reader readFully(Reader reader) throws IOException {
+        if (reader instanceof TemplateContentReader) {
+            return reader;
+        }
+        try {
+            char[] content = CharStreams.toString(reader).toCharArray();
+            return new TemplateContentReader(content);
+        } finally {
+            reader.close();
+        }
+    }
 
-                    LexerImpl lexer = new LexerImpl(syntax, extensionRegistry.getUnaryOperators().values(),
-                            extensionRegistry.getBinaryOperators().values());
-                    Reader templateReader = self.retrieveReaderFromLoader(self.loader, cacheKey);
-                    TokenStream tokenStream = lexer.tokenize(templateReader, templateName);
+    /**
+     * Evicts a template from the template cache along with every template
+     * which depends on it, directly or indirectly, by referencing it with a
+     * string literal through the "extends", "include" or "import" tags. All
+     * other templates stay cached.
+     * <p>
+     * This should be called after the source of a template has changed.
+     *
+     * @param templateName The name of the changed template
+     * @return The names of all of the evicted templates
+     */
+    public Set<String> invalidate(String templateName) {
+        Set<String> invalidated = compilationService.invalidate(templateName);
+        fetchedSources.invalidate(loader.createCacheKey(templateName));
 
-                    Parser parser = new ParserImpl(extensionRegistry.getUnaryOperators(),
-                            extensionRegistry.getBinaryOperators(), extensionRegistry.getTokenParsers());
-                    RootNode root = parser.parse(tokenStream);
+        // only once the templates are evicted, or a link could be renewed with an evicted template
+        advanceGeneration();
 
-                    PebbleTemplateImpl instance = new PebbleTemplateImpl(self, root, templateName);
+        // the template may have been added to or removed from one of the delegates
+        if (loader instanceof DelegatingLoader) {
+            ((DelegatingLoader) loader).invalidate(templateName);
+        }
+        return invalidated;
+    }
 
-                    for (NodeVisitorFactory visitorFactory : extensionRegistry.getNodeVisitors()) {
-                        visitorFactory.createVisitor(instance).visit(root);
-                    }
+    /**
+     * Estimates the memory retained by the compiled template from its tokens:
+     * roughly one node per token plus the characters of the text and literals.
+     */
+    private static long estimateSize(TokenStream tokenStream) {
+        long size = 0;
+        for (Token token : tokenStream.getTokens()) {
+            size += ESTIMATED_NODE_SIZE;
+            if (token.getValue() != null) {
+                size += 2L * token.getValue().length();
+            }
+        }
+        return size;
+    }
 
-                    return instance;
-                }
-            });
-        } catch (ExecutionException e) {
-            /*
-             * The execution exception is probably caused by a PebbleException
-             * being thrown in the above Callable. We will unravel it and throw
-             * the original PebbleException which is more helpful to the end
-             * user.
-             */
-            if (e.getCause() != null && e.getCause() instanceof PebbleException) {
-                throw (PebbleException) e.getCause();
-            } else {
-                throw new PebbleException(e, String.format("An error occurred while compiling %s", templateName));
+    /**
+     * Hashes the tokens of a template, along with their line numbers, which
+     * captures every change of the template that matters once it is compiled.
+     */
+    private static String hash(TokenStream tokenStream) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (Token token : tokenStream.getTokens()) {
+            hasher.putInt(token.getType().ordinal());
+            hasher.putInt(token.getLineNumber());
+            String value = token.getValue();
+            hasher.putInt(value == null ? -1 : value.length());
+            if (value != null) {
+                hasher.putUnencodedChars(value);
             }
         }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Compiles the given templates concurrently and stores them in the template
+     * cache. The templates they reference with a string literal through the
+     * "extends", "include" and "import" tags are discovered and compiled as well.
+     * <p>
+     * The returned future completes once every template has been attempted;
+     * compilation failures are recorded in the report instead of failing the
+     * future.
+     *
+     * @param templateNames   The names of the templates to compile
+     * @param executorService The executor service used to compile the templates
+     * @return A future which is completed with the report of the preloading
+     */
+    public ListenableFuture<PreloadReport> preload(Collection<String> templateNames, ExecutorService executorService) {
+        fetchSources(templateNames);
+        return new TemplatePreloader(compilationService, executorService).preload(templateNames);
+    }
+
+    /**
+     * Returns whether or not the source of a cached template has changed since
+     * it was compiled. The source is only asked for its metadata once the
+     * revalidation interval has passed since it was last asked.
+     *
+     * @param template The cached template
+     * @param cacheKey The cache key created by the loader for the template
+     * @return Whether or not the template has to be compiled again
+     */
+    public boolean isOutdated(PebbleTemplate template, Object cacheKey) {
+        if (revalidationInterval < 0 || !(template instanceof PebbleTemplateImpl)) {
+            return false;
+        }
+        PebbleTemplateImpl instance = (PebbleTemplateImpl) template;
+        TemplateMetadata metadata = instance.getMetadata();
+        long now = System.nanoTime();
+        if (metadata == null || now - instance.getLastValidated() < revalidationInterval) {
+            return false;
+        }
+        instance.setLastValidated(now);
+        try {
+            TemplateMetadata current = retrieveMetadataFromLoader(this.loader, cacheKey);
+            return current != null && !current.equals(metadata);
+        } catch (LoaderException e) {
+            // the template is gone, compiling it again reports the problem
+            return true;
+        }
+    }
+
+    /**
+     * Returns the generation of the cached templates, which changes whenever
+     * templates are invalidated or replaced. A compiled template linked to
+     * another one, or pinned by a {@link TemplateHandle}, is only used for as
+     * long as the generation stays the same.
+     *
+     * @return The generation
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Returns whether or not compiled templates are cached at all.
+     */
+    boolean isCacheActive() {
+        return cacheActive;
+    }
+
+    void advanceGeneration() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Fetches the metadata of a template from the loader if it provides any.
+     */
+    private <T> TemplateMetadata retrieveMetadataFromLoader(Loader<T> loader, Object cacheKey)
+            throws LoaderException {
+        if (!(loader instanceof MetadataLoader)) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        MetadataLoader<T> metadataLoader = (MetadataLoader<T>) loader;
+        @SuppressWarnings("unchecked")
+        T casted = (T) cacheKey;
+        return metadataLoader.getMetadata(casted);
+    }
 
-        return result;
+    /**
+     * Fetches the readers of several templates from a bulk loader.
+     */
+    private <T> Map<T, Reader> retrieveReadersFromLoader(Loader<T> loader, Collection<Object> cacheKeys)
+            throws LoaderException {
+        @SuppressWarnings("unchecked")
+        BulkLoader<T> bulkLoader = (BulkLoader<T>) loader;
+        @SuppressWarnings("unchecked")
+        Collection<T> casted = (Collection<T>) cacheKeys;
+        return bulkLoader.getReaders(casted);
     }
 
     /**
@@ -191,6 +559,16 @@ public class PebbleEngine {
         return templateCache;
     }
 
+    /**
+     * Returns the graph of the static dependencies between the templates
+     * compiled by this engine.
+     *
+     * @return The dependency graph
+     */
+    public TemplateDependencyGraph getDependencyGraph() {
+        return compilationService.getDependencyGraph();
+    }
+
     /**
      * Returns the strict variables setting
      *
@@ -218,6 +596,37 @@ public class PebbleEngine {
         return executorService;
     }
 
+    /**
+     * Returns the executor service on which templates are evaluated by
+     * {@link PebbleTemplate#evaluateAsync(java.util.Map, Locale)} and
+     * {@link PebbleTemplate#evaluatePublisher(java.util.Map, Locale)}.
+     *
+     * @return The async executor service, or null if none was provided
+     */
+    public ExecutorService getAsyncExecutor() {
+        return asyncExecutor;
+    }
+
+    /**
+     * Returns the executor service on which the templates referenced by a
+     * newly compiled template are compiled ahead of time.
+     *
+     * @return The prefetch executor service, or null if templates are not prefetched
+     */
+    public ExecutorService getPrefetchExecutor() {
+        return prefetchExecutor;
+    }
+
+    /**
+     * Returns whether or not included templates without side effects are
+     * evaluated concurrently when an executor service is available.
+     *
+     * @return The parallel includes setting
+     */
+    public boolean isParallelIncludes() {
+        return parallelIncludes;
+    }
+
     /**
      * Returns the syntax which is used by this PebbleEngine.
      *
@@ -245,11 +654,53 @@ public class PebbleEngine {
         return this.tagCache;
     }
 
+    /**
+     * Returns the cache of the output of pure macros
+     *
+     * @return The macro cache
+     */
+    public Cache<Object, String> getMacroCache() {
+        return this.macroCache;
+    }
+
+    /**
+     * The source of a template read ahead of its compilation.
+     */
+    private static class FetchedSource {
+
+        private final Reader reader;
+
+        private final TemplateMetadata metadata;
+
+        private final long validated;
+
+        private FetchedSource(Reader reader, TemplateMetadata metadata, long validated) {
+            this.reader = reader;
+            this.metadata = metadata;
+            this.validated = validated;
+        }
+    }
+
     /**
      * A builder to configure and construct an instance of a PebbleEngine.
      */
     public static class Builder {
 
+        /**
+         * The maximum estimated size, in bytes, of the templates kept by the default template cache.
+         */
+        public static final long DEFAULT_TEMPLATE_CACHE_WEIGHT = 16 * 1024 * 1024;
+
+        /**
+         * The maximum estimated size, in bytes, of the fragments kept by the default tag cache.
+         */
+        public static final long DEFAULT_TAG_CACHE_WEIGHT = 4 * 1024 * 1024;
+
+        /**
+         * The maximum number of macro calls whose output is kept by the default macro cache.
+         */
+        public static final long DEFAULT_MACRO_CACHE_SIZE = 10000;
+
         private Loader<?> loader;
 
         private List<Extension> userProvidedExtensions = new ArrayList<>();
@@ -264,12 +715,26 @@ public class PebbleEngine {
 
         private ExecutorService executorService;
 
+        private ExecutorService prefetchExecutor;
+
+        private ExecutorService asyncExecutor;
+
+        private boolean parallelIncludes = false;
+
         private Cache<Object, PebbleTemplate> templateCache;
 
         private boolean cacheActive = true;
 
         private Cache<BaseTagCacheKey, Object> tagCache;
 
+        private FragmentStore fragmentStore;
+
+        private Cache<Object, String> macroCache;
+
+        private long revalidationInterval = -1;
+
+        private TemplateRepository templateRepository;
+
         private EscaperExtension escaperExtension = new EscaperExtension();
 
         /**
@@ -383,8 +848,126 @@ public class PebbleEngine {
             return this;
         }
 
+        /**
+         * Sets the repository of compiled templates whose AST is shared with
+         * the templates compiled from the same content. Engines given the same
+         * repository share the ASTs of their templates if their extensions are
+         * the same, while the global variables, the locale, the executor
+         * service and the caches stay specific to each engine.
+         * <p>
+         * By default each engine has a repository of its own.
+         *
+         * @param templateRepository The template repository
+         * @return This builder object
+         */
+        public Builder templateRepository(TemplateRepository templateRepository) {
+            this.templateRepository = templateRepository;
+            return this;
+        }
+
+        /**
+         * Sets the executor service on which templates are evaluated by
+         * <code>evaluateAsync</code> and <code>evaluatePublisher</code>.
+         * <p>
+         * It should not be the executor service set through
+         * {@link #executorService(ExecutorService)}: an evaluation waits for the
+         * "parallel" tags and includes it runs on that one, so sharing a bounded
+         * executor can starve it. Without an async executor, the futures returned
+         * by <code>evaluateAsync</code> and the subscriptions of
+         * <code>evaluatePublisher</code> fail with an IllegalStateException.
+         *
+         * @param asyncExecutor The executor service evaluating templates asynchronously
+         * @return This builder object
+         */
+        public Builder asyncExecutor(ExecutorService asyncExecutor) {
+            this.asyncExecutor = asyncExecutor;
+            return this;
+        }
+
+        /**
+         * Sets an executor service on which the templates referenced with a
+         * string literal through the "extends", "include" and "import" tags are
+         * compiled as soon as the template referencing them has been compiled,
+         * so that they are usually cached by the time the rendering needs them.
+         * <p>
+         * By default templates are only compiled when they are needed. Nothing
+         * is prefetched if the caches are disabled.
+         *
+         * @param prefetchExecutor The executor service compiling the referenced templates
+         * @return This builder object
+         */
+        public Builder prefetchExecutor(ExecutorService prefetchExecutor) {
+            this.prefetchExecutor = prefetchExecutor;
+            return this;
+        }
+
+        /**
+         * Sets a second level store for the output of the "cache" tag, such as a
+         * {@link com.mitchellbosecke.pebble.cache.MappedFragmentStore}, which is
+         * consulted whenever a fragment is missing from the tag cache. The stored
+         * fragments are versioned by the content of the template which rendered them.
+         *
+         * @param fragmentStore The fragment store
+         * @return This builder object
+         */
+        public Builder fragmentStore(FragmentStore fragmentStore) {
+            this.fragmentStore = fragmentStore;
+            return this;
+        }
+
+        /**
+         * Makes the engine check whether the source of a cached template has
+         * changed when the template is requested, at most once per interval
+         * for each template, and compile it again if it has. The check compares
+         * the metadata provided by a {@link MetadataLoader}, such as the time of
+         * the last modification of a file, instead of reading the template.
+         * Templates depending on a changed template are evicted as well.
+         * <p>
+         * By default cached templates are never checked.
+         *
+         * @param interval The minimum amount of time between two checks of a template, 0 to check every time
+         * @param unit     The unit of the interval
+         * @return This builder object
+         */
+        public Builder revalidationInterval(long interval, TimeUnit unit) {
+            if (interval < 0) {
+                throw new IllegalArgumentException("The revalidation interval can not be negative");
+            }
+            this.revalidationInterval = unit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * Changes the <code>parallelIncludes</code> setting of the PebbleEngine.
+         * The default value of this setting is "false".
+         * <p>
+         * If an executor service is provided, an "include" tag is evaluated concurrently
+         * with the rest of the template, as if it was wrapped in a "parallel" tag, when the
+         * included template (and every template it includes) neither sets variables outside of
+         * macros, imports or extends other templates, nor uses tags from user extensions.
+         * As with the "parallel" tag, the variables provided to the template must be thread safe,
+         * and state kept in thread locals of the rendering thread is not visible within the
+         * included templates.
+         *
+         * @param parallelIncludes Whether or not includes without side effects are evaluated concurrently
+         * @return This builder object
+         */
+        public Builder parallelIncludes(boolean parallelIncludes) {
+            this.parallelIncludes = parallelIncludes;
+            return this;
+        }
+
         /**
          * Sets the cache used by the engine to store compiled PebbleTemplate instances.
+         * <p>
+         * By default, a {@link TinyLfuCache} is used which keeps templates with an estimated
+         * total size of up to {@link #DEFAULT_TEMPLATE_CACHE_WEIGHT} bytes and favors the most
+         * frequently used ones. Its statistics are available through
+         * {@link PebbleEngine#getTemplateCache()}.
+         * <p>
+         * The engine tracks which cached templates reference which other templates. With a
+         * {@link TinyLfuCache} the templates it evicts are forgotten; with any other cache
+         * they are only forgotten once they are invalidated.
          *
          * @param templateCache The template cache
          * @return This builder object
@@ -396,6 +979,10 @@ public class PebbleEngine {
 
         /**
          * Sets the cache used by the "cache" tag.
+         * <p>
+         * By default, the fragments are weighed by their size with a {@link TagCacheWeigher}
+         * and up to {@link #DEFAULT_TAG_CACHE_WEIGHT} bytes are kept. An {@link OffHeapTagCache}
+         * keeps large fragments out of the Java heap.
          *
          * @param tagCache The tag cache
          * @return This builder object
@@ -405,6 +992,25 @@ public class PebbleEngine {
             return this;
         }
 
+        /**
+         * Sets the cache of the output of macros which only depend on their
+         * arguments, keyed by the content hash of the template declaring the
+         * macro, the name of the macro, the locale and the argument values; it
+         * holds no reference to the templates themselves, and should not be
+         * shared by engines with different extensions. Only calls whose
+         * arguments are all strings, numbers, booleans, characters or enums are
+         * cached.
+         * <p>
+         * By default, the output of up to {@link #DEFAULT_MACRO_CACHE_SIZE} calls is kept.
+         *
+         * @param macroCache The macro cache
+         * @return This builder object
+         */
+        public Builder macroCache(Cache<Object, String> macroCache) {
+            this.macroCache = macroCache;
+            return this;
+        }
+
         /**
          * Sets whether or not escaping should be performed automatically.
          *
@@ -479,18 +1085,36 @@ public class PebbleEngine {
             }
 
 
+            ExecutorService prefetchExecutor = this.prefetchExecutor;
             if (cacheActive) {
                 // default caches
                 if (templateCache == null) {
-                    templateCache = CacheBuilder.newBuilder().maximumSize(200).build();
+                    templateCache = new TinyLfuCache<>(DEFAULT_TEMPLATE_CACHE_WEIGHT, new TemplateWeigher(), 1024);
                 }
 
                 if (tagCache == null) {
-                    tagCache = CacheBuilder.newBuilder().maximumSize(200).build();
+                    tagCache = CacheBuilder.newBuilder().maximumWeight(DEFAULT_TAG_CACHE_WEIGHT)
+                            .weigher(new TagCacheWeigher()).build();
+                }
+
+                if (fragmentStore != null) {
+                    tagCache = new TieredTagCache(tagCache, fragmentStore);
+                }
+
+                if (macroCache == null) {
+                    macroCache = CacheBuilder.newBuilder().maximumSize(DEFAULT_MACRO_CACHE_SIZE).build();
                 }
             } else {
+                // prefetched templates would be discarded right away
+                prefetchExecutor = null;
+
                 templateCache = CacheBuilder.newBuilder().maximumSize(0).build();
                 tagCache = CacheBuilder.newBuilder().maximumSize(0).build();
+                macroCache = CacheBuilder.newBuilder().maximumSize(0).build();
+            }
+
+            if (templateRepository == null) {
+                templateRepository = new TemplateRepository();
             }
 
             if(syntax == null) {
@@ -498,7 +1122,8 @@ public class PebbleEngine {
             }
 
             return new PebbleEngine(loader, syntax, strictVariables, defaultLocale, tagCache, templateCache,
-                    executorService, extensions);
+                    macroCache, executorService, prefetchExecutor, asyncExecutor, parallelIncludes, revalidationInterval,
+                    templateRepository, cacheActive, extensions);
         }
     }
 }
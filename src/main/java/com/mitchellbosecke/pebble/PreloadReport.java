@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of {@link PebbleEngine#preload(java.util.Collection, java.util.concurrent.ExecutorService)}.
+ * It lists every template that was compiled, including the templates that
+ * were discovered through "extends", "include" and "import" tags, along with
+ * the time it took to obtain them and the failures that occurred.
+ *
+ * @author mbosecke
+ */
+public class PreloadReport {
+
+    private final Map<String, Long> compilationTimes;
+
+    private final Map<String, Throwable> failures;
+
+    private final long elapsedNanos;
+
+    public PreloadReport(Map<String, Long> compilationTimes, Map<String, Throwable> failures, long elapsedNanos) {
+        this.compilationTimes = Collections.unmodifiableMap(new LinkedHashMap<>(compilationTimes));
+        this.failures = Collections.unmodifiableMap(new LinkedHashMap<>(failures));
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Returns, for each successfully preloaded template, the time in nanoseconds
+     * between requesting it and it being available in the template cache.
+     * Templates which were already cached report the time of the cache lookup.
+     *
+     * @return The compilation time of each template, keyed by template name
+     */
+    public Map<String, Long> getCompilationTimes() {
+        return compilationTimes;
+    }
+
+    /**
+     * Returns the exceptions thrown while compiling templates.
+     *
+     * @return The failures, keyed by template name
+     */
+    public Map<String, Throwable> getFailures() {
+        return failures;
+    }
+
+    /**
+     * Returns whether or not at least one template failed to compile.
+     *
+     * @return Whether or not at least one template failed to compile
+     */
+    public boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+
+    /**
+     * Returns the wall-clock time it took to preload all of the templates.
+     *
+     * @param unit The desired time unit
+     * @return The elapsed time
+     */
+    public long getElapsedTime(TimeUnit unit) {
+        return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PreloadReport[compiled=%d, failed=%d, elapsed=%dms]", compilationTimes.size(),
+                failures.size(), getElapsedTime(TimeUnit.MILLISECONDS));
+    }
+}
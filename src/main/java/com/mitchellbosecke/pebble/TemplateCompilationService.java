@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble;
+
+import com.google.common.cache.Cache;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.mitchellbosecke.pebble.cache.CacheRemovalListener;
+import com.mitchellbosecke.pebble.cache.TemplateDependencyGraph;
+import com.mitchellbosecke.pebble.error.PebbleException;
+import com.mitchellbosecke.pebble.template.PebbleTemplate;
+import com.mitchellbosecke.pebble.template.PebbleTemplateImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Obtains compiled templates from the template cache and compiles the ones
+ * which are missing.
+ * <p>
+ * Concurrent requests for the same template share a single compilation. The
+ * compilation itself is performed without holding any lock, and a thread only
+ * ever waits for a compilation owned by another thread if that thread is not,
+ * directly or indirectly, waiting for one of its own compilations; otherwise
+ * a private copy of the template is compiled instead. Asynchronous requests
+ * never wait at all.
+ * <p>
+ * Every compilation records the static dependencies of the template in the
+ * dependency graph, fetches the templates it references in a single batch if
+ * the loader supports it and, if the engine has a prefetch executor, starts
+ * compiling them in the background. The templates it references which are
+ * compiled already are linked to it right away. A cached
+ * template whose source has changed is evicted, along with its dependents,
+ * and compiled again.
+ *
+ * @author mbosecke
+ */
+class TemplateCompilationService implements CacheRemovalListener<Object, PebbleTemplate> {
+
+    private static final Logger logger = LoggerFactory.getLogger(TemplateCompilationService.class);
+
+    private final PebbleEngine engine;
+
+    /**
+     * Compilations which are currently in progress, keyed by cache key.
+     */
+    private final ConcurrentMap<Object, Compilation> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * The cache key of the compilation each thread is currently waiting for.
+     */
+    private final ConcurrentMap<Thread, Object> awaiting = new ConcurrentHashMap<>();
+
+    private final TemplateDependencyGraph dependencyGraph = new TemplateDependencyGraph();
+
+    TemplateCompilationService(PebbleEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Returns the template from the cache, compiling it on the calling thread
+     * if no other thread is already doing so.
+     */
+    PebbleTemplate getTemplate(String templateName, Object cacheKey) throws PebbleException {
+        PebbleTemplate template = getCache().getIfPresent(cacheKey);
+        if (template != null) {
+            if (!engine.isOutdated(template, cacheKey)) {
+                return template;
+            }
+            engine.invalidate(templateName);
+        }
+
+        Compilation compilation = new Compilation();
+        Compilation existing = inFlight.putIfAbsent(cacheKey, compilation);
+        if (existing == null) {
+            return compile(templateName, cacheKey, compilation);
+        }
+        return await(templateName, cacheKey, existing);
+    }
+
+    /**
+     * Returns a future of the template. If the template is neither cached nor
+     * being compiled, it is compiled on the given executor service.
+     */
+    ListenableFuture<PebbleTemplate> getTemplateAsync(final String templateName, ExecutorService executorService) {
+        final Object cacheKey = engine.getLoader().createCacheKey(templateName);
+
+        PebbleTemplate template = getCache().getIfPresent(cacheKey);
+        if (template != null) {
+            if (!engine.isOutdated(template, cacheKey)) {
+                return Futures.immediateFuture(template);
+            }
+            engine.invalidate(templateName);
+        }
+        Compilation existing = inFlight.get(cacheKey);
+        if (existing != null) {
+            return existing.result;
+        }
+
+        final SettableFuture<PebbleTemplate> result = SettableFuture.create();
+        try {
+            executorService.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    Compilation compilation = new Compilation();
+                    Compilation existing = inFlight.putIfAbsent(cacheKey, compilation);
+                    if (existing != null) {
+                        propagate(existing.result, result);
+                        return;
+                    }
+                    try {
+                        result.set(compile(templateName, cacheKey, compilation));
+                    } catch (PebbleException | RuntimeException | Error e) {
+                        result.setException(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.setException(e);
+        }
+        return result;
+    }
+
+    /**
+     * Evicts a template and its transitive dependents from the cache.
+     */
+    Set<String> invalidate(String templateName) {
+        Set<String> invalidated = dependencyGraph.getTransitiveDependents(templateName);
+        for (String name : invalidated) {
+            getCache().invalidate(engine.getLoader().createCacheKey(name));
+
+            // the dependencies are recorded again once the template is recompiled
+            dependencyGraph.remove(name);
+        }
+        return invalidated;
+    }
+
+    /**
+     * Recompiles a cached template and replaces the cached version once the
+     * compilation has finished. If the template can no longer be compiled it
+     * is evicted, so that the error surfaces when it is requested again.
+     */
+    void reload(String templateName) {
+        Object cacheKey = engine.getLoader().createCacheKey(templateName);
+        if (getCache().getIfPresent(cacheKey) == null) {
+            return;
+        }
+        try {
+            PebbleTemplateImpl compiled = engine.compile(templateName, cacheKey);
+            record(templateName, compiled);
+            getCache().put(cacheKey, compiled);
+            compiled.link();
+        } catch (PebbleException | RuntimeException e) {
+            logger.warn("Could not recompile the changed template {}", templateName, e);
+            getCache().invalidate(cacheKey);
+            dependencyGraph.remove(templateName);
+        }
+        engine.advanceGeneration();
+    }
+
+    /**
+     * Records the dependencies of a template about to be cached; nothing is
+     * recorded if templates are not cached at all.
+     */
+    private void record(String templateName, PebbleTemplateImpl compiled) {
+        if (engine.isCacheActive()) {
+            dependencyGraph.record(templateName, compiled.getDependencies());
+        }
+    }
+
+    /**
+     * Forgets the dependencies of a template which has been evicted, unless
+     * it has been cached again in the meantime.
+     */
+    @Override
+    public void onRemoval(Object cacheKey, PebbleTemplate template) {
+        if (!getCache().asMap().containsKey(cacheKey)) {
+            dependencyGraph.remove(template.getName());
+        }
+    }
+
+    TemplateDependencyGraph getDependencyGraph() {
+        return dependencyGraph;
+    }
+
+    private PebbleTemplate compile(String templateName, Object cacheKey, Compilation compilation)
+            throws PebbleException {
+        try {
+            // another thread may have finished compiling in the meantime
+            PebbleTemplate template = getCache().getIfPresent(cacheKey);
+            if (template == null) {
+                PebbleTemplateImpl compiled = engine.compile(templateName, cacheKey);
+                record(templateName, compiled);
+                getCache().put(cacheKey, compiled);
+                compiled.link();
+                template = compiled;
+                engine.fetchSources(compiled.getDependencies());
+                prefetch(compiled);
+            }
+            compilation.result.set(template);
+            return template;
+        } catch (PebbleException | RuntimeException | Error e) {
+            compilation.result.setException(e);
+            throw e;
+        } finally {
+            inFlight.remove(cacheKey, compilation);
+        }
+    }
+
+    /**
+     * Starts compiling the templates a newly compiled template references on
+     * the prefetch executor, unless they are cached or being compiled
+     * already. Failures are left for the rendering to report.
+     */
+    private void prefetch(PebbleTemplateImpl template) {
+        ExecutorService prefetchExecutor = engine.getPrefetchExecutor();
+        if (prefetchExecutor == null) {
+            return;
+        }
+        for (String dependency : template.getDependencies()) {
+            try {
+                getTemplateAsync(dependency, prefetchExecutor);
+            } catch (RuntimeException e) {
+                logger.debug("Could not prefetch the template {}", dependency, e);
+            }
+        }
+    }
+
+    private PebbleTemplate await(String templateName, Object cacheKey, Compilation compilation)
+            throws PebbleException {
+        Thread current = Thread.currentThread();
+
+        /*
+         * Announce the wait before looking for a cycle so that, of two threads
+         * about to wait for each other, at least one of them notices.
+         */
+        awaiting.put(current, cacheKey);
+        try {
+            if (isWaitingFor(compilation, current)) {
+                return engine.compile(templateName, cacheKey);
+            }
+            return compilation.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PebbleException(e, String.format("Interrupted while waiting for the compilation of %s",
+                    templateName));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof PebbleException) {
+                throw (PebbleException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new PebbleException(e, String.format("An error occurred while compiling %s", templateName));
+        } finally {
+            awaiting.remove(current);
+        }
+    }
+
+    /**
+     * Follows the chain of compilation owners and the compilations they are
+     * waiting for and returns whether or not it leads back to the given thread.
+     */
+    private boolean isWaitingFor(Compilation compilation, Thread thread) {
+        Set<Thread> visited = new HashSet<>();
+        while (compilation != null) {
+            Thread owner = compilation.owner;
+            if (owner == thread) {
+                return true;
+            }
+            if (!visited.add(owner)) {
+                return false;
+            }
+            Object awaitedKey = awaiting.get(owner);
+            if (awaitedKey == null) {
+                return false;
+            }
+            compilation = inFlight.get(awaitedKey);
+        }
+        return false;
+    }
+
+    private static void propagate(ListenableFuture<PebbleTemplate> source, final SettableFuture<PebbleTemplate> target) {
+        Futures.addCallback(source, new FutureCallback<PebbleTemplate>() {
+
+            @Override
+            public void onSuccess(PebbleTemplate template) {
+                target.set(template);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                target.setException(t);
+            }
+        });
+    }
+
+    private Cache<Object, PebbleTemplate> getCache() {
+        return engine.getTemplateCache();
+    }
+
+    /**
+     * A compilation in progress, owned by the thread which created it.
+     */
+    private static class Compilation {
+
+        private final Thread owner = Thread.currentThread();
+
+        private final SettableFuture<PebbleTemplate> result = SettableFuture.create();
+    }
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.mitchellbosecke.pebble.template.PebbleTemplate;
+import com.mitchellbosecke.pebble.template.PebbleTemplateImpl;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles a set of templates, and the templates they statically depend on,
+ * concurrently. Each template is requested at most once per preload and the
+ * executor threads never wait for each other: a template which is already
+ * being compiled elsewhere is simply awaited asynchronously.
+ *
+ * @author mbosecke
+ */
+class TemplatePreloader {
+
+    private final TemplateCompilationService compilationService;
+
+    private final ExecutorService executorService;
+
+    private final Map<String, Boolean> seen = new ConcurrentHashMap<>();
+
+    private final Map<String, Long> compilationTimes = new ConcurrentHashMap<>();
+
+    private final Map<String, Throwable> failures = new ConcurrentHashMap<>();
+
+    /**
+     * The amount of submitted compilations which have not yet finished.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final SettableFuture<PreloadReport> report = SettableFuture.create();
+
+    private final long start = System.nanoTime();
+
+    TemplatePreloader(TemplateCompilationService compilationService, ExecutorService executorService) {
+        this.compilationService = compilationService;
+        this.executorService = executorService;
+    }
+
+    ListenableFuture<PreloadReport> preload(Collection<String> templateNames) {
+
+        // guard against completing before all of the roots have been submitted
+        pending.incrementAndGet();
+        for (String templateName : templateNames) {
+            submit(templateName);
+        }
+        finished();
+
+        return report;
+    }
+
+    private void submit(final String templateName) {
+        if (templateName == null || seen.put(templateName, Boolean.TRUE) != null) {
+            return;
+        }
+        pending.incrementAndGet();
+
+        final long compilationStart = System.nanoTime();
+        ListenableFuture<PebbleTemplate> template;
+        try {
+            template = compilationService.getTemplateAsync(templateName, executorService);
+        } catch (RuntimeException e) {
+            template = Futures.immediateFailedFuture(e);
+        }
+        Futures.addCallback(template, new FutureCallback<PebbleTemplate>() {
+
+            @Override
+            public void onSuccess(PebbleTemplate template) {
+                try {
+                    compilationTimes.put(templateName, System.nanoTime() - compilationStart);
+                    for (String dependency : ((PebbleTemplateImpl) template).getDependencies()) {
+                        submit(dependency);
+                    }
+                } finally {
+                    finished();
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                failures.put(templateName, t);
+                finished();
+            }
+        });
+    }
+
+    private void finished() {
+        if (pending.decrementAndGet() == 0) {
+            report.set(new PreloadReport(compilationTimes, failures, System.nanoTime() - start));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble;
+
+import com.mitchellbosecke.pebble.loader.TemplateChangeListener;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recompiles the templates which changed, along with the templates depending
+ * on them, on a background thread. The previously compiled templates stay in
+ * the cache, and keep being used, until their replacement is ready.
+ * <p>
+ * Templates which are not in the cache are left alone; they are compiled the
+ * next time they are requested.
+ * <p>
+ * The reloading thread is a daemon thread which only runs while there are
+ * templates to reload. The reloader is closed by the loader once it stops
+ * watching the templates for changes.
+ *
+ * @author mbosecke
+ */
+class TemplateReloader implements TemplateChangeListener, Closeable {
+
+    /**
+     * The time, in seconds, after which the idle reloading thread stops.
+     */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final TemplateCompilationService compilationService;
+
+    private final ThreadPoolExecutor executorService = new ThreadPoolExecutor(0, 1, KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "pebble-template-reloader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * The changed templates which are waiting to be reloaded; a template which
+     * changes several times in a row is only reloaded once.
+     */
+    private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    TemplateReloader(TemplateCompilationService compilationService) {
+        this.compilationService = compilationService;
+    }
+
+    @Override
+    public void templateChanged(final String templateName) {
+        if (executorService.isShutdown() || !pending.add(templateName)) {
+            return;
+        }
+        try {
+            executorService.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    pending.remove(templateName);
+                    for (String name : compilationService.getDependencyGraph().getTransitiveDependents(
+                            templateName)) {
+                        compilationService.reload(name);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the reloader has been closed in the meantime
+            pending.remove(templateName);
+        }
+    }
+
+    /**
+     * Stops reloading templates. The reloads which are under way are
+     * completed.
+     */
+    @Override
+    public void close() {
+        executorService.shutdown();
+    }
+
+    boolean isClosed() {
+        return executorService.isShutdown();
+    }
+}
@@ -45,6 +45,18 @@ public abstract class BaseTagCacheKey {
         return this.tagName;
     }
 
+    /**
+     * Returns a representation of this key which stays the same across
+     * restarts of the application, used to look up entries in a
+     * {@link FragmentStore}. Keys which can not be represented this way
+     * return null and are never stored.
+     *
+     * @return The persistent key or null
+     */
+    public String getPersistentKey() {
+        return null;
+    }
+
     /**
      * {@inheritDoc}
      *
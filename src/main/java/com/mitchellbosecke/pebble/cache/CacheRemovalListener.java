@@ -0,0 +1,30 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.cache;
+
+/**
+ * Notified of the entries removed from a {@link TinyLfuCache}, whether they
+ * were evicted or invalidated. Replacing the value of an entry is not a
+ * removal.
+ *
+ * @param <K> The type of the keys
+ * @param <V> The type of the values
+ * @author mbosecke
+ */
+public interface CacheRemovalListener<K, V> {
+
+    /**
+     * Called once an entry has been removed, without any lock of the cache
+     * being held.
+     *
+     * @param key   The key of the entry
+     * @param value The value of the entry
+     */
+    void onRemoval(K key, V value);
+}
@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.cache;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The output of a "cache" tag stored in the tag cache, along with the point
+ * in time, measured with {@link System#nanoTime()}, after which it expires.
+ * <p>
+ * An expired fragment may still be served for a while after it expired,
+ * while a single refresh of the fragment takes place in the background.
+ *
+ * @author mbosecke
+ */
+public class CachedFragment {
+
+    private final String content;
+
+    private final long expiresAtNanos;
+
+    private final boolean expiring;
+
+    private final long staleUntilNanos;
+
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+    /**
+     * Creates a fragment which never expires.
+     *
+     * @param content The rendered content
+     */
+    public CachedFragment(String content) {
+        this.content = content;
+        this.expiresAtNanos = 0;
+        this.expiring = false;
+        this.staleUntilNanos = 0;
+    }
+
+    /**
+     * Creates a fragment which expires after the given amount of time.
+     *
+     * @param content    The rendered content
+     * @param timeToLive The amount of time the content is valid for
+     * @param unit       The unit of the amount of time
+     */
+    public CachedFragment(String content, long timeToLive, TimeUnit unit) {
+        this(content, timeToLive, 0, unit);
+    }
+
+    /**
+     * Creates a fragment which expires after the given amount of time and may
+     * be served, while it is being refreshed, for some more time.
+     *
+     * @param content              The rendered content
+     * @param timeToLive           The amount of time the content is valid for
+     * @param staleWhileRevalidate The amount of time the content may be served after it expired
+     * @param unit                 The unit of the amounts of time
+     */
+    public CachedFragment(String content, long timeToLive, long staleWhileRevalidate, TimeUnit unit) {
+        this.content = content;
+        this.expiresAtNanos = System.nanoTime() + unit.toNanos(timeToLive);
+        this.expiring = true;
+        this.staleUntilNanos = expiresAtNanos + unit.toNanos(staleWhileRevalidate);
+    }
+
+    /**
+     * Creates a fragment with the expiry of another fragment, for fragments
+     * which store their content differently.
+     *
+     * @param expiry The fragment whose expiry is copied
+     */
+    protected CachedFragment(CachedFragment expiry) {
+        this.content = null;
+        this.expiresAtNanos = expiry.expiresAtNanos;
+        this.expiring = expiry.expiring;
+        this.staleUntilNanos = expiry.staleUntilNanos;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    /**
+     * Writes the content of this fragment.
+     *
+     * @param writer The writer to write the content to
+     * @return False if the content is no longer available, which may happen if the fragment has been evicted
+     * @throws IOException Thrown from the writer
+     */
+    public boolean writeTo(Writer writer) throws IOException {
+        writer.write(content);
+        return true;
+    }
+
+    /**
+     * Returns whether or not this fragment expires at all.
+     *
+     * @return Whether or not the fragment has a time to live
+     */
+    public boolean isExpiring() {
+        return expiring;
+    }
+
+    /**
+     * Returns the time left until this fragment expires, which is negative
+     * once it has expired.
+     *
+     * @param unit The unit of the returned amount of time
+     * @return The remaining time to live
+     */
+    public long getRemainingTimeToLive(TimeUnit unit) {
+        return unit.convert(expiresAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the amount of time this fragment may be served after it expired.
+     *
+     * @param unit The unit of the returned amount of time
+     * @return The stale time
+     */
+    public long getStaleWhileRevalidate(TimeUnit unit) {
+        return unit.convert(staleUntilNanos - expiresAtNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns whether or not the time to live of this fragment has passed.
+     *
+     * @return Whether or not the fragment is expired
+     */
+    public boolean isExpired() {
+        return expiring && System.nanoTime() - expiresAtNanos >= 0;
+    }
+
+    /**
+     * Returns whether or not this fragment has expired but may still be served
+     * while it is being refreshed.
+     *
+     * @return Whether or not the fragment is stale
+     */
+    public boolean isStale() {
+        return isExpired() && System.nanoTime() - staleUntilNanos < 0;
+    }
+
+    /**
+     * Claims the refresh of this fragment. Only the first caller succeeds
+     * until {@link #refreshFailed()} is called.
+     *
+     * @return Whether or not the caller is responsible for the refresh
+     */
+    public boolean startRefresh() {
+        return refreshing.compareAndSet(false, true);
+    }
+
+    /**
+     * Allows another refresh to be started after the current one failed.
+     */
+    public void refreshFailed() {
+        refreshing.set(false);
+    }
+}
@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.cache;
+
+/**
+ * A second level store for the output of the "cache" tag, consulted when a
+ * fragment is missing from the tag cache. Unlike the tag cache, a store may
+ * keep its fragments across restarts of the application.
+ * <p>
+ * Implementations must be thread safe.
+ *
+ * @author mbosecke
+ * @see BaseTagCacheKey#getPersistentKey()
+ */
+public interface FragmentStore {
+
+    /**
+     * Returns a fragment which has neither expired nor passed its stale time.
+     *
+     * @param key The persistent key of the fragment
+     * @return The fragment or null
+     */
+    CachedFragment get(String key);
+
+    /**
+     * Stores a fragment, replacing any fragment previously stored for the key.
+     *
+     * @param key      The persistent key of the fragment
+     * @param fragment The fragment
+     */
+    void put(String key, CachedFragment fragment);
+}
@@ -0,0 +1,333 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link FragmentStore} backed by a memory-mapped file of a fixed size, so
+ * that the fragments survive restarts of the application.
+ * <p>
+ * The file is split into segments which are filled one after the other with
+ * an append-only log of fragments. Once the last segment is full, the oldest
+ * segment is cleared and reused, evicting all of the fragments it contained.
+ * Every segment carries a generation number which is incremented whenever it
+ * is reused; a record only counts if it carries the generation of its segment
+ * and a valid CRC, so that neither the leftovers of a previous generation nor
+ * a partially written record are ever read back.
+ * <p>
+ * An index of the fragments is kept on the heap and rebuilt from the file
+ * when the store is opened. Later records replace earlier ones for the same
+ * key.
+ *
+ * @author mbosecke
+ */
+public class MappedFragmentStore implements FragmentStore, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedFragmentStore.class);
+
+    private static final int MAGIC = 0x50424c46;
+
+    private static final int VERSION = 1;
+
+    private static final int FILE_HEADER_SIZE = 16;
+
+    private static final int SEGMENT_HEADER_SIZE = 8;
+
+    /**
+     * record length, crc, generation, expiry, stale time, key length and value length
+     */
+    private static final int RECORD_OVERHEAD = 4 + 4 + 8 + 8 + 8 + 4 + 4;
+
+    private static final long NEVER = Long.MAX_VALUE;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final RandomAccessFile file;
+
+    private final MappedByteBuffer buffer;
+
+    private final int segmentCount;
+
+    private final int segmentSize;
+
+    private final long[] generations;
+
+    /**
+     * The location of every record, by key: the high half is the segment and the low half the offset.
+     */
+    private final Map<String, Long> index = new HashMap<>();
+
+    private int currentSegment;
+
+    private int writeOffset;
+
+    /**
+     * Opens the store, creating the file if it does not exist. If the file
+     * exists but was created with a different layout, its content is
+     * discarded.
+     *
+     * @param path         The file backing the store
+     * @param capacity     The size of the file in bytes, at most 2 GB
+     * @param segmentCount The number of segments the file is split into
+     * @throws IOException Thrown if the file can not be opened or mapped
+     */
+    public MappedFragmentStore(File path, long capacity, int segmentCount) throws IOException {
+        if (segmentCount < 2) {
+            throw new IllegalArgumentException("At least two segments are required");
+        }
+        if (capacity > Integer.MAX_VALUE || capacity < FILE_HEADER_SIZE + segmentCount * (long) (SEGMENT_HEADER_SIZE
+                + RECORD_OVERHEAD)) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        this.segmentCount = segmentCount;
+        this.segmentSize = (int) ((capacity - FILE_HEADER_SIZE) / segmentCount);
+        this.generations = new long[segmentCount];
+
+        this.file = new RandomAccessFile(path, "rw");
+        try {
+            file.setLength(capacity);
+            this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+
+        if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION && buffer.getInt(8) == segmentCount
+                && buffer.getInt(12) == segmentSize) {
+            recover();
+        } else {
+            format();
+        }
+    }
+
+    @Override
+    public synchronized CachedFragment get(String key) {
+        Long location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        ByteBuffer record = buffer.duplicate();
+        record.position(segmentStart((int) (location >>> 32)) + (int) (long) location + 16);
+        long expiresAt = record.getLong();
+        long stale = record.getLong();
+        int keyLength = record.getInt();
+        record.position(record.position() + keyLength);
+        int valueLength = record.getInt();
+        byte[] value = new byte[valueLength];
+        record.get(value);
+
+        String content = new String(value, UTF_8);
+        if (expiresAt == NEVER) {
+            return new CachedFragment(content);
+        }
+        long remaining = expiresAt - System.currentTimeMillis();
+        if (remaining + stale <= 0) {
+            index.remove(key);
+            return null;
+        }
+        return new CachedFragment(content, remaining, stale, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void put(String key, CachedFragment fragment) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        byte[] valueBytes = fragment.getContent().getBytes(UTF_8);
+        long recordSize = (long) RECORD_OVERHEAD + keyBytes.length + valueBytes.length;
+
+        // room is left for the end marker of the segment
+        if (recordSize + 4 > segmentSize - SEGMENT_HEADER_SIZE) {
+            logger.debug("Fragment {} is too large for the fragment store", key);
+            index.remove(key);
+            return;
+        }
+        if (writeOffset + recordSize + 4 > segmentSize) {
+            startSegment((currentSegment + 1) % segmentCount);
+        }
+
+        long expiresAt = NEVER;
+        long stale = 0;
+        if (fragment.isExpiring()) {
+            expiresAt = System.currentTimeMillis() + fragment.getRemainingTimeToLive(TimeUnit.MILLISECONDS);
+            stale = fragment.getStaleWhileRevalidate(TimeUnit.MILLISECONDS);
+        }
+
+        ByteBuffer record = ByteBuffer.allocate((int) recordSize - 8);
+        record.putLong(generations[currentSegment]);
+        record.putLong(expiresAt);
+        record.putLong(stale);
+        record.putInt(keyBytes.length);
+        record.put(keyBytes);
+        record.putInt(valueBytes.length);
+        record.put(valueBytes);
+        record.flip();
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.limit());
+
+        int position = segmentStart(currentSegment) + writeOffset;
+
+        // the end marker is written first so that the record is only valid once complete
+        buffer.putInt(position + (int) recordSize, 0);
+        buffer.putInt(position + 4, (int) crc.getValue());
+        ByteBuffer target = buffer.duplicate();
+        target.position(position + 8);
+        target.put(record);
+        buffer.putInt(position, (int) recordSize - 4);
+
+        index.put(key, ((long) currentSegment << 32) | writeOffset);
+        writeOffset += recordSize;
+    }
+
+    /**
+     * Returns the number of fragments in the store, including the expired
+     * ones which have not been evicted yet.
+     *
+     * @return The number of fragments
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Writes the changes to the file and closes it.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+
+    private void format() {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, segmentCount);
+        buffer.putInt(12, segmentSize);
+        for (int segment = 0; segment < segmentCount; segment++) {
+            generations[segment] = 0;
+            buffer.putLong(segmentStart(segment), 0);
+            buffer.putInt(segmentStart(segment) + SEGMENT_HEADER_SIZE, 0);
+        }
+        index.clear();
+        currentSegment = 0;
+        startSegment(0);
+    }
+
+    /**
+     * Rebuilds the index by replaying the segments from the oldest to the
+     * newest generation.
+     */
+    private void recover() {
+        Integer[] order = new Integer[segmentCount];
+        for (int segment = 0; segment < segmentCount; segment++) {
+            generations[segment] = buffer.getLong(segmentStart(segment));
+            order[segment] = segment;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(generations[a], generations[b]);
+            }
+        });
+
+        for (int segment : order) {
+            int end = replay(segment);
+            currentSegment = segment;
+            writeOffset = end;
+        }
+        logger.debug("Recovered {} fragments from the fragment store", index.size());
+    }
+
+    /**
+     * Adds the valid records of a segment to the index and returns the offset
+     * following the last one.
+     */
+    private int replay(int segment) {
+        int start = segmentStart(segment);
+        int offset = SEGMENT_HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        while (offset + 4 <= segmentSize) {
+            int length = buffer.getInt(start + offset);
+            if (length <= 4 || offset + 4L + length + 4 > segmentSize) {
+                break;
+            }
+            ByteBuffer record = buffer.duplicate();
+            record.position(start + offset + 8);
+            record.limit(start + offset + 4 + length);
+            ByteBuffer content = record.slice();
+
+            byte[] bytes = new byte[content.remaining()];
+            content.get(bytes);
+            crc.reset();
+            crc.update(bytes, 0, bytes.length);
+            if ((int) crc.getValue() != buffer.getInt(start + offset + 4)) {
+                break;
+            }
+            ByteBuffer fields = ByteBuffer.wrap(bytes);
+            if (fields.getLong() != generations[segment]) {
+                break;
+            }
+            fields.getLong();
+            fields.getLong();
+            byte[] key = new byte[fields.getInt()];
+            fields.get(key);
+
+            index.put(new String(key, UTF_8), ((long) segment << 32) | offset);
+            offset += 4 + length;
+        }
+        return offset;
+    }
+
+    /**
+     * Clears a segment, evicting the fragments it contains, and makes it the
+     * one new fragments are written to.
+     */
+    private void startSegment(int segment) {
+        long generation = 0;
+        for (long existing : generations) {
+            generation = Math.max(generation, existing);
+        }
+        generations[segment] = generation + 1;
+
+        Iterator<Long> locations = index.values().iterator();
+        while (locations.hasNext()) {
+            if ((int) (locations.next() >>> 32) == segment) {
+                locations.remove();
+            }
+        }
+
+        int start = segmentStart(segment);
+        buffer.putInt(start + SEGMENT_HEADER_SIZE, 0);
+        buffer.putLong(start, generations[segment]);
+        currentSegment = segment;
+        writeOffset = SEGMENT_HEADER_SIZE;
+    }
+
+    private int segmentStart(int segment) {
+        return FILE_HEADER_SIZE + segment * segmentSize;
+    }
+}
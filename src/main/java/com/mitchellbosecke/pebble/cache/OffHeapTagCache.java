@@ -0,0 +1,365 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.cache;
+
+import com.google.common.cache.AbstractCache;
+import com.google.common.cache.CacheStats;
+import com.mitchellbosecke.pebble.utils.ByteWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A tag cache which keeps the content of the fragments encoded in direct
+ * memory, outside of the Java heap, so that large fragments do not add to the
+ * work of the garbage collector.
+ * <p>
+ * The memory is reserved up to a fixed capacity, in chunks as it is needed,
+ * and divided into blocks of equal size. Each fragment occupies as many
+ * blocks as its encoded content requires and the least recently used
+ * fragments are evicted to free blocks for new ones. A fragment is written to
+ * a {@link ByteWriter} using the same charset without being decoded; to any
+ * other writer it is decoded first.
+ * <p>
+ * The blocks of an evicted fragment are only reused once the fragment is no
+ * longer being written. Values other than fragments are kept on the heap as
+ * they are. All operations are serialized by a single lock; the content of a
+ * fragment is copied and written outside of it.
+ *
+ * @author mbosecke
+ */
+public class OffHeapTagCache extends AbstractCache<BaseTagCacheKey, Object> {
+
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private static final int MAXIMUM_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int blockSize;
+
+    private final int blockCount;
+
+    private final int blocksPerChunk;
+
+    private final Charset charset;
+
+    private final ByteBuffer[] chunks;
+
+    /**
+     * Blocks which have been used before and are free again.
+     */
+    private final int[] freeBlocks;
+
+    private int freeBlockCount = 0;
+
+    /**
+     * The number of blocks which have been used at least once; the following
+     * blocks have never been used.
+     */
+    private int touchedBlockCount = 0;
+
+    private final StatsCounter statsCounter = new SimpleStatsCounter();
+
+    /**
+     * The entries in LRU order, the least recently used entry first.
+     */
+    private final LinkedHashMap<Object, Object> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Creates a cache storing the fragments encoded in UTF-8.
+     *
+     * @param capacity The amount of direct memory to use, in bytes
+     */
+    public OffHeapTagCache(long capacity) {
+        this(capacity, DEFAULT_BLOCK_SIZE, UTF_8);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param capacity  The amount of direct memory to use, in bytes
+     * @param blockSize The size of the blocks the memory is divided into
+     * @param charset   The charset the fragments are encoded with, which should be the one of the output
+     */
+    public OffHeapTagCache(long capacity, int blockSize, Charset charset) {
+        if (blockSize <= 0 || blockSize > MAXIMUM_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Invalid block size: " + blockSize);
+        }
+        if (capacity < blockSize || capacity / blockSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        this.blockSize = blockSize;
+        this.blockCount = (int) (capacity / blockSize);
+        this.blocksPerChunk = MAXIMUM_CHUNK_SIZE / blockSize;
+        this.charset = charset;
+        this.chunks = new ByteBuffer[(blockCount + blocksPerChunk - 1) / blocksPerChunk];
+        this.freeBlocks = new int[blockCount];
+    }
+
+    @Override
+    public synchronized Object getIfPresent(Object key) {
+        Object value = entries.get(key);
+        if (value == null) {
+            statsCounter.recordMisses(1);
+        } else {
+            statsCounter.recordHits(1);
+        }
+        return value;
+    }
+
+    @Override
+    public Object get(BaseTagCacheKey key, Callable<?> valueLoader) throws ExecutionException {
+        Object value = getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+        long start = System.nanoTime();
+        try {
+            value = valueLoader.call();
+        } catch (Exception e) {
+            statsCounter.recordLoadException(System.nanoTime() - start);
+            throw new ExecutionException(e);
+        }
+        if (value == null) {
+            statsCounter.recordLoadException(System.nanoTime() - start);
+            throw new ExecutionException(new NullPointerException("The value loader returned null"));
+        }
+        statsCounter.recordLoadSuccess(System.nanoTime() - start);
+        put(key, value);
+        return value;
+    }
+
+    @Override
+    public void put(BaseTagCacheKey key, Object value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("Keys and values can not be null");
+        }
+        if (!(value instanceof CachedFragment)) {
+            synchronized (this) {
+                release(entries.put(key, value));
+            }
+            return;
+        }
+
+        CachedFragment fragment = (CachedFragment) value;
+        byte[] content = fragment.getContent().getBytes(charset);
+        int[] blocks = allocate(key, (content.length + blockSize - 1) / blockSize);
+        if (blocks == null) {
+            // the fragment does not fit, it is not cached at all rather than kept on the heap
+            invalidate(key);
+            return;
+        }
+
+        // the blocks are not visible to any other thread until the fragment is added
+        for (int i = 0; i < blocks.length; i++) {
+            int offset = i * blockSize;
+            block(blocks[i], Math.min(blockSize, content.length - offset)).put(content, offset, Math.min(
+                    blockSize, content.length - offset));
+        }
+
+        synchronized (this) {
+            release(entries.put(key, new OffHeapFragment(fragment, blocks, content.length)));
+        }
+    }
+
+    @Override
+    public synchronized void invalidate(Object key) {
+        release(entries.remove(key));
+    }
+
+    @Override
+    public synchronized void invalidateAll() {
+        for (Object value : entries.values()) {
+            release(value);
+        }
+        entries.clear();
+    }
+
+    @Override
+    public synchronized long size() {
+        return entries.size();
+    }
+
+    @Override
+    public CacheStats stats() {
+        return statsCounter.snapshot();
+    }
+
+    /**
+     * Returns the amount of direct memory this cache may use.
+     *
+     * @return The capacity in bytes
+     */
+    public long capacity() {
+        return (long) blockCount * blockSize;
+    }
+
+    /**
+     * Returns the amount of direct memory occupied by fragments, including
+     * evicted fragments which are still being written.
+     *
+     * @return The occupied memory in bytes
+     */
+    public synchronized long usedBytes() {
+        return (long) (touchedBlockCount - freeBlockCount) * blockSize;
+    }
+
+    /**
+     * Reserves the given number of blocks, evicting the least recently used
+     * entries other than the one being replaced as needed.
+     *
+     * @return The blocks, or null if not enough blocks could be freed
+     */
+    private synchronized int[] allocate(BaseTagCacheKey key, int count) {
+        if (count > blockCount) {
+            return null;
+        }
+        Iterator<Map.Entry<Object, Object>> eldest = entries.entrySet().iterator();
+        while (availableBlocks() < count && eldest.hasNext()) {
+            Map.Entry<Object, Object> entry = eldest.next();
+            if (!entry.getKey().equals(key)) {
+                eldest.remove();
+                release(entry.getValue());
+                statsCounter.recordEviction();
+            }
+        }
+        if (availableBlocks() < count) {
+            return null;
+        }
+
+        int[] blocks = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (freeBlockCount > 0) {
+                blocks[i] = freeBlocks[--freeBlockCount];
+            } else {
+                int block = touchedBlockCount++;
+                if (block % blocksPerChunk == 0) {
+                    int chunkBlocks = Math.min(blocksPerChunk, blockCount - block);
+                    chunks[block / blocksPerChunk] = ByteBuffer.allocateDirect(chunkBlocks * blockSize);
+                }
+                blocks[i] = block;
+            }
+        }
+        return blocks;
+    }
+
+    private int availableBlocks() {
+        return freeBlockCount + blockCount - touchedBlockCount;
+    }
+
+    /**
+     * Releases the reference the cache holds on an entry which has been
+     * removed.
+     */
+    private void release(Object value) {
+        if (value instanceof OffHeapFragment) {
+            ((OffHeapFragment) value).release();
+        }
+    }
+
+    /**
+     * Returns a buffer of the given length over the beginning of a block.
+     */
+    private ByteBuffer block(int block, int length) {
+        ByteBuffer buffer = chunks[block / blocksPerChunk].duplicate();
+        int position = (block % blocksPerChunk) * blockSize;
+        buffer.limit(position + length);
+        buffer.position(position);
+        return buffer.slice();
+    }
+
+    /**
+     * A fragment whose content is stored in the blocks of the cache. The
+     * fragment is referenced by the cache while it is cached and by every
+     * thread writing it; its blocks are freed once it is no longer referenced.
+     */
+    private class OffHeapFragment extends CachedFragment {
+
+        private final int[] blocks;
+
+        private final int length;
+
+        private int references = 1;
+
+        public OffHeapFragment(CachedFragment fragment, int[] blocks, int length) {
+            super(fragment);
+            this.blocks = blocks;
+            this.length = length;
+        }
+
+        @Override
+        public String getContent() {
+            if (!retain()) {
+                throw new IllegalStateException("The fragment has been evicted");
+            }
+            try {
+                return decode();
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        public boolean writeTo(Writer writer) throws IOException {
+            if (!retain()) {
+                return false;
+            }
+            try {
+                if (writer instanceof ByteWriter && charset.equals(((ByteWriter) writer).getCharset())) {
+                    for (int i = 0; i < blocks.length; i++) {
+                        ((ByteWriter) writer).write(block(blocks[i], Math.min(blockSize, length - i * blockSize)));
+                    }
+                } else {
+                    writer.write(decode());
+                }
+            } finally {
+                release();
+            }
+            return true;
+        }
+
+        private String decode() {
+            byte[] content = new byte[length];
+            for (int i = 0; i < blocks.length; i++) {
+                int offset = i * blockSize;
+                block(blocks[i], Math.min(blockSize, length - offset)).get(content, offset, Math.min(blockSize,
+                        length - offset));
+            }
+            return new String(content, charset);
+        }
+
+        private boolean retain() {
+            synchronized (OffHeapTagCache.this) {
+                if (references == 0) {
+                    return false;
+                }
+                references++;
+                return true;
+            }
+        }
+
+        private void release() {
+            synchronized (OffHeapTagCache.this) {
+                if (--references == 0) {
+                    for (int block : blocks) {
+                        freeBlocks[freeBlockCount++] = block;
+                    }
+                }
+            }
+        }
+    }
+}
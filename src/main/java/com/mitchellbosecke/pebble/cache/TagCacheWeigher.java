@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.cache;
+
+import com.google.common.cache.Weigher;
+
+/**
+ * Weighs the entries of the tag cache by the amount of memory they are
+ * estimated to retain, in bytes, so that a large fragment counts as much as
+ * many small ones.
+ *
+ * @author mbosecke
+ */
+public class TagCacheWeigher implements Weigher<BaseTagCacheKey, Object> {
+
+    /**
+     * A rough estimate of the memory retained by the key and the entry
+     * itself, regardless of the content.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    @Override
+    public int weigh(BaseTagCacheKey key, Object value) {
+        long weight = ENTRY_OVERHEAD;
+        if (value instanceof CachedFragment) {
+            weight += 2L * ((CachedFragment) value).getContent().length();
+        } else if (value instanceof CharSequence) {
+            weight += 2L * ((CharSequence) value).length();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, weight);
+    }
+}
@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.cache;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records which templates statically reference which other templates through
+ * the "extends", "include" and "import" tags. Edges are kept in both
+ * directions so that the dependents of a template can be found as cheaply as
+ * its dependencies.
+ * <p>
+ * Only templates which reference other templates are recorded, so that
+ * templates without any dependency, such as most templates of a
+ * {@code StringLoader}, do not take up any space. The graph may contain
+ * cycles; none of the methods below recurse.
+ *
+ * @author mbosecke
+ */
+public class TemplateDependencyGraph {
+
+    private final Map<String, Set<String>> dependencies = new ConcurrentHashMap<>();
+
+    private final Map<String, Set<String>> dependents = new ConcurrentHashMap<>();
+
+    /**
+     * Records the dependencies of a template, replacing the ones previously
+     * recorded for it. A template without dependencies is not kept.
+     *
+     * @param templateName The name of the template
+     * @param templateDependencies The names of the templates it references
+     */
+    public synchronized void record(String templateName, Collection<String> templateDependencies) {
+        removeOutgoingEdges(templateName);
+        if (templateDependencies.isEmpty()) {
+            return;
+        }
+
+        Set<String> outgoing = Collections.unmodifiableSet(new LinkedHashSet<>(templateDependencies));
+        dependencies.put(templateName, outgoing);
+        for (String dependency : outgoing) {
+            Set<String> incoming = dependents.get(dependency);
+            if (incoming == null) {
+                incoming = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                dependents.put(dependency, incoming);
+            }
+            incoming.add(templateName);
+        }
+    }
+
+    /**
+     * Removes the recorded dependencies of a template. Edges pointing to the
+     * template are kept because its dependents still reference it.
+     *
+     * @param templateName The name of the template
+     */
+    public synchronized void remove(String templateName) {
+        removeOutgoingEdges(templateName);
+    }
+
+    /**
+     * Returns whether or not the template has recorded dependencies.
+     *
+     * @param templateName The name of the template
+     * @return Whether or not the template is known
+     */
+    public boolean contains(String templateName) {
+        return dependencies.containsKey(templateName);
+    }
+
+    /**
+     * Returns the templates directly referenced by a template.
+     *
+     * @param templateName The name of the template
+     * @return The names of the referenced templates
+     */
+    public Set<String> getDependencies(String templateName) {
+        Set<String> result = dependencies.get(templateName);
+        return result == null ? Collections.<String>emptySet() : result;
+    }
+
+    /**
+     * Returns the templates which directly reference a template.
+     *
+     * @param templateName The name of the template
+     * @return The names of the referencing templates
+     */
+    public Set<String> getDependents(String templateName) {
+        Set<String> result = dependents.get(templateName);
+        return result == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(new HashSet<>(result));
+    }
+
+    /**
+     * Returns a template along with all of the templates which reference it,
+     * directly or through other templates.
+     *
+     * @param templateName The name of the template
+     * @return The names of the template and its transitive dependents
+     */
+    public Set<String> getTransitiveDependents(String templateName) {
+        Set<String> result = new LinkedHashSet<>();
+        Deque<String> queue = new ArrayDeque<>();
+        queue.add(templateName);
+        while (!queue.isEmpty()) {
+            String current = queue.poll();
+            if (result.add(current)) {
+                queue.addAll(getDependents(current));
+            }
+        }
+        return result;
+    }
+
+    private void removeOutgoingEdges(String templateName) {
+        Set<String> previous = dependencies.remove(templateName);
+        if (previous != null) {
+            for (String dependency : previous) {
+                Set<String> incoming = dependents.get(dependency);
+                if (incoming != null) {
+                    incoming.remove(templateName);
+                    if (incoming.isEmpty()) {
+                        dependents.remove(dependency);
+                    }
+                }
+            }
+        }
+    }
+}
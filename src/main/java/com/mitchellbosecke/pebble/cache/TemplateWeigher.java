@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.cache;
+
+import com.google.common.cache.Weigher;
+import com.mitchellbosecke.pebble.template.PebbleTemplate;
+import com.mitchellbosecke.pebble.template.PebbleTemplateImpl;
+
+/**
+ * Weighs compiled templates by the amount of memory they are estimated to
+ * retain, in bytes.
+ *
+ * @author mbosecke
+ */
+public class TemplateWeigher implements Weigher<Object, PebbleTemplate> {
+
+    /**
+     * The weight of a template whose size is unknown.
+     */
+    private static final int DEFAULT_WEIGHT = 1024;
+
+    @Override
+    public int weigh(Object key, PebbleTemplate template) {
+        if (template instanceof PebbleTemplateImpl) {
+            long size = ((PebbleTemplateImpl) template).getEstimatedSize();
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(1, size));
+        }
+        return DEFAULT_WEIGHT;
+    }
+}
@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.cache;
+
+import com.google.common.cache.AbstractCache;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A tag cache which falls back to a {@link FragmentStore} for the fragments
+ * it does not hold and writes every new fragment through to the store.
+ * Fragments found in the store are promoted into the tag cache, including
+ * the expired ones which may still be served while they are refreshed.
+ *
+ * @author mbosecke
+ */
+public class TieredTagCache extends AbstractCache<BaseTagCacheKey, Object> {
+
+    private final Cache<BaseTagCacheKey, Object> cache;
+
+    private final FragmentStore store;
+
+    public TieredTagCache(Cache<BaseTagCacheKey, Object> cache, FragmentStore store) {
+        this.cache = cache;
+        this.store = store;
+    }
+
+    @Override
+    public Object getIfPresent(Object key) {
+        Object value = cache.getIfPresent(key);
+        if (value == null && key instanceof BaseTagCacheKey) {
+            String persistentKey = ((BaseTagCacheKey) key).getPersistentKey();
+            if (persistentKey != null) {
+                value = store.get(persistentKey);
+                if (value != null) {
+                    cache.put((BaseTagCacheKey) key, value);
+                }
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public Object get(BaseTagCacheKey key, final Callable<?> valueLoader) throws ExecutionException {
+        Object value = getIfPresent(key);
+        if (value instanceof CachedFragment && ((CachedFragment) value).isExpired()) {
+            // a stale fragment found in the store is no substitute for loading
+            cache.invalidate(key);
+        } else if (value != null) {
+            return value;
+        }
+        final String persistentKey = key.getPersistentKey();
+        return cache.get(key, new Callable<Object>() {
+
+            @Override
+            public Object call() throws Exception {
+                Object loaded = valueLoader.call();
+                if (persistentKey != null && loaded instanceof CachedFragment) {
+                    store.put(persistentKey, (CachedFragment) loaded);
+                }
+                return loaded;
+            }
+        });
+    }
+
+    @Override
+    public void put(BaseTagCacheKey key, Object value) {
+        cache.put(key, value);
+        String persistentKey = key.getPersistentKey();
+        if (persistentKey != null && value instanceof CachedFragment) {
+            store.put(persistentKey, (CachedFragment) value);
+        }
+    }
+
+    @Override
+    public void invalidate(Object key) {
+        cache.invalidate(key);
+    }
+
+    @Override
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public long size() {
+        return cache.size();
+    }
+
+    @Override
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    public FragmentStore getStore() {
+        return store;
+    }
+}
@@ -0,0 +1,712 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.cache;
+
+import com.google.common.cache.AbstractCache;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Iterators;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache bounded by the total weight of its entries which decides what to
+ * keep based on how frequently, and not only how recently, the entries are
+ * accessed (W-TinyLFU).
+ * <p>
+ * New entries are placed in a small LRU window. An entry leaving the window
+ * is only admitted into the main space if it has been accessed more often
+ * than the entries which would have to be evicted to make room for it, as
+ * estimated by a {@link FrequencySketch}. The main space is split into a
+ * probation segment for entries which have not been accessed since their
+ * admission and a protected segment for the ones which have. A burst of
+ * entries which are used once therefore only ever displaces other entries
+ * of the window and of the probation segment.
+ * <p>
+ * Hits, misses and evictions are recorded and available through
+ * {@link #stats()}. Reads do not take any lock: the entries are looked up in a
+ * concurrent map and the accesses are recorded in a lossy ring buffer, which
+ * is replayed against the policy by whichever thread next holds the lock,
+ * the same way Caffeine does it. Writes are serialized by a single lock;
+ * values computed by {@link #get(Object, Callable)} are computed outside of
+ * it, and {@link CacheRemovalListener}s are notified outside of it.
+ *
+ * @param <K> The type of the keys
+ * @param <V> The type of the values
+ * @author mbosecke
+ */
+public class TinyLfuCache<K, V> extends AbstractCache<K, V> {
+
+    private static final double WINDOW_RATIO = 0.01;
+
+    private static final double PROTECTED_RATIO = 0.8;
+
+    /**
+     * The number of accesses the read buffer can hold; accesses recorded
+     * while it is full are dropped.
+     */
+    private static final int READ_BUFFER_SIZE = 128;
+
+    /**
+     * The number of buffered accesses after which a reader tries to replay
+     * them.
+     */
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+
+    private final long maximumWeight;
+
+    private final long windowMaximum;
+
+    private final long mainMaximum;
+
+    private final long protectedMaximum;
+
+    private final Weigher<? super K, ? super V> weigher;
+
+    private final FrequencySketch sketch;
+
+    private final StatsCounter statsCounter = new SimpleStatsCounter();
+
+    private final ConcurrentMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The accesses waiting to be replayed: the node of a hit or the key of a
+     * miss. Slots are claimed by incrementing the write counter and freed,
+     * under the lock, by advancing the read counter.
+     */
+    private final AtomicReferenceArray<Object> readBuffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+
+    private final AtomicLong readBufferWrites = new AtomicLong();
+
+    private volatile long readBufferReads = 0;
+
+    private ConcurrentMap<K, V> asMap;
+
+    private final List<CacheRemovalListener<? super K, ? super V>> removalListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * The removed entries whose listeners have not been notified yet.
+     */
+    private final List<Node<K, V>> removals = new ArrayList<>();
+
+    /*
+     * Each segment is kept in LRU order, the least recently used entry first.
+     */
+
+    private final LinkedHashMap<K, Node<K, V>> window = new LinkedHashMap<>();
+
+    private final LinkedHashMap<K, Node<K, V>> probation = new LinkedHashMap<>();
+
+    private final LinkedHashMap<K, Node<K, V>> protectedSegment = new LinkedHashMap<>();
+
+    private long windowWeight = 0;
+
+    private long probationWeight = 0;
+
+    private long protectedWeight = 0;
+
+    /**
+     * Constructor
+     *
+     * @param maximumWeight The maximum total weight of the entries
+     * @param weigher       Computes the weight of an entry
+     * @param expectedSize  The expected number of entries, used to size the frequency sketch
+     */
+    public TinyLfuCache(long maximumWeight, Weigher<? super K, ? super V> weigher, int expectedSize) {
+        if (maximumWeight < 0) {
+            throw new IllegalArgumentException("Maximum weight can not be negative");
+        }
+        this.maximumWeight = maximumWeight;
+        this.windowMaximum = Math.min(maximumWeight, Math.max(1, (long) (maximumWeight * WINDOW_RATIO)));
+        this.mainMaximum = maximumWeight - windowMaximum;
+        this.protectedMaximum = (long) (mainMaximum * PROTECTED_RATIO);
+        this.weigher = weigher;
+        this.sketch = new FrequencySketch(expectedSize);
+    }
+
+    @Override
+    public V getIfPresent(Object key) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            statsCounter.recordMisses(1);
+            recordAccess(key);
+            return null;
+        }
+        statsCounter.recordHits(1);
+        recordAccess(node);
+        return node.value;
+    }
+
+    @Override
+    public V get(K key, Callable<? extends V> valueLoader) throws ExecutionException {
+        V value = getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+        long start = System.nanoTime();
+        try {
+            value = valueLoader.call();
+        } catch (Exception e) {
+            statsCounter.recordLoadException(System.nanoTime() - start);
+            throw new ExecutionException(e);
+        }
+        if (value == null) {
+            statsCounter.recordLoadException(System.nanoTime() - start);
+            throw new ExecutionException(new NullPointerException("The value loader returned null"));
+        }
+        statsCounter.recordLoadSuccess(System.nanoTime() - start);
+        put(key, value);
+        return value;
+    }
+
+    @Override
+    public void put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("Keys and values can not be null");
+        }
+        long weight = weigher.weigh(key, value);
+        if (weight < 0) {
+            throw new IllegalStateException("Weights can not be negative");
+        }
+
+        lock.lock();
+        try {
+            drainReadBuffer();
+            Node<K, V> node = data.get(key);
+            if (node != null) {
+                node.value = value;
+                addWeight(node.segment, weight - node.weight);
+                node.weight = weight;
+                onHit(node);
+            } else {
+                node = new Node<>(key, value, weight);
+                data.put(key, node);
+                add(window, node, Segment.WINDOW);
+            }
+            evict();
+        } finally {
+            lock.unlock();
+        }
+        notifyRemovals();
+    }
+
+    @Override
+    public void invalidate(Object key) {
+        lock.lock();
+        try {
+            // the buffered reads of the entry would keep its value reachable
+            drainReadBuffer();
+            Node<K, V> node = data.remove(key);
+            if (node != null) {
+                remove(node);
+                removed(node);
+            }
+        } finally {
+            lock.unlock();
+        }
+        notifyRemovals();
+    }
+
+    @Override
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            drainReadBuffer();
+            for (Node<K, V> node : data.values()) {
+                removed(node);
+            }
+            data.clear();
+            window.clear();
+            probation.clear();
+            protectedSegment.clear();
+            windowWeight = 0;
+            probationWeight = 0;
+            protectedWeight = 0;
+            sketch.clear();
+        } finally {
+            lock.unlock();
+        }
+        notifyRemovals();
+    }
+
+    /**
+     * Registers a listener notified of every entry removed from now on.
+     *
+     * @param listener The listener
+     */
+    public void addRemovalListener(CacheRemovalListener<? super K, ? super V> listener) {
+        removalListeners.add(listener);
+    }
+
+    @Override
+    public long size() {
+        return data.size();
+    }
+
+    /**
+     * Returns the total weight of the entries currently in the cache.
+     *
+     * @return The total weight
+     */
+    public long weightedSize() {
+        lock.lock();
+        try {
+            return windowWeight + probationWeight + protectedWeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public CacheStats stats() {
+        return statsCounter.snapshot();
+    }
+
+    @Override
+    public ConcurrentMap<K, V> asMap() {
+        ConcurrentMap<K, V> map = asMap;
+        if (map == null) {
+            map = new AsMap();
+            asMap = map;
+        }
+        return map;
+    }
+
+    /**
+     * Records an access in the read buffer without blocking. The access is
+     * dropped if the buffer is full or another reader claims the same slot,
+     * which only makes the policy slightly less accurate.
+     */
+    private void recordAccess(Object access) {
+        long writes = readBufferWrites.get();
+        long pending = writes - readBufferReads;
+        if (pending < READ_BUFFER_SIZE && readBufferWrites.compareAndSet(writes, writes + 1)) {
+            readBuffer.lazySet(index(writes), access);
+            pending++;
+        }
+        if (pending >= READ_BUFFER_DRAIN_THRESHOLD && lock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Replays the buffered accesses against the policy; must be called with
+     * the lock held.
+     */
+    @SuppressWarnings("unchecked")
+    private void drainReadBuffer() {
+        long reads = readBufferReads;
+        long writes = readBufferWrites.get();
+        while (reads < writes) {
+            int index = index(reads);
+            Object access = readBuffer.get(index);
+            if (access == null) {
+                // the slot is claimed but not written yet
+                break;
+            }
+            readBuffer.lazySet(index, null);
+            reads++;
+            if (access instanceof Node) {
+                Node<K, V> node = (Node<K, V>) access;
+                sketch.increment(node.key);
+
+                // the entry may have been removed since it was read
+                if (data.get(node.key) == node) {
+                    onHit(node);
+                }
+            } else {
+                sketch.increment(access);
+            }
+        }
+        readBufferReads = reads;
+    }
+
+    private static int index(long counter) {
+        return (int) (counter & (READ_BUFFER_SIZE - 1));
+    }
+
+    private void onHit(Node<K, V> node) {
+        switch (node.segment) {
+            case WINDOW:
+                moveToTail(window, node);
+                break;
+            case PROBATION:
+                remove(node);
+                add(protectedSegment, node, Segment.PROTECTED);
+
+                // make room by demoting the least recently used protected entries
+                while (protectedWeight > protectedMaximum && protectedSegment.size() > 1) {
+                    Node<K, V> demoted = firstOf(protectedSegment);
+                    remove(demoted);
+                    add(probation, demoted, Segment.PROBATION);
+                }
+                break;
+            case PROTECTED:
+                moveToTail(protectedSegment, node);
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private void evict() {
+        while (windowWeight > windowMaximum && !window.isEmpty()) {
+            Node<K, V> candidate = firstOf(window);
+            remove(candidate);
+            admit(candidate);
+        }
+
+        // an entry of the main space may have been replaced by a heavier one
+        while (probationWeight + protectedWeight > mainMaximum) {
+            Node<K, V> victim = firstOf(probation.isEmpty() ? protectedSegment : probation);
+            remove(victim);
+            evict(victim);
+        }
+    }
+
+    /**
+     * Moves an entry leaving the window into the probation segment if it is
+     * accessed more frequently than each of the entries which have to be
+     * evicted to make room for it, otherwise evicts the entry itself and
+     * keeps all of them.
+     */
+    private void admit(Node<K, V> candidate) {
+        if (candidate.weight > mainMaximum) {
+            evict(candidate);
+            return;
+        }
+        int candidateFrequency = sketch.frequency(candidate.key);
+
+        // every victim has to be less frequent than the candidate before any of them is evicted
+        long excess = probationWeight + protectedWeight + candidate.weight - mainMaximum;
+        List<Node<K, V>> victims = new ArrayList<>();
+        Iterator<Node<K, V>> iterator = Iterators.concat(probation.values().iterator(),
+                protectedSegment.values().iterator());
+        while (excess > 0 && iterator.hasNext()) {
+            Node<K, V> victim = iterator.next();
+            if (candidateFrequency <= sketch.frequency(victim.key)) {
+                evict(candidate);
+                return;
+            }
+            victims.add(victim);
+            excess -= victim.weight;
+        }
+        for (Node<K, V> victim : victims) {
+            remove(victim);
+            evict(victim);
+        }
+        add(probation, candidate, Segment.PROBATION);
+    }
+
+    private void evict(Node<K, V> node) {
+        data.remove(node.key, node);
+        statsCounter.recordEviction();
+        removed(node);
+    }
+
+    /**
+     * Queues the notification of a removal; must be called with the lock
+     * held.
+     */
+    private void removed(Node<K, V> node) {
+        if (!removalListeners.isEmpty()) {
+            removals.add(node);
+        }
+    }
+
+    /**
+     * Notifies the listeners of the queued removals, unless the calling
+     * thread holds the lock, in which case it does so once it releases it.
+     */
+    private void notifyRemovals() {
+        if (removalListeners.isEmpty() || lock.isHeldByCurrentThread()) {
+            return;
+        }
+        List<Node<K, V>> notified;
+        lock.lock();
+        try {
+            if (removals.isEmpty()) {
+                return;
+            }
+            notified = new ArrayList<>(removals);
+            removals.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (Node<K, V> node : notified) {
+            for (CacheRemovalListener<? super K, ? super V> listener : removalListeners) {
+                listener.onRemoval(node.key, node.value);
+            }
+        }
+    }
+
+    private void add(LinkedHashMap<K, Node<K, V>> segmentMap, Node<K, V> node, Segment segment) {
+        node.segment = segment;
+        segmentMap.put(node.key, node);
+        addWeight(segment, node.weight);
+    }
+
+    private void remove(Node<K, V> node) {
+        switch (node.segment) {
+            case WINDOW:
+                window.remove(node.key);
+                break;
+            case PROBATION:
+                probation.remove(node.key);
+                break;
+            case PROTECTED:
+                protectedSegment.remove(node.key);
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+        addWeight(node.segment, -node.weight);
+    }
+
+    private void addWeight(Segment segment, long weight) {
+        switch (segment) {
+            case WINDOW:
+                windowWeight += weight;
+                break;
+            case PROBATION:
+                probationWeight += weight;
+                break;
+            case PROTECTED:
+                protectedWeight += weight;
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private static <K, V> void moveToTail(LinkedHashMap<K, Node<K, V>> segmentMap, Node<K, V> node) {
+        segmentMap.remove(node.key);
+        segmentMap.put(node.key, node);
+    }
+
+    private static <K, V> Node<K, V> firstOf(LinkedHashMap<K, Node<K, V>> segmentMap) {
+        return segmentMap.values().iterator().next();
+    }
+
+    /**
+     * A view of the cache as a map. Reads go through the lock-free path of the
+     * cache, without being counted as hits or misses, and writes through its
+     * lock.
+     */
+    private class AsMap extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+        private Set<Entry<K, V>> entrySet;
+
+        @Override
+        public V get(Object key) {
+            Node<K, V> node = data.get(key);
+            if (node == null) {
+                return null;
+            }
+            recordAccess(node);
+            return node.value;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return data.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return data.size();
+        }
+
+        @Override
+        public V put(K key, V value) {
+            lock.lock();
+            try {
+                Node<K, V> previous = data.get(key);
+                TinyLfuCache.this.put(key, value);
+                return previous == null ? null : previous.value;
+            } finally {
+                lock.unlock();
+                notifyRemovals();
+            }
+        }
+
+        @Override
+        public V putIfAbsent(K key, V value) {
+            lock.lock();
+            try {
+                Node<K, V> previous = data.get(key);
+                if (previous != null) {
+                    return previous.value;
+                }
+                TinyLfuCache.this.put(key, value);
+                return null;
+            } finally {
+                lock.unlock();
+                notifyRemovals();
+            }
+        }
+
+        @Override
+        public V remove(Object key) {
+            lock.lock();
+            try {
+                Node<K, V> node = data.remove(key);
+                if (node == null) {
+                    return null;
+                }
+                TinyLfuCache.this.remove(node);
+                removed(node);
+                return node.value;
+            } finally {
+                lock.unlock();
+                notifyRemovals();
+            }
+        }
+
+        @Override
+        public boolean remove(Object key, Object value) {
+            lock.lock();
+            try {
+                Node<K, V> node = data.get(key);
+                if (node == null || value == null || !value.equals(node.value)) {
+                    return false;
+                }
+                remove(key);
+                return true;
+            } finally {
+                lock.unlock();
+                notifyRemovals();
+            }
+        }
+
+        @Override
+        public V replace(K key, V value) {
+            lock.lock();
+            try {
+                Node<K, V> previous = data.get(key);
+                if (previous == null) {
+                    return null;
+                }
+                V previousValue = previous.value;
+                TinyLfuCache.this.put(key, value);
+                return previousValue;
+            } finally {
+                lock.unlock();
+                notifyRemovals();
+            }
+        }
+
+        @Override
+        public boolean replace(K key, V oldValue, V newValue) {
+            lock.lock();
+            try {
+                Node<K, V> previous = data.get(key);
+                if (previous == null || !previous.value.equals(oldValue)) {
+                    return false;
+                }
+                TinyLfuCache.this.put(key, newValue);
+                return true;
+            } finally {
+                lock.unlock();
+                notifyRemovals();
+            }
+        }
+
+        @Override
+        public void clear() {
+            invalidateAll();
+        }
+
+        @Override
+        public Set<Entry<K, V>> entrySet() {
+            Set<Entry<K, V>> set = entrySet;
+            if (set == null) {
+                set = new AbstractSet<Entry<K, V>>() {
+
+                    @Override
+                    public Iterator<Entry<K, V>> iterator() {
+                        final Iterator<Node<K, V>> nodes = data.values().iterator();
+                        return new Iterator<Entry<K, V>>() {
+
+                            private Node<K, V> current;
+
+                            @Override
+                            public boolean hasNext() {
+                                return nodes.hasNext();
+                            }
+
+                            @Override
+                            public Entry<K, V> next() {
+                                current = nodes.next();
+                                return new SimpleImmutableEntry<>(current.key, current.value);
+                            }
+
+                            @Override
+                            public void remove() {
+                                if (current == null) {
+                                    throw new IllegalStateException();
+                                }
+                                AsMap.this.remove(current.key, current.value);
+                                current = null;
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return data.size();
+                    }
+                };
+                entrySet = set;
+            }
+            return set;
+        }
+    }
+
+    private enum Segment {
+        WINDOW, PROBATION, PROTECTED
+    }
+
+    private static class Node<K, V> {
+
+        private final K key;
+
+        private volatile V value;
+
+        private long weight;
+
+        private Segment segment;
+
+        public Node(K key, V value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.mitchellbosecke.pebble.extension;
 
+import com.google.common.hash.Hashing;
+import com.mitchellbosecke.pebble.extension.escaper.EscaperNodeVisitorFactory;
 import com.mitchellbosecke.pebble.operator.BinaryOperator;
 import com.mitchellbosecke.pebble.operator.UnaryOperator;
 import com.mitchellbosecke.pebble.tokenParser.TokenParser;
@@ -59,6 +61,12 @@ public class ExtensionRegistry {
      */
     private Map<String, Object> globalVariables = new HashMap<>();
 
+    /**
+     * Identifies the components which affect the compilation of a template;
+     * computed on first use.
+     */
+    private volatile String fingerprint;
+
     public ExtensionRegistry(Collection<? extends Extension> extensions) {
 
         for (Extension extension : extensions) {
@@ -156,6 +164,54 @@ public class ExtensionRegistry {
         return this.tokenParsers;
     }
 
+    /**
+     * Returns a fingerprint of the operators, tags, node visitors, filters,
+     * tests and functions of this registry. Templates compiled from the same
+     * content by engines whose registries have the same fingerprint have
+     * identical ASTs. Components are identified by their class only, with the
+     * exception of the auto escaping setting.
+     *
+     * @return The fingerprint
+     */
+    public String getFingerprint() {
+        String result = fingerprint;
+        if (result == null) {
+            StringBuilder builder = new StringBuilder();
+            for (Map.Entry<String, UnaryOperator> operator : new TreeMap<>(unaryOperators).entrySet()) {
+                builder.append("unary:").append(operator.getKey()).append(':')
+                        .append(operator.getValue().getPrecedence()).append(':')
+                        .append(operator.getValue().getNodeClass().getName()).append('\n');
+            }
+            for (Map.Entry<String, BinaryOperator> operator : new TreeMap<>(binaryOperators).entrySet()) {
+                builder.append("binary:").append(operator.getKey()).append(':')
+                        .append(operator.getValue().getPrecedence()).append(':')
+                        .append(operator.getValue().getAssociativity()).append(':')
+                        .append(operator.getValue().getNodeClass().getName()).append('\n');
+            }
+            appendClasses(builder, "tag", tokenParsers);
+            appendClasses(builder, "filter", filters);
+            appendClasses(builder, "test", tests);
+            appendClasses(builder, "function", functions);
+            for (NodeVisitorFactory visitor : nodeVisitors) {
+                builder.append("visitor:").append(visitor.getClass().getName());
+                if (visitor instanceof EscaperNodeVisitorFactory) {
+                    builder.append(':').append(((EscaperNodeVisitorFactory) visitor).isAutoEscaping());
+                }
+                builder.append('\n');
+            }
+            result = Hashing.murmur3_128().hashUnencodedChars(builder).toString();
+            fingerprint = result;
+        }
+        return result;
+    }
+
+    private static void appendClasses(StringBuilder builder, String kind, Map<String, ?> components) {
+        for (Map.Entry<String, ?> component : new TreeMap<>(components).entrySet()) {
+            builder.append(kind).append(':').append(component.getKey()).append(':')
+                    .append(component.getValue().getClass().getName()).append('\n');
+        }
+    }
+
     /*
     @SuppressWarnings("unchecked")
     public <T extends Extension> T getExtension(Class<T> clazz) {
@@ -0,0 +1,21 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.extension;
+
+/**
+ * Marks a filter, test or function whose result only depends on its input,
+ * its arguments and the locale of the evaluation, and which has no side
+ * effects. Macros which only use such filters, tests and functions have their
+ * output memoized.
+ *
+ * @author mbosecke
+ */
+public interface Pure {
+
+}
@@ -10,12 +10,13 @@ package com.mitchellbosecke.pebble.extension.core;
 
 import com.mitchellbosecke.pebble.error.PebbleException;
 import com.mitchellbosecke.pebble.extension.Filter;
+import com.mitchellbosecke.pebble.extension.Pure;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
-public class AbbreviateFilter implements Filter {
+public class AbbreviateFilter implements Filter, Pure {
 
     private final List<String> argumentNames = new ArrayList<>();
 
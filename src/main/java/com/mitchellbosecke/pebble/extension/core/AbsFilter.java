@@ -12,8 +12,9 @@ import java.util.List;
 import java.util.Map;
 
 import com.mitchellbosecke.pebble.extension.Filter;
+import com.mitchellbosecke.pebble.extension.Pure;
 
-public class AbsFilter implements Filter {
+public class AbsFilter implements Filter, Pure {
 
     @Override
     public List<String> getArgumentNames() {
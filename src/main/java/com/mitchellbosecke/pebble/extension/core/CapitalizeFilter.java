@@ -9,12 +9,13 @@
 package com.mitchellbosecke.pebble.extension.core;
 
 import com.mitchellbosecke.pebble.extension.Filter;
+import com.mitchellbosecke.pebble.extension.Pure;
 
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
-public class CapitalizeFilter implements Filter {
+public class CapitalizeFilter implements Filter, Pure {
 
     @Override
     public List<String> getArgumentNames() {
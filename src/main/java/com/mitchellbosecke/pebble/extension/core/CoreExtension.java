@@ -140,6 +140,10 @@ public class CoreExtension extends AbstractExtension {
     public List<NodeVisitorFactory> getNodeVisitors() {
         List<NodeVisitorFactory> visitors = new ArrayList<>();
         visitors.add(new MacroAndBlockRegistrantNodeVisitorFactory());
+        visitors.add(new DependencyRegistrantNodeVisitorFactory());
+        visitors.add(new IsolationAnalyzerNodeVisitorFactory());
+        visitors.add(new PureMacroAnalyzerNodeVisitorFactory());
+        visitors.add(new StaticTemplateAnalyzerNodeVisitorFactory());
         return visitors;
     }
 
@@ -9,6 +9,7 @@
 package com.mitchellbosecke.pebble.extension.core;
 
 import com.mitchellbosecke.pebble.extension.Filter;
+import com.mitchellbosecke.pebble.extension.Pure;
 import com.mitchellbosecke.pebble.extension.escaper.SafeString;
 import com.mitchellbosecke.pebble.template.EvaluationContext;
 
@@ -17,7 +18,7 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
-public class DateFilter implements Filter {
+public class DateFilter implements Filter, Pure {
 
     private final List<String> argumentNames = new ArrayList<>();
 
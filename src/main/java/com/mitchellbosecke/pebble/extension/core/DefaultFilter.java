@@ -14,9 +14,10 @@ import java.util.List;
 import java.util.Map;
 
 import com.mitchellbosecke.pebble.extension.Filter;
+import com.mitchellbosecke.pebble.extension.Pure;
 import com.mitchellbosecke.pebble.extension.Test;
 
-public class DefaultFilter implements Filter {
+public class DefaultFilter implements Filter, Pure {
 
     private final List<String> argumentNames = new ArrayList<>();
 
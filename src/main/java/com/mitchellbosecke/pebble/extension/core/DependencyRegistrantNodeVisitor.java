@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.extension.core;
+
+import com.mitchellbosecke.pebble.extension.AbstractNodeVisitor;
+import com.mitchellbosecke.pebble.node.CacheNode;
+import com.mitchellbosecke.pebble.node.ExtendsNode;
+import com.mitchellbosecke.pebble.node.ImportNode;
+import com.mitchellbosecke.pebble.node.IncludeNode;
+import com.mitchellbosecke.pebble.node.Node;
+import com.mitchellbosecke.pebble.node.expression.Expression;
+import com.mitchellbosecke.pebble.node.expression.LiteralStringExpression;
+import com.mitchellbosecke.pebble.template.PebbleTemplateImpl;
+
+/**
+ * Registers the names of the templates which are referenced with a string
+ * literal by the "extends", "include" and "import" tags. Template names which
+ * are only known at evaluation time are ignored.
+ *
+ * @author mbosecke
+ */
+public class DependencyRegistrantNodeVisitor extends AbstractNodeVisitor {
+
+    public DependencyRegistrantNodeVisitor(PebbleTemplateImpl template) {
+        super(template);
+    }
+
+    @Override
+    public void visit(Node node) {
+        if (node instanceof CacheNode) {
+            ((CacheNode) node).getBody().accept(this);
+        }
+    }
+
+    @Override
+    public void visit(ExtendsNode node) {
+        register(node.getParentExpression());
+        super.visit(node);
+    }
+
+    @Override
+    public void visit(ImportNode node) {
+        register(node.getImportExpression());
+        super.visit(node);
+    }
+
+    @Override
+    public void visit(IncludeNode node) {
+        register(node.getIncludeExpression());
+        super.visit(node);
+    }
+
+    private void register(Expression<?> expression) {
+        if (expression instanceof LiteralStringExpression) {
+            this.getTemplate().registerDependency(((LiteralStringExpression) expression).getValue());
+        }
+    }
+}
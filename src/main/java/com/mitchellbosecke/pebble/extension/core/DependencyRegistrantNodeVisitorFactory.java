@@ -0,0 +1,22 @@
+package com.mitchellbosecke.pebble.extension.core;
+
+import com.mitchellbosecke.pebble.extension.NodeVisitor;
+import com.mitchellbosecke.pebble.extension.NodeVisitorFactory;
+import com.mitchellbosecke.pebble.template.PebbleTemplate;
+import com.mitchellbosecke.pebble.template.PebbleTemplateImpl;
+
+/**
+ * Implementation of {@link NodeVisitorFactory} to handle
+ * {@link DependencyRegistrantNodeVisitor}.
+ *
+ * @author mbosecke
+ *
+ */
+public class DependencyRegistrantNodeVisitorFactory implements NodeVisitorFactory {
+
+    @Override
+    public NodeVisitor createVisitor(PebbleTemplate template) {
+        return new DependencyRegistrantNodeVisitor((PebbleTemplateImpl) template);
+    }
+
+}
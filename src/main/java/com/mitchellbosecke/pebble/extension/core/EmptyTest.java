@@ -13,8 +13,9 @@ import java.util.List;
 import java.util.Map;
 
 import com.mitchellbosecke.pebble.extension.Test;
+import com.mitchellbosecke.pebble.extension.Pure;
 
-public class EmptyTest implements Test {
+public class EmptyTest implements Test, Pure {
 
     @Override
     public List<String> getArgumentNames() {
@@ -14,6 +14,7 @@ import java.util.List;
 import java.util.Map;
 
 import com.mitchellbosecke.pebble.extension.Filter;
+import com.mitchellbosecke.pebble.extension.Pure;
 
 /**
  * Returns the first element of a collection
@@ -21,7 +22,7 @@ import com.mitchellbosecke.pebble.extension.Filter;
  * @author mbosecke
  *
  */
-public class FirstFilter implements Filter {
+public class FirstFilter implements Filter, Pure {
 
     @Override
     public List<String> getArgumentNames() {
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.extension.core;
+
+import com.mitchellbosecke.pebble.extension.AbstractNodeVisitor;
+import com.mitchellbosecke.pebble.node.CacheNode;
+import com.mitchellbosecke.pebble.node.ExtendsNode;
+import com.mitchellbosecke.pebble.node.ImportNode;
+import com.mitchellbosecke.pebble.node.IncludeNode;
+import com.mitchellbosecke.pebble.node.MacroNode;
+import com.mitchellbosecke.pebble.node.Node;
+import com.mitchellbosecke.pebble.node.PrintNode;
+import com.mitchellbosecke.pebble.node.RenderableNode;
+import com.mitchellbosecke.pebble.node.RootNode;
+import com.mitchellbosecke.pebble.node.SetNode;
+import com.mitchellbosecke.pebble.node.expression.BinaryExpression;
+import com.mitchellbosecke.pebble.node.expression.Expression;
+import com.mitchellbosecke.pebble.node.expression.LiteralStringExpression;
+import com.mitchellbosecke.pebble.node.expression.RenderableNodeExpression;
+import com.mitchellbosecke.pebble.node.expression.UnaryExpression;
+import com.mitchellbosecke.pebble.template.PebbleTemplateImpl;
+
+/**
+ * Determines whether or not the evaluation of a template, when it is included
+ * by another template, could have an effect that is visible to the including
+ * template. This is the case if the template sets a variable outside of a
+ * macro, imports or extends another template, includes a template whose name
+ * is not a string literal or contains a tag that is unknown to this visitor.
+ * <p>
+ * The templates included with a string literal are not inspected here; see
+ * {@link PebbleTemplateImpl#isIsolated()}.
+ *
+ * @author mbosecke
+ */
+public class IsolationAnalyzerNodeVisitor extends AbstractNodeVisitor {
+
+    private boolean isolated = true;
+
+    private int macroDepth = 0;
+
+    public IsolationAnalyzerNodeVisitor(PebbleTemplateImpl template) {
+        super(template);
+    }
+
+    @Override
+    public void visit(Node node) {
+        if (node instanceof CacheNode) {
+            ((CacheNode) node).getBody().accept(this);
+        } else if (node instanceof RenderableNode) {
+            // a tag provided by a user extension
+            isolated = false;
+        }
+    }
+
+    @Override
+    public void visit(ExtendsNode node) {
+        isolated = false;
+    }
+
+    @Override
+    public void visit(ImportNode node) {
+        isolated = false;
+    }
+
+    @Override
+    public void visit(IncludeNode node) {
+        if (!(node.getIncludeExpression() instanceof LiteralStringExpression)) {
+            isolated = false;
+        }
+        super.visit(node);
+    }
+
+    @Override
+    public void visit(MacroNode node) {
+        // variables set within a macro are local to the macro
+        macroDepth++;
+        super.visit(node);
+        macroDepth--;
+    }
+
+    @Override
+    public void visit(PrintNode node) {
+        visitExpression(node.getExpression());
+        super.visit(node);
+    }
+
+    @Override
+    public void visit(RootNode node) {
+        super.visit(node);
+        this.getTemplate().setIsolated(isolated);
+    }
+
+    @Override
+    public void visit(SetNode node) {
+        if (macroDepth == 0) {
+            isolated = false;
+        }
+        super.visit(node);
+    }
+
+    /**
+     * The body of the "filter" tag is wrapped into an expression.
+     */
+    private void visitExpression(Expression<?> expression) {
+        if (expression instanceof RenderableNodeExpression) {
+            ((RenderableNodeExpression) expression).getNode().accept(this);
+        } else if (expression instanceof UnaryExpression) {
+            visitExpression(((UnaryExpression) expression).getChildExpression());
+        } else if (expression instanceof BinaryExpression) {
+            visitExpression(((BinaryExpression<?>) expression).getLeftExpression());
+            visitExpression(((BinaryExpression<?>) expression).getRightExpression());
+        }
+    }
+}
@@ -14,6 +14,7 @@ import java.util.List;
 import java.util.Map;
 
 import com.mitchellbosecke.pebble.extension.Filter;
+import com.mitchellbosecke.pebble.extension.Pure;
 
 /**
  * Concatenates all entries of a collection, optionally glued together with a
@@ -22,7 +23,7 @@ import com.mitchellbosecke.pebble.extension.Filter;
  * @author mbosecke
  *
  */
-public class JoinFilter implements Filter {
+public class JoinFilter implements Filter, Pure {
 
     private final List<String> argumentNames = new ArrayList<>();
 
@@ -15,6 +15,7 @@ import java.util.List;
 import java.util.Map;
 
 import com.mitchellbosecke.pebble.extension.Filter;
+import com.mitchellbosecke.pebble.extension.Pure;
 
 /**
  * Returns the last element of a collection
@@ -22,7 +23,7 @@ import com.mitchellbosecke.pebble.extension.Filter;
  * @author mbosecke
  *
  */
-public class LastFilter implements Filter {
+public class LastFilter implements Filter, Pure {
 
     @Override
     public List<String> getArgumentNames() {
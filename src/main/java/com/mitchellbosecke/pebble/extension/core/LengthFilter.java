@@ -1,6 +1,7 @@
 package com.mitchellbosecke.pebble.extension.core;
 
 import com.mitchellbosecke.pebble.extension.Filter;
+import com.mitchellbosecke.pebble.extension.Pure;
 
 import java.lang.reflect.Array;
 import java.util.Collection;
@@ -8,7 +9,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
-public class LengthFilter implements Filter {
+public class LengthFilter implements Filter, Pure {
 
     @Override
     public List<String> getArgumentNames() {
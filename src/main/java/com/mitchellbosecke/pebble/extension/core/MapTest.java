@@ -12,8 +12,9 @@ import java.util.List;
 import java.util.Map;
 
 import com.mitchellbosecke.pebble.extension.Test;
+import com.mitchellbosecke.pebble.extension.Pure;
 
-public class MapTest implements Test {
+public class MapTest implements Test, Pure {
 
     @Override
     public List<String> getArgumentNames() {
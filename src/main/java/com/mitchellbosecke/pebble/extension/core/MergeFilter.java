@@ -15,8 +15,9 @@ import java.util.List;
 import java.util.Map;
 
 import com.mitchellbosecke.pebble.extension.Filter;
+import com.mitchellbosecke.pebble.extension.Pure;
 
-public class MergeFilter implements Filter {
+public class MergeFilter implements Filter, Pure {
 
     public static final String FILTER_NAME = "merge";
 
@@ -12,9 +12,10 @@ import java.util.List;
 import java.util.Map;
 
 import com.mitchellbosecke.pebble.extension.Function;
+import com.mitchellbosecke.pebble.extension.Pure;
 import com.mitchellbosecke.pebble.utils.OperatorUtils;
 
-public class MinFunction implements Function {
+public class MinFunction implements Function, Pure {
 
     @Override
     public List<String> getArgumentNames() {
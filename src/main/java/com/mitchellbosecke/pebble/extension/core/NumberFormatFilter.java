@@ -9,6 +9,7 @@
 package com.mitchellbosecke.pebble.extension.core;
 
 import com.mitchellbosecke.pebble.extension.Filter;
+import com.mitchellbosecke.pebble.extension.Pure;
 import com.mitchellbosecke.pebble.template.EvaluationContext;
 
 import java.text.DecimalFormat;
@@ -20,7 +21,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
-public class NumberFormatFilter implements Filter {
+public class NumberFormatFilter implements Filter, Pure {
 
     private final List<String> argumentNames = new ArrayList<>();
 
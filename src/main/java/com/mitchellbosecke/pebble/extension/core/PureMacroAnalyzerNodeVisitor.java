@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.extension.core;
+
+import com.mitchellbosecke.pebble.extension.AbstractNodeVisitor;
+import com.mitchellbosecke.pebble.extension.ExtensionRegistry;
+import com.mitchellbosecke.pebble.extension.Pure;
+import com.mitchellbosecke.pebble.node.ArgumentsNode;
+import com.mitchellbosecke.pebble.node.AutoEscapeNode;
+import com.mitchellbosecke.pebble.node.BodyNode;
+import com.mitchellbosecke.pebble.node.FlushNode;
+import com.mitchellbosecke.pebble.node.ForNode;
+import com.mitchellbosecke.pebble.node.IfNode;
+import com.mitchellbosecke.pebble.node.MacroNode;
+import com.mitchellbosecke.pebble.node.NamedArgumentNode;
+import com.mitchellbosecke.pebble.node.Node;
+import com.mitchellbosecke.pebble.node.PositionalArgumentNode;
+import com.mitchellbosecke.pebble.node.PrintNode;
+import com.mitchellbosecke.pebble.node.RenderableNode;
+import com.mitchellbosecke.pebble.node.SetNode;
+import com.mitchellbosecke.pebble.node.TestInvocationExpression;
+import com.mitchellbosecke.pebble.node.TextNode;
+import com.mitchellbosecke.pebble.node.expression.ArrayExpression;
+import com.mitchellbosecke.pebble.node.expression.BinaryExpression;
+import com.mitchellbosecke.pebble.node.expression.ContextVariableExpression;
+import com.mitchellbosecke.pebble.node.expression.Expression;
+import com.mitchellbosecke.pebble.node.expression.FilterInvocationExpression;
+import com.mitchellbosecke.pebble.node.expression.FunctionOrMacroInvocationExpression;
+import com.mitchellbosecke.pebble.node.expression.GetAttributeExpression;
+import com.mitchellbosecke.pebble.node.expression.LiteralBooleanExpression;
+import com.mitchellbosecke.pebble.node.expression.LiteralDoubleExpression;
+import com.mitchellbosecke.pebble.node.expression.LiteralLongExpression;
+import com.mitchellbosecke.pebble.node.expression.LiteralNullExpression;
+import com.mitchellbosecke.pebble.node.expression.LiteralStringExpression;
+import com.mitchellbosecke.pebble.node.expression.MapExpression;
+import com.mitchellbosecke.pebble.node.expression.RenderableNodeExpression;
+import com.mitchellbosecke.pebble.node.expression.TernaryExpression;
+import com.mitchellbosecke.pebble.node.expression.UnaryExpression;
+import com.mitchellbosecke.pebble.template.PebbleTemplateImpl;
+import com.mitchellbosecke.pebble.utils.Pair;
+
+import java.util.Map;
+
+/**
+ * Finds the macros whose output only depends on their arguments and the
+ * locale, so that it can be memoized.
+ * <p>
+ * A macro can only read its own arguments and the variables it sets itself.
+ * It is pure if it does not use the "_self" or "_context" variables, calls
+ * no other macros, uses no tags other than "if", "for", "set", "autoescape"
+ * and "flush" and only uses filters, tests and functions marked as
+ * {@link Pure}. The same applies to the default values of its arguments.
+ *
+ * @author mbosecke
+ */
+public class PureMacroAnalyzerNodeVisitor extends AbstractNodeVisitor {
+
+    private final ExtensionRegistry extensionRegistry;
+
+    public PureMacroAnalyzerNodeVisitor(PebbleTemplateImpl template) {
+        super(template);
+        this.extensionRegistry = template.getExtensionRegistry();
+    }
+
+    @Override
+    public void visit(MacroNode node) {
+        if (isPure(node.getArgs()) && isPure(node.getBody())) {
+            getTemplate().setMacroPure(node.getName());
+        }
+    }
+
+    private boolean isPure(Node node) {
+        if (node instanceof BodyNode) {
+            for (RenderableNode child : ((BodyNode) node).getChildren()) {
+                if (!isPure(child)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (node instanceof TextNode || node instanceof FlushNode) {
+            return true;
+        } else if (node instanceof PrintNode) {
+            return isPure(((PrintNode) node).getExpression());
+        } else if (node instanceof SetNode) {
+            // the variable is set in the scope of the macro
+            return isPure(((SetNode) node).getValue());
+        } else if (node instanceof AutoEscapeNode) {
+            return isPure(((AutoEscapeNode) node).getBody());
+        } else if (node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+            for (Pair<Expression<?>, BodyNode> conditionWithBody : ifNode.getConditionsWithBodies()) {
+                if (!isPure(conditionWithBody.getLeft()) || !isPure(conditionWithBody.getRight())) {
+                    return false;
+                }
+            }
+            return ifNode.getElseBody() == null || isPure(ifNode.getElseBody());
+        } else if (node instanceof ForNode) {
+            ForNode forNode = (ForNode) node;
+            return isPure(forNode.getIterable()) && isPure(forNode.getBody())
+                    && (forNode.getElseBody() == null || isPure(forNode.getElseBody()));
+        }
+        return node instanceof Expression && isPure((Expression<?>) node);
+    }
+
+    private boolean isPure(Expression<?> expression) {
+        if (expression == null || expression instanceof LiteralStringExpression
+                || expression instanceof LiteralLongExpression || expression instanceof LiteralDoubleExpression
+                || expression instanceof LiteralBooleanExpression || expression instanceof LiteralNullExpression) {
+            return true;
+        } else if (expression instanceof ContextVariableExpression) {
+            String name = ((ContextVariableExpression) expression).getName();
+            return !"_self".equals(name) && !"_context".equals(name);
+        } else if (expression instanceof UnaryExpression) {
+            return isPure(((UnaryExpression) expression).getChildExpression());
+        } else if (expression instanceof BinaryExpression) {
+            // filters and tests are the right hand side of a binary expression
+            return isPure(((BinaryExpression<?>) expression).getLeftExpression())
+                    && isPure(((BinaryExpression<?>) expression).getRightExpression());
+        } else if (expression instanceof FilterInvocationExpression) {
+            FilterInvocationExpression filter = (FilterInvocationExpression) expression;
+            return extensionRegistry.getFilter(filter.getFilterName()) instanceof Pure && isPure(filter.getArgs());
+        } else if (expression instanceof TestInvocationExpression) {
+            TestInvocationExpression test = (TestInvocationExpression) expression;
+            return extensionRegistry.getTest(test.getTestName()) instanceof Pure && isPure(test.getArgs());
+        } else if (expression instanceof FunctionOrMacroInvocationExpression) {
+            // macros are not pure as another template may override them
+            FunctionOrMacroInvocationExpression function = (FunctionOrMacroInvocationExpression) expression;
+            return extensionRegistry.getFunction(function.getFunctionName()) instanceof Pure
+                    && isPure(function.getArguments());
+        } else if (expression instanceof TernaryExpression) {
+            TernaryExpression ternary = (TernaryExpression) expression;
+            return isPure(ternary.getExpression1()) && isPure(ternary.getExpression2())
+                    && isPure(ternary.getExpression3());
+        } else if (expression instanceof ArrayExpression) {
+            for (Expression<?> value : ((ArrayExpression) expression).getValues()) {
+                if (!isPure(value)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (expression instanceof MapExpression) {
+            for (Map.Entry<Expression<?>, Expression<?>> entry : ((MapExpression) expression).getEntries()
+                    .entrySet()) {
+                if (!isPure(entry.getKey()) || !isPure(entry.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (expression instanceof GetAttributeExpression) {
+            GetAttributeExpression attribute = (GetAttributeExpression) expression;
+            return isPure(attribute.getNode()) && isPure(attribute.getAttributeNameExpression())
+                    && isPure(attribute.getArgumentsNode());
+        } else if (expression instanceof RenderableNodeExpression) {
+            return isPure(((RenderableNodeExpression) expression).getNode());
+        }
+        return false;
+    }
+
+    private boolean isPure(ArgumentsNode args) {
+        if (args == null) {
+            return true;
+        }
+        if (args.getPositionalArgs() != null) {
+            for (PositionalArgumentNode arg : args.getPositionalArgs()) {
+                if (!isPure(arg.getValueExpression())) {
+                    return false;
+                }
+            }
+        }
+        if (args.getNamedArgs() != null) {
+            for (NamedArgumentNode arg : args.getNamedArgs()) {
+                if (!isPure(arg.getValueExpression())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
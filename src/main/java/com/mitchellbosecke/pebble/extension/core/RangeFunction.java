@@ -13,13 +13,14 @@ import java.util.List;
 import java.util.Map;
 
 import com.mitchellbosecke.pebble.extension.Function;
+import com.mitchellbosecke.pebble.extension.Pure;
 
 /**
  * Range function to iterate over long or a string with a length of 1.
  *
  * @author Eric Bussieres
  */
-public class RangeFunction implements Function {
+public class RangeFunction implements Function, Pure {
     public static final String FUNCTION_NAME = "range";
     private static final String PARAM_END = "end";
     private static final String PARAM_INCREMENT = "increment";
@@ -8,6 +8,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 import com.mitchellbosecke.pebble.extension.Filter;
+import com.mitchellbosecke.pebble.extension.Pure;
 
 /**
  * This class implements the 'replace' filter.
@@ -15,7 +16,7 @@ import com.mitchellbosecke.pebble.extension.Filter;
  * @author Thomas Hunziker
  *
  */
-public class ReplaceFilter implements Filter {
+public class ReplaceFilter implements Filter, Pure {
 
     public static final String FILTER_NAME = "replace";
 
@@ -13,6 +13,7 @@ import java.util.List;
 import java.util.Map;
 
 import com.mitchellbosecke.pebble.extension.Filter;
+import com.mitchellbosecke.pebble.extension.Pure;
 
 /**
  * Sort list items in the reverse order
@@ -20,7 +21,7 @@ import com.mitchellbosecke.pebble.extension.Filter;
  * @author Barakat Soror
  *
  */
-public class RsortFilter implements Filter {
+public class RsortFilter implements Filter, Pure {
 
     @Override
     public List<String> getArgumentNames() {
@@ -9,6 +9,7 @@
 package com.mitchellbosecke.pebble.extension.core;
 
 import com.mitchellbosecke.pebble.extension.Filter;
+import com.mitchellbosecke.pebble.extension.Pure;
 
 import java.lang.reflect.Array;
 import java.util.ArrayList;
@@ -16,7 +17,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
-public class SliceFilter implements Filter {
+public class SliceFilter implements Filter, Pure {
 
     private final List<String> argumentNames = new ArrayList<>();
 
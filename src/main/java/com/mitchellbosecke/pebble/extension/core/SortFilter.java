@@ -13,8 +13,9 @@ import java.util.List;
 import java.util.Map;
 
 import com.mitchellbosecke.pebble.extension.Filter;
+import com.mitchellbosecke.pebble.extension.Pure;
 
-public class SortFilter implements Filter {
+public class SortFilter implements Filter, Pure {
 
     @Override
     public List<String> getArgumentNames() {
@@ -0,0 +1,57 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.extension.core;
+
+import com.mitchellbosecke.pebble.extension.AbstractNodeVisitor;
+import com.mitchellbosecke.pebble.node.RenderableNode;
+import com.mitchellbosecke.pebble.node.RootNode;
+import com.mitchellbosecke.pebble.node.TextNode;
+import com.mitchellbosecke.pebble.template.PebbleTemplateImpl;
+
+import java.util.List;
+
+/**
+ * Pre-renders the templates which consist of nothing but text, so that
+ * including them only takes writing their content.
+ *
+ * @author mbosecke
+ */
+public class StaticTemplateAnalyzerNodeVisitor extends AbstractNodeVisitor {
+
+    public StaticTemplateAnalyzerNodeVisitor(PebbleTemplateImpl template) {
+        super(template);
+    }
+
+    @Override
+    public void visit(RootNode node) {
+        List<RenderableNode> children = node.getBody().getChildren();
+        int length = 0;
+        for (RenderableNode child : children) {
+            if (!(child instanceof TextNode)) {
+                return;
+            }
+            length += ((TextNode) child).getData().length;
+        }
+
+        // a single text node shares its content with the template
+        if (children.size() == 1) {
+            this.getTemplate().setStaticContent(((TextNode) children.get(0)).getData());
+            return;
+        }
+
+        char[] content = new char[length];
+        int offset = 0;
+        for (RenderableNode child : children) {
+            char[] data = ((TextNode) child).getData();
+            System.arraycopy(data, 0, content, offset, data.length);
+            offset += data.length;
+        }
+        this.getTemplate().setStaticContent(content);
+    }
+}
@@ -9,11 +9,12 @@
 package com.mitchellbosecke.pebble.extension.core;
 
 import com.mitchellbosecke.pebble.extension.Filter;
+import com.mitchellbosecke.pebble.extension.Pure;
 
 import java.util.List;
 import java.util.Map;
 
-public class TrimFilter implements Filter {
+public class TrimFilter implements Filter, Pure {
 
     @Override
     public List<String> getArgumentNames() {
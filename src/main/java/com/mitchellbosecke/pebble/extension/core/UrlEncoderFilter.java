@@ -9,13 +9,14 @@
 package com.mitchellbosecke.pebble.extension.core;
 
 import com.mitchellbosecke.pebble.extension.Filter;
+import com.mitchellbosecke.pebble.extension.Pure;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.List;
 import java.util.Map;
 
-public class UrlEncoderFilter implements Filter {
+public class UrlEncoderFilter implements Filter, Pure {
 
     @Override
     public List<String> getArgumentNames() {
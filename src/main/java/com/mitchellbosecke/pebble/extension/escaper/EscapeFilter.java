@@ -10,6 +10,7 @@ package com.mitchellbosecke.pebble.extension.escaper;
 
 import com.coverity.security.Escape;
 import com.mitchellbosecke.pebble.extension.Filter;
+import com.mitchellbosecke.pebble.extension.Pure;
 import com.mitchellbosecke.pebble.utils.StringUtils;
 
 import java.util.ArrayList;
@@ -17,7 +18,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class EscapeFilter implements Filter {
+public class EscapeFilter implements Filter, Pure {
 
     private String defaultStrategy = "html";
 
@@ -24,5 +24,9 @@ public class EscaperNodeVisitorFactory implements NodeVisitorFactory{
         autoEscaping = auto;
     }
 
+    public boolean isAutoEscaping() {
+        return autoEscaping;
+    }
+
 
 }
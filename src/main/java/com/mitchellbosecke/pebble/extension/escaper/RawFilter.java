@@ -12,8 +12,9 @@ import java.util.List;
 import java.util.Map;
 
 import com.mitchellbosecke.pebble.extension.Filter;
+import com.mitchellbosecke.pebble.extension.Pure;
 
-public class RawFilter implements Filter {
+public class RawFilter implements Filter, Pure {
 
     public List<String> getArgumentNames() {
         return null;
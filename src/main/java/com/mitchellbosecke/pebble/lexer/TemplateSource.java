@@ -1,5 +1,7 @@
 package com.mitchellbosecke.pebble.lexer;
 
+import com.mitchellbosecke.pebble.utils.TemplateContentReader;
+
 import java.io.IOException;
 import java.io.Reader;
 import java.util.Arrays;
@@ -58,8 +60,16 @@ public class TemplateSource implements CharSequence {
      */
     public TemplateSource(Reader reader, String filename) throws IOException {
         this.filename = filename;
-        this.source = new char[DEFAULT_CAPACITY];
-        copyReaderIntoCharArray(reader);
+        if (reader instanceof TemplateContentReader) {
+            // the content has already been decoded by the loader
+            TemplateContentReader contentReader = (TemplateContentReader) reader;
+            this.source = contentReader.getContent();
+            this.size = contentReader.getLength();
+            reader.close();
+        } else {
+            this.source = new char[DEFAULT_CAPACITY];
+            copyReaderIntoCharArray(reader);
+        }
     }
 
     /**
@@ -87,9 +97,7 @@ public class TemplateSource implements CharSequence {
      * @param amount
      */
     private void append(char[] characters, int amount) {
-        for (int i = 0; i < amount; ++i) {
-            this.source[size + i] = characters[i];
-        }
+        System.arraycopy(characters, 0, this.source, size, amount);
         size += amount;
     }
 
@@ -202,8 +210,16 @@ public class TemplateSource implements CharSequence {
         return size;
     }
 
+    /**
+     * Returns the character at the given index of the remaining source, or
+     * the null character if the index lies beyond the end of the source, so
+     * that looking ahead never fails.
+     */
     @Override
     public char charAt(int index) {
+        if (index >= size) {
+            return '\0';
+        }
         return source[offset + index];
     }
 
@@ -133,6 +133,15 @@ public class TokenStream {
         return this.tokens.get(current);
     }
 
+    /**
+     * Returns the position of the current token within the stream.
+     * 
+     * @return The index of the current token
+     */
+    public int getPosition() {
+        return current;
+    }
+
     public String getFilename() {
         return filename;
     }
@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.loader;
+
+import com.google.common.hash.HashCode;
+import com.mitchellbosecke.pebble.error.LoaderException;
+import com.mitchellbosecke.pebble.utils.PathUtils;
+import com.mitchellbosecke.pebble.utils.TemplateContentReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loads templates from a single archive file built by the
+ * {@link ArchivePacker}.
+ * <p>
+ * The archive is memory-mapped and its index read once when the loader is
+ * created, so that looking up a template is a probe of the index followed by
+ * decoding a slice of the mapped file. The archive must not be modified while
+ * it is in use; a new archive requires a new loader.
+ * <p>
+ * The prefix and suffix are added to the template name to form the path of
+ * the template within the archive, in which directories are always separated
+ * by forward slashes.
+ *
+ * @author mbosecke
+ *
+ */
+public class ArchiveLoader implements Loader<String>, MetadataLoader<String> {
+
+    private static final Logger logger = LoggerFactory.getLogger(ArchiveLoader.class);
+
+    private final ByteBuffer content;
+
+    private final Map<String, Entry> index;
+
+    private String prefix;
+
+    private String suffix;
+
+    private String charset = "UTF-8";
+
+    private char expectedSeparator = '/';
+
+    /**
+     * Opens an archive and reads its index.
+     *
+     * @param archive The archive built by the {@link ArchivePacker}
+     * @throws IOException Thrown if the archive can not be read or is not a
+     *                     valid archive
+     */
+    public ArchiveLoader(File archive) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(archive, "r")) {
+            long length = file.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("The archive " + archive + " is too large");
+            }
+            // the mapping remains valid once the file is closed
+            this.content = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+        this.index = readIndex(content.duplicate(), archive);
+        logger.debug("Opened the template archive {} containing {} templates.", archive, index.size());
+    }
+
+    private static Map<String, Entry> readIndex(ByteBuffer buffer, File archive) throws IOException {
+        try {
+            if (buffer.getInt() != ArchivePacker.MAGIC || buffer.getInt() != ArchivePacker.VERSION) {
+                throw new IOException(archive + " is not a template archive");
+            }
+            int count = buffer.getInt();
+            Map<String, Entry> index = new HashMap<>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[buffer.getShort() & 0xffff];
+                buffer.get(name);
+                int offset = buffer.getInt();
+                int length = buffer.getInt();
+                byte[] hash = new byte[ArchivePacker.HASH_LENGTH];
+                buffer.get(hash);
+                if (offset < 0 || length < 0 || (long) offset + length > buffer.limit()) {
+                    throw new IOException("The template archive " + archive + " is corrupt");
+                }
+                index.put(new String(name, ArchivePacker.NAME_CHARSET), new Entry(offset, length, hash));
+            }
+            return Collections.unmodifiableMap(index);
+        } catch (RuntimeException e) {
+            throw new IOException("The template archive " + archive + " is corrupt", e);
+        }
+    }
+
+    @Override
+    public Reader getReader(String templateName) throws LoaderException {
+        String location = getLocation(templateName);
+        logger.debug("Looking for template in {}.", location);
+
+        Entry entry = index.get(location);
+        if (entry == null) {
+            throw new LoaderException(null, "Could not find template \"" + location + "\"");
+        }
+
+        ByteBuffer bytes = content.duplicate();
+        bytes.limit(entry.offset + entry.length);
+        bytes.position(entry.offset);
+
+        // the decoded buffer is backed by an array which is handed to the lexer as it is
+        CharBuffer chars = Charset.forName(charset).decode(bytes);
+        return new TemplateContentReader(chars.array(), chars.limit());
+    }
+
+    @Override
+    public TemplateMetadata getMetadata(String templateName) throws LoaderException {
+        String location = getLocation(templateName);
+        Entry entry = index.get(location);
+        if (entry == null) {
+            throw new LoaderException(null, "Could not find template \"" + location + "\"");
+        }
+        return new TemplateMetadata(TemplateMetadata.UNKNOWN, entry.length, HashCode.fromBytes(entry.hash).toString());
+    }
+
+    /**
+     * Returns the hash of the content of a template, as recorded when the
+     * archive was built.
+     *
+     * @param templateName The name of the template
+     * @return The hash, or null if the archive does not contain the template
+     */
+    public String getHash(String templateName) {
+        Entry entry = index.get(getLocation(templateName));
+        return entry == null ? null : HashCode.fromBytes(entry.hash).toString();
+    }
+
+    /**
+     * Returns the paths of all templates in the archive.
+     *
+     * @return The paths, which include the prefix and suffix of the templates
+     */
+    public Set<String> getPaths() {
+        return index.keySet();
+    }
+
+    private String getLocation(String templateName) {
+        StringBuilder path = new StringBuilder(128);
+        if (getPrefix() != null) {
+            path.append(getPrefix());
+            if (!getPrefix().isEmpty() && !getPrefix().endsWith(Character.toString(expectedSeparator))) {
+                path.append(expectedSeparator);
+            }
+        }
+        path.append(templateName);
+        if (getSuffix() != null) {
+            path.append(getSuffix());
+        }
+        return path.toString();
+    }
+
+    public String getSuffix() {
+        return suffix;
+    }
+
+    @Override
+    public void setSuffix(String suffix) {
+        this.suffix = suffix;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    @Override
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public String getCharset() {
+        return charset;
+    }
+
+    @Override
+    public void setCharset(String charset) {
+        this.charset = charset;
+    }
+
+    @Override
+    public String resolveRelativePath(String relativePath, String anchorPath) {
+        return PathUtils.resolveRelativePath(relativePath, anchorPath, expectedSeparator);
+    }
+
+    @Override
+    public String createCacheKey(String templateName) {
+        return templateName;
+    }
+
+    /**
+     * The location of a template within the archive.
+     */
+    private static class Entry {
+
+        private final int offset;
+
+        private final int length;
+
+        private final byte[] hash;
+
+        private Entry(int offset, int length, byte[] hash) {
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+}
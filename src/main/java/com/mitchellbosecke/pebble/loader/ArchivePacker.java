@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.loader;
+
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Builds the single archive file read by the {@link ArchiveLoader}.
+ * <p>
+ * The archive starts with an index holding the path, offset, length and hash
+ * of every template, followed by the raw content of the templates. The
+ * content is stored as it is and decoded by the loader with its charset.
+ * <p>
+ * The packer can also be run from the command line:
+ *
+ * <pre>
+ * java com.mitchellbosecke.pebble.loader.ArchivePacker &lt;directory&gt; &lt;archive&gt;
+ * </pre>
+ *
+ * @author mbosecke
+ *
+ */
+public class ArchivePacker {
+
+    static final int MAGIC = 0x50424152;
+
+    static final int VERSION = 1;
+
+    static final int HASH_LENGTH = 16;
+
+    static final Charset NAME_CHARSET = Charset.forName("UTF-8");
+
+    private final Map<String, byte[]> templates = new TreeMap<>();
+
+    /**
+     * Adds a template to the archive, replacing any template with the same
+     * path.
+     *
+     * @param path    The path of the template within the archive, with
+     *                directories separated by forward slashes
+     * @param content The content of the template
+     * @return This packer
+     */
+    public ArchivePacker add(String path, byte[] content) {
+        if (path.getBytes(NAME_CHARSET).length > 0xffff) {
+            throw new IllegalArgumentException("The path is too long: " + path);
+        }
+        templates.put(path, content);
+        return this;
+    }
+
+    /**
+     * Adds every file found in a directory and its subdirectories, using
+     * their path relative to the directory as the path within the archive.
+     *
+     * @param directory The directory
+     * @return This packer
+     * @throws IOException Thrown if a file can not be read
+     */
+    public ArchivePacker addDirectory(File directory) throws IOException {
+        addDirectory(directory, "");
+        return this;
+    }
+
+    private void addDirectory(File directory, String path) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list the files of " + directory);
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                addDirectory(file, path + file.getName() + "/");
+            } else {
+                add(path + file.getName(), Files.readAllBytes(file.toPath()));
+            }
+        }
+    }
+
+    /**
+     * Writes the archive, replacing the given file.
+     *
+     * @param archive The archive to write
+     * @throws IOException Thrown if the archive can not be written
+     */
+    public void write(File archive) throws IOException {
+        long offset = 12;
+        for (String path : templates.keySet()) {
+            offset += 2 + path.getBytes(NAME_CHARSET).length + 4 + 4 + HASH_LENGTH;
+        }
+        long size = offset;
+        for (byte[] content : templates.values()) {
+            size += content.length;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("The templates do not fit into a single archive");
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(archive)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(templates.size());
+            for (Map.Entry<String, byte[]> template : templates.entrySet()) {
+                byte[] path = template.getKey().getBytes(NAME_CHARSET);
+                byte[] content = template.getValue();
+                out.writeShort(path.length);
+                out.write(path);
+                out.writeInt((int) offset);
+                out.writeInt(content.length);
+                out.write(Hashing.murmur3_128().hashBytes(content).asBytes());
+                offset += content.length;
+            }
+            for (byte[] content : templates.values()) {
+                out.write(content);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: ArchivePacker <directory> <archive>");
+            System.exit(1);
+        }
+        new ArchivePacker().addDirectory(new File(args[0])).write(new File(args[1]));
+    }
+}
@@ -0,0 +1,37 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.loader;
+
+import com.mitchellbosecke.pebble.error.LoaderException;
+
+import java.io.Reader;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Implemented by loaders which can fetch several templates at once more
+ * cheaply than one after the other, such as loaders backed by a remote store.
+ * The {@link com.mitchellbosecke.pebble.PebbleEngine} fetches the templates
+ * referenced by a compiled template, and the templates to preload, in a
+ * single batch.
+ *
+ * @author mbosecke
+ */
+public interface BulkLoader<T> {
+
+    /**
+     * Returns the readers of the given templates. Templates which can not be
+     * found are left out; they are looked up one by one once they are needed.
+     *
+     * @param cacheKeys The cache keys created by the loader for the templates
+     * @return The readers by cache key
+     * @throws LoaderException If the templates can not be fetched
+     */
+    Map<T, Reader> getReaders(Collection<T> cacheKeys) throws LoaderException;
+}
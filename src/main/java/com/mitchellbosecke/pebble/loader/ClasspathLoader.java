@@ -14,17 +14,45 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 
 /**
  * Uses a classloader to find templates located on the classpath.
+ * <p>
+ * Optionally the templates under the prefix are indexed once, so that a
+ * template is opened straight from the directory or jar containing it and,
+ * unless the index was read from index files, a missing template is reported
+ * without searching the classpath at all.
  *
  * @author mbosecke
  *
  */
-public class ClasspathLoader implements Loader<String> {
+public class ClasspathLoader implements Loader<String>, MetadataLoader<String> {
 
     private static final Logger logger = LoggerFactory.getLogger(ClasspathLoader.class);
 
+    /**
+     * The name of the resource listing the templates of a prefix directory.
+     */
+    public static final String INDEX_FILE_NAME = "pebble-templates.idx";
+
+    private static final Map<String, URL> NO_INDEX = Collections.emptyMap();
+
     private String prefix;
 
     private String suffix;
@@ -35,6 +63,20 @@ public class ClasspathLoader implements Loader<String> {
 
     private final ClassLoader rcl;
 
+    private volatile boolean indexed = false;
+
+    /**
+     * The location of every template under the prefix, or {@link #NO_INDEX}
+     * if the templates could not be indexed.
+     */
+    private volatile Map<String, URL> index;
+
+    /**
+     * Whether the index was read from index files, which do not list the
+     * templates of the directories and jars shipping none.
+     */
+    private volatile boolean partialIndex;
+
     public ClasspathLoader(ClassLoader classLoader) {
         rcl = classLoader;
     }
@@ -51,26 +93,23 @@ public class ClasspathLoader implements Loader<String> {
 
         InputStream is = null;
 
-        // append the prefix and make sure prefix ends with a separator character
-        StringBuilder path = new StringBuilder(128);
-        if (getPrefix() != null) {
-
-            path.append(getPrefix());
-
-            // we do NOT use OS dependent separators here; getResourceAsStream
-            // explicitly requires forward slashes.
-            if (!getPrefix().endsWith(Character.toString(expectedSeparator))) {
-                path.append(expectedSeparator);
-            }
-        }
-        path.append(templateName);
-        if (getSuffix() != null)
-            path.append(getSuffix());
-        String location = path.toString();
+        String location = getLocation(templateName);
         logger.debug("Looking for template in {}.", location);
 
         // perform the lookup
-        is = rcl.getResourceAsStream(location);
+        Map<String, URL> index = getIndex();
+        if (index == null) {
+            is = rcl.getResourceAsStream(location);
+        } else {
+            URL url = getIndexedResource(index, location);
+            if (url != null) {
+                try {
+                    is = url.openStream();
+                } catch (IOException e) {
+                    throw new LoaderException(e, "Could not read template \"" + location + "\"");
+                }
+            }
+        }
 
         if (is == null) {
             throw new LoaderException(null, "Could not find template \"" + location + "\"");
@@ -85,6 +124,246 @@ public class ClasspathLoader implements Loader<String> {
         return reader;
     }
 
+    @Override
+    public TemplateMetadata getMetadata(String templateName) throws LoaderException {
+        String location = getLocation(templateName);
+        Map<String, URL> index = getIndex();
+        URL url = index == null ? rcl.getResource(location) : getIndexedResource(index, location);
+        if (url == null) {
+            throw new LoaderException(null, "Could not find template \"" + location + "\"");
+        }
+        try {
+            return TemplateMetadata.of(url);
+        } catch (IOException e) {
+            throw new LoaderException(e, "Could not read template \"" + location + "\"");
+        }
+    }
+
+    private URL getIndexedResource(Map<String, URL> index, String location) {
+        URL url = index.get(location);
+        if (url == null && partialIndex) {
+            url = rcl.getResource(location);
+        }
+        return url;
+    }
+
+    private String getLocation(String templateName) {
+        // append the prefix and make sure prefix ends with a separator character
+        StringBuilder path = new StringBuilder(128);
+        path.append(getPrefixPath());
+        path.append(templateName);
+        if (getSuffix() != null)
+            path.append(getSuffix());
+        return path.toString();
+    }
+
+    /**
+     * Returns the prefix ending with a separator, or an empty string if there
+     * is no prefix.
+     */
+    private String getPrefixPath() {
+        if (getPrefix() == null || getPrefix().isEmpty()) {
+            return "";
+        }
+        // we do NOT use OS dependent separators here; getResourceAsStream
+        // explicitly requires forward slashes.
+        if (getPrefix().endsWith(Character.toString(expectedSeparator))) {
+            return getPrefix();
+        }
+        return getPrefix() + expectedSeparator;
+    }
+
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    /**
+     * Enables answering template lookups from an index of the templates
+     * under the prefix, built once when the first template is loaded.
+     * <p>
+     * The index is read from the {@value #INDEX_FILE_NAME} resources found in
+     * the prefix directory, each listing the paths of the templates next to
+     * it relative to the prefix, one per line, such as those written by
+     * {@link #writeIndex(File)} at build time. A template missing from those
+     * resources is looked up through the classloader, since the directories
+     * and jars shipping no index are not listed. Without any such resource
+     * the directories and jars of the classpath are scanned instead, and a
+     * template missing from the index is reported as missing without asking
+     * the classloader.
+     *
+     * @param indexed Whether or not to use an index of the templates
+     */
+    public synchronized void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+        this.index = null;
+    }
+
+    private Map<String, URL> getIndex() {
+        if (!indexed) {
+            return null;
+        }
+        Map<String, URL> result = index;
+        if (result == null) {
+            synchronized (this) {
+                result = index;
+                if (result == null) {
+                    result = buildIndex();
+                    index = result;
+                }
+            }
+        }
+        return result == NO_INDEX ? null : result;
+    }
+
+    private Map<String, URL> buildIndex() {
+        String prefixPath = getPrefixPath();
+        Map<String, URL> templates = new HashMap<>();
+        partialIndex = false;
+        try {
+            Enumeration<URL> indexFiles = rcl.getResources(prefixPath + INDEX_FILE_NAME);
+            if (indexFiles.hasMoreElements()) {
+                while (indexFiles.hasMoreElements()) {
+                    readIndex(indexFiles.nextElement(), prefixPath, templates);
+                }
+                partialIndex = true;
+                logger.debug("Read an index of {} templates under {}.", templates.size(), prefixPath);
+                return templates;
+            }
+            for (URL root : getClasspathRoots()) {
+                try {
+                    scan(root, false, prefixPath, templates);
+                } catch (IOException e) {
+                    // an entry of the classpath which is not a valid jar can not contain templates either
+                    logger.debug("Could not scan {} for templates.", root, e);
+                }
+            }
+            // the locations of the prefix directory cover classloaders of any other kind
+            for (URL directory : Collections.list(rcl.getResources(prefixPath))) {
+                scan(directory, true, prefixPath, templates);
+            }
+        } catch (IOException | URISyntaxException e) {
+            logger.warn("Could not index the templates under {}, looking them up one by one instead.", prefixPath, e);
+            return NO_INDEX;
+        }
+        if (templates.isEmpty()) {
+            logger.warn("Could not find any template under {} to index, looking them up one by one instead.",
+                    prefixPath);
+            return NO_INDEX;
+        }
+        logger.debug("Indexed {} templates under {}.", templates.size(), prefixPath);
+        return templates;
+    }
+
+    private static void readIndex(URL indexFile, String prefixPath, Map<String, URL> templates) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(indexFile.openStream(), "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#") && !templates.containsKey(prefixPath + line)) {
+                    templates.put(prefixPath + line, new URL(indexFile, line));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the directories and jars of the classpath which may contain
+     * templates, in the order the classloader searches them.
+     */
+    private Set<URL> getClasspathRoots() throws IOException {
+        Deque<ClassLoader> loaders = new ArrayDeque<>();
+        for (ClassLoader loader = rcl; loader != null; loader = loader.getParent()) {
+            loaders.push(loader);
+        }
+        Set<URL> roots = new LinkedHashSet<>();
+        for (ClassLoader loader : loaders) {
+            if (loader instanceof URLClassLoader) {
+                roots.addAll(Arrays.asList(((URLClassLoader) loader).getURLs()));
+            } else if (loader == ClassLoader.getSystemClassLoader()) {
+                for (String entry : System.getProperty("java.class.path", "").split(File.pathSeparator)) {
+                    if (!entry.isEmpty()) {
+                        roots.add(new File(entry).toURI().toURL());
+                    }
+                }
+            }
+        }
+        return roots;
+    }
+
+    /**
+     * Adds the templates found in a directory or jar of the classpath, or in
+     * the prefix directory itself, to the index. Templates found earlier take
+     * precedence.
+     */
+    private static void scan(URL url, boolean prefixDirectory, String prefixPath, Map<String, URL> templates)
+            throws IOException, URISyntaxException {
+        if ("file".equals(url.getProtocol())) {
+            File file = new File(url.toURI());
+            if (file.isFile()) {
+                try (JarFile jar = new JarFile(file)) {
+                    scan(jar, "jar:" + url + "!/", prefixPath, templates);
+                }
+            } else {
+                scan(prefixDirectory ? file : new File(file, prefixPath), prefixPath, templates);
+            }
+        } else if ("jar".equals(url.getProtocol())) {
+            JarURLConnection connection = (JarURLConnection) url.openConnection();
+            connection.setUseCaches(false);
+            try (JarFile jar = connection.getJarFile()) {
+                scan(jar, "jar:" + connection.getJarFileURL() + "!/", prefixPath, templates);
+            }
+        } else {
+            logger.debug("Can not index the templates in {}.", url);
+        }
+    }
+
+    private static void scan(File directory, String path, Map<String, URL> templates) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                scan(file, path + file.getName() + "/", templates);
+            } else if (!templates.containsKey(path + file.getName())) {
+                templates.put(path + file.getName(), file.toURI().toURL());
+            }
+        }
+    }
+
+    private static void scan(JarFile jar, String base, String prefixPath, Map<String, URL> templates)
+            throws IOException {
+        Enumeration<JarEntry> entries = jar.entries();
+        while (entries.hasMoreElements()) {
+            JarEntry entry = entries.nextElement();
+            String name = entry.getName();
+            if (!entry.isDirectory() && name.startsWith(prefixPath) && !templates.containsKey(name)) {
+                templates.put(name, new URL(base + name));
+            }
+        }
+    }
+
+    /**
+     * Writes the index of the templates found in a directory and its
+     * subdirectories into the directory, so that it can be packaged with the
+     * templates.
+     *
+     * @param directory The directory the prefix refers to
+     * @throws IOException Thrown if the directory can not be listed or the index can not be written
+     */
+    public static void writeIndex(File directory) throws IOException {
+        Map<String, URL> templates = new TreeMap<>();
+        scan(directory, "", templates);
+        templates.remove(INDEX_FILE_NAME);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(directory, INDEX_FILE_NAME)),
+                "UTF-8")) {
+            for (String path : templates.keySet()) {
+                writer.write(path);
+                writer.write('\n');
+            }
+        }
+    }
+
     public String getSuffix() {
         return suffix;
     }
@@ -99,8 +378,9 @@ public class ClasspathLoader implements Loader<String> {
     }
 
     @Override
-    public void setPrefix(String prefix) {
+    public synchronized void setPrefix(String prefix) {
         this.prefix = prefix;
+        this.index = null;
     }
 
     public String getCharset() {
@@ -8,10 +8,17 @@
  ******************************************************************************/
 package com.mitchellbosecke.pebble.loader;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.mitchellbosecke.pebble.error.LoaderException;
 
@@ -21,10 +28,33 @@ import com.mitchellbosecke.pebble.error.LoaderException;
  * a file loader to increase the chances of finding templates with varying
  * setups.
  *
+ * Change listeners are registered with every child loader which is an
+ * {@link ObservableLoader} watching the templates for changes.
+ *
+ * The loader remembers the cache key of every template name, which child
+ * loader found each template and, for a limited time, which names none of
+ * them could find, so that known names are neither looked up again in the
+ * children which do not have them nor cause new keys to be created. These
+ * caches are bounded and are cleared for a template when a child loader
+ * reports a change of it, when {@link #invalidate(String)} is called or when
+ * the prefix, suffix or charset changes. Until then, a template which starts
+ * to exist in a child loader preceding the one it was found in is not noticed.
+ *
  * @author mbosecke
  *
  */
-public class DelegatingLoader implements Loader<DelegatingLoaderCacheKey> {
+public class DelegatingLoader implements Loader<DelegatingLoaderCacheKey>, ObservableLoader,
+        MetadataLoader<DelegatingLoaderCacheKey> {
+
+    /**
+     * The maximum number of template names each cache holds by default.
+     */
+    public static final int DEFAULT_MAXIMUM_CACHE_SIZE = 1024;
+
+    /**
+     * How long a name which could not be found is remembered by default, in milliseconds.
+     */
+    public static final long DEFAULT_MISSING_TEMPLATE_TIME_TO_LIVE = 5000;
 
     private String prefix;
 
@@ -32,7 +62,23 @@ public class DelegatingLoader implements Loader<DelegatingLoaderCacheKey> {
 
     private String charset = "UTF-8";
 
+    private volatile int maximumCacheSize = DEFAULT_MAXIMUM_CACHE_SIZE;
 
+    private volatile long missingTemplateTimeToLiveNanos = TimeUnit.MILLISECONDS
+            .toNanos(DEFAULT_MISSING_TEMPLATE_TIME_TO_LIVE);
+
+    private final ConcurrentMap<String, DelegatingLoaderCacheKey> cacheKeys = new ConcurrentHashMap<>();
+
+    /**
+     * The index of the child loader which found each template.
+     */
+    private final ConcurrentMap<String, Integer> resolvedLoaders = new ConcurrentHashMap<>();
+
+    /**
+     * The point in time, measured with {@link System#nanoTime()}, until which
+     * each name which could not be found is considered missing.
+     */
+    private final ConcurrentMap<String, Long> missingTemplates = new ConcurrentHashMap<>();
 
     /**
      * Children loaders to delegate to. The loaders are used in order and as
@@ -54,27 +100,53 @@ public class DelegatingLoader implements Loader<DelegatingLoaderCacheKey> {
 
     @Override
     public Reader getReader(DelegatingLoaderCacheKey cacheKey) throws LoaderException {
+        String templateName = cacheKey.getTemplateName();
 
-        Reader reader = null;
+        Integer resolved = templateName == null ? null : resolvedLoaders.get(templateName);
+        if (resolved != null) {
+            Reader reader = this.getReader(cacheKey, resolved);
+            if (reader != null) {
+                return reader;
+            }
+            resolvedLoaders.remove(templateName, resolved);
+        }
+
+        Long missingUntil = templateName == null ? null : missingTemplates.get(templateName);
+        if (missingUntil != null) {
+            if (missingUntil - System.nanoTime() > 0) {
+                throw new LoaderException(null, "Could not find template \"" + templateName + "\"");
+            }
+            missingTemplates.remove(templateName, missingUntil);
+        }
 
         final int size = this.loaders.size();
         for (int i = 0; i < size; i++) {
-            Loader<?> loader = this.loaders.get(i);
-            Object delegatingKey = cacheKey.getDelegatingCacheKeys().get(i);
-            try {
-                reader = this.getReaderInner(loader, delegatingKey);
-                if (reader != null) {
-                    break;
+            Reader reader = this.getReader(cacheKey, i);
+            if (reader != null) {
+                if (templateName != null) {
+                    putBounded(resolvedLoaders, templateName, i);
                 }
-            } catch (LoaderException e) {
-                // do nothing
+                return reader;
             }
         }
-        if (reader == null) {
-            throw new LoaderException(null, "Could not find template \"" + cacheKey.getTemplateName() + "\"");
+
+        long timeToLive = missingTemplateTimeToLiveNanos;
+        if (templateName != null && timeToLive > 0) {
+            putBounded(missingTemplates, templateName, System.nanoTime() + timeToLive);
         }
+        throw new LoaderException(null, "Could not find template \"" + templateName + "\"");
+    }
 
-        return reader;
+    /**
+     * Returns the reader of a child loader or null if it can not find the
+     * template.
+     */
+    private Reader getReader(DelegatingLoaderCacheKey cacheKey, int index) {
+        try {
+            return this.getReaderInner(this.loaders.get(index), cacheKey.getDelegatingCacheKeys().get(index));
+        } catch (LoaderException e) {
+            return null;
+        }
     }
 
     private <T> Reader getReaderInner(Loader<T> delegatingLoader, Object cacheKey)
@@ -88,6 +160,57 @@ public class DelegatingLoader implements Loader<DelegatingLoaderCacheKey> {
         return delegatingLoader.getReader(castedKey);
     }
 
+    /**
+     * Returns the metadata from the child loader which found the template,
+     * or else from the first child loader providing metadata which finds it.
+     * Child loaders which do not provide metadata are skipped; if none of the
+     * others finds the template, the metadata is not known since one of the
+     * skipped loaders may hold it.
+     */
+    @Override
+    public TemplateMetadata getMetadata(DelegatingLoaderCacheKey cacheKey) throws LoaderException {
+        String templateName = cacheKey.getTemplateName();
+        Integer resolved = templateName == null ? null : resolvedLoaders.get(templateName);
+        if (resolved != null) {
+            return getMetadataInner(this.loaders.get(resolved), cacheKey.getDelegatingCacheKeys().get(resolved));
+        }
+
+        boolean skipped = false;
+        final int size = this.loaders.size();
+        for (int i = 0; i < size; i++) {
+            Loader<?> loader = this.loaders.get(i);
+            if (!(loader instanceof MetadataLoader)) {
+                skipped = true;
+                continue;
+            }
+            try {
+                return getMetadataInner(loader, cacheKey.getDelegatingCacheKeys().get(i));
+            } catch (LoaderException e) {
+                // try the next loader
+            }
+        }
+        if (skipped) {
+            return null;
+        }
+        throw new LoaderException(null, "Could not find template \"" + templateName + "\"");
+    }
+
+    private <T> TemplateMetadata getMetadataInner(Loader<T> delegatingLoader, Object cacheKey)
+            throws LoaderException {
+        if (!(delegatingLoader instanceof MetadataLoader)) {
+            return null;
+        }
+
+        // This unchecked cast is ok, because we ensure that the type of the
+        // cache key corresponds to the loader when we create the key.
+        @SuppressWarnings("unchecked")
+        MetadataLoader<T> metadataLoader = (MetadataLoader<T>) delegatingLoader;
+        @SuppressWarnings("unchecked")
+        T castedKey = (T) cacheKey;
+
+        return metadataLoader.getMetadata(castedKey);
+    }
+
     public String getSuffix() {
         return suffix;
     }
@@ -95,6 +218,7 @@ public class DelegatingLoader implements Loader<DelegatingLoaderCacheKey> {
     @Override
     public void setSuffix(String suffix) {
         this.suffix = suffix;
+        invalidateAll();
         for (Loader<?> loader : loaders) {
             loader.setSuffix(suffix);
         }
@@ -107,6 +231,7 @@ public class DelegatingLoader implements Loader<DelegatingLoaderCacheKey> {
     @Override
     public void setPrefix(String prefix) {
         this.prefix = prefix;
+        invalidateAll();
         for (Loader<?> loader : loaders) {
             loader.setPrefix(prefix);
         }
@@ -119,6 +244,7 @@ public class DelegatingLoader implements Loader<DelegatingLoaderCacheKey> {
     @Override
     public void setCharset(String charset) {
         this.charset = charset;
+        invalidateAll();
         for (Loader<?> loader : loaders) {
             loader.setCharset(charset);
         }
@@ -138,14 +264,156 @@ public class DelegatingLoader implements Loader<DelegatingLoaderCacheKey> {
         return null;
     }
 
+    /**
+     * Returns whether or not one of the child loaders watches the templates
+     * for changes.
+     */
+    @Override
+    public boolean isWatchingChanges() {
+        for (Loader<?> loader : loaders) {
+            if (loader instanceof ObservableLoader && ((ObservableLoader) loader).isWatchingChanges()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Registers the listener with the child loaders which watch the templates
+     * for changes.
+     */
+    @Override
+    public void addChangeListener(TemplateChangeListener listener) {
+        List<ObservableLoader> observableLoaders = new ArrayList<>();
+        for (Loader<?> loader : loaders) {
+            if (loader instanceof ObservableLoader && ((ObservableLoader) loader).isWatchingChanges()) {
+                observableLoaders.add((ObservableLoader) loader);
+            }
+        }
+        TemplateChangeListener invalidatingListener = new InvalidatingListener(listener, observableLoaders.size());
+        for (ObservableLoader loader : observableLoaders) {
+            loader.addChangeListener(invalidatingListener);
+        }
+    }
+
     @Override
     public DelegatingLoaderCacheKey createCacheKey(String templateName) {
+        DelegatingLoaderCacheKey key = templateName == null ? null : cacheKeys.get(templateName);
+        if (key != null) {
+            return key;
+        }
 
         List<Object> keys = new ArrayList<>();
         for (Loader<?> loader : this.loaders) {
             keys.add(loader.createCacheKey(templateName));
         }
+        key = new DelegatingLoaderCacheKey(keys, templateName);
+
+        if (templateName != null) {
+            putBounded(cacheKeys, templateName, key);
+        }
+        return key;
+    }
+
+    /**
+     * Forgets which child loader found a template and whether or not it is
+     * missing, so that all of the child loaders are asked for it again.
+     *
+     * @param templateName The name of the template
+     */
+    public void invalidate(String templateName) {
+        cacheKeys.remove(templateName);
+        resolvedLoaders.remove(templateName);
+        missingTemplates.remove(templateName);
+    }
+
+    /**
+     * Forgets about all of the templates.
+     */
+    public void invalidateAll() {
+        cacheKeys.clear();
+        resolvedLoaders.clear();
+        missingTemplates.clear();
+    }
+
+    /**
+     * Sets the maximum number of template names remembered by each of the
+     * caches of this loader.
+     *
+     * @param maximumCacheSize The maximum number of names, 0 to disable the caches
+     */
+    public void setMaximumCacheSize(int maximumCacheSize) {
+        this.maximumCacheSize = maximumCacheSize;
+        invalidateAll();
+    }
+
+    public int getMaximumCacheSize() {
+        return maximumCacheSize;
+    }
+
+    /**
+     * Sets how long a template name which none of the child loaders could
+     * find is considered missing without asking them again.
+     *
+     * @param timeToLive The amount of time, 0 to always ask again
+     * @param unit       The unit of the amount of time
+     */
+    public void setMissingTemplateTimeToLive(long timeToLive, TimeUnit unit) {
+        this.missingTemplateTimeToLiveNanos = unit.toNanos(timeToLive);
+        missingTemplates.clear();
+    }
+
+    public long getMissingTemplateTimeToLive(TimeUnit unit) {
+        return unit.convert(missingTemplateTimeToLiveNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Adds an entry to one of the caches, first removing an arbitrary entry
+     * if the cache is full.
+     */
+    private <V> void putBounded(ConcurrentMap<String, V> cache, String templateName, V value) {
+        int maximumSize = this.maximumCacheSize;
+        if (maximumSize <= 0) {
+            return;
+        }
+        if (!cache.containsKey(templateName) && cache.size() >= maximumSize) {
+            Iterator<String> names = cache.keySet().iterator();
+            if (names.hasNext()) {
+                names.next();
+                names.remove();
+            }
+        }
+        cache.put(templateName, value);
+    }
+
+    /**
+     * Forgets which child loader found a changed template before notifying
+     * the listener. The listener is closed once every child loader it has
+     * been added to has closed it, if it is {@link Closeable}.
+     */
+    private class InvalidatingListener implements TemplateChangeListener, Closeable {
+
+        private final TemplateChangeListener listener;
 
-        return new DelegatingLoaderCacheKey(keys, templateName);
+        private final AtomicInteger open;
+
+        private InvalidatingListener(TemplateChangeListener listener, int loaders) {
+            this.listener = listener;
+            this.open = new AtomicInteger(loaders);
+        }
+
+        @Override
+        public void templateChanged(String templateName) {
+            // the template may now be found by another child loader
+            invalidate(templateName);
+            listener.templateChanged(templateName);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (open.decrementAndGet() == 0 && listener instanceof Closeable) {
+                ((Closeable) listener).close();
+            }
+        }
     }
 }
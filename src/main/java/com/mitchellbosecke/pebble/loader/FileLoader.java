@@ -10,22 +10,79 @@ package com.mitchellbosecke.pebble.loader;
 
 import com.mitchellbosecke.pebble.error.LoaderException;
 import com.mitchellbosecke.pebble.utils.PathUtils;
+import com.mitchellbosecke.pebble.utils.TemplateContentReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * This loader searches for a file located anywhere on the filesystem. It uses
  * java.io.File to perform the lookup.
  *
+ * The content of a file is decoded at once, with a decoder reused by each
+ * thread, and handed to the lexer without any intermediate reader. Large
+ * files are memory-mapped and decoded straight from the mapping; the other
+ * files, and every file on Windows, are read through a heap buffer reused by
+ * each thread.
+ *
+ * If watching for changes is enabled, the prefix directory and its
+ * subdirectories are watched and the registered listeners are notified about
+ * every template which changes.
+ *
  * @author mbosecke
  *
  */
-public class FileLoader implements Loader<String> {
+public class FileLoader implements Loader<String>, ObservableLoader, MetadataLoader<String> {
 
     private static final Logger logger = LoggerFactory.getLogger(FileLoader.class);
 
+    /**
+     * The size, in bytes, of the buffer through which files are read.
+     */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Files of at least this size, in bytes, are memory-mapped.
+     */
+    private static final long MAPPING_THRESHOLD = 64 * 1024;
+
+    /**
+     * A mapping is only released once it is garbage collected, and Windows
+     * does not allow a mapped file to be modified or deleted until then,
+     * which would prevent templates from being edited and reloaded.
+     */
+    private static final boolean MAPPING_ENABLED = !System.getProperty("os.name", "").toLowerCase(Locale.ENGLISH)
+            .startsWith("windows");
+
+    /**
+     * The largest array which can be allocated on most virtual machines.
+     */
+    private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(BUFFER_SIZE);
+        }
+    };
+
+    private static final ThreadLocal<CharsetDecoder> decoders = new ThreadLocal<>();
+
     private String prefix;
 
     private String suffix;
@@ -34,13 +91,41 @@ public class FileLoader implements Loader<String> {
 
     private char expectedSeparator = '/';
 
+    private boolean watchChanges = false;
+
+    private final List<TemplateChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    private FileWatcher watcher;
+
     @Override
     public Reader getReader(String templateName) throws LoaderException {
+        File file = getFile(templateName);
+        if (!file.isFile()) {
+            throw new LoaderException(null, "Could not find template \"" + file.getPath() + "\"");
+        }
 
-        InputStreamReader isr = null;
-        Reader reader = null;
+        try {
+            return new TemplateContentReader(read(file));
+        } catch (FileNotFoundException e) {
+            throw new LoaderException(e, "Could not find template \"" + file.getPath() + "\"");
+        } catch (IOException e) {
+            throw new LoaderException(e, "Could not read template \"" + file.getPath() + "\"");
+        }
+    }
+
+    @Override
+    public TemplateMetadata getMetadata(String templateName) throws LoaderException {
+        File file = getFile(templateName);
+        TemplateMetadata metadata = TemplateMetadata.of(file);
+
+        // a missing file has neither a modification time nor a length
+        if (metadata.getLastModified() == 0 && !file.isFile()) {
+            throw new LoaderException(null, "Could not find template \"" + file.getPath() + "\"");
+        }
+        return metadata;
+    }
 
-        InputStream is = null;
+    private File getFile(String templateName) {
 
         // add the prefix and ensure the prefix ends with a separator character
         StringBuilder path = new StringBuilder("");
@@ -72,28 +157,93 @@ public class FileLoader implements Loader<String> {
             path.append(pathSegments[i]).append(File.separatorChar);
         }
 
-        // try to load File
-        if (is == null) {
-            File file = new File(path.toString(), templateName);
-            if (file.exists() && file.isFile()) {
-                try {
-                    is = new FileInputStream(file);
-                } catch (FileNotFoundException e) {
-                }
+        return new File(path.toString(), templateName);
+    }
+
+    /**
+     * Decodes the content of a file into an array sized for the largest
+     * number of characters its length can decode to, which is trimmed if the
+     * content turns out to be shorter. With a charset such as UTF-8, which
+     * never decodes a byte into more than one character, the array is only
+     * copied if the file contains multi-byte characters. Large files are
+     * decoded straight from a read-only mapping, the others through a heap
+     * buffer.
+     */
+    private char[] read(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("The template is too large");
+            }
+
+            CharsetDecoder decoder = getDecoder();
+            CharBuffer chars = CharBuffer.allocate((int) Math.min(MAX_ARRAY_LENGTH,
+                    (long) Math.ceil(length * (double) decoder.maxCharsPerByte())));
+            if (MAPPING_ENABLED && length >= MAPPING_THRESHOLD) {
+                chars = decode(decoder, channel.map(FileChannel.MapMode.READ_ONLY, 0, length), chars, true);
+            } else {
+                ByteBuffer bytes = buffers.get();
+                bytes.clear();
+                boolean endOfInput;
+                do {
+                    endOfInput = channel.read(bytes) == -1;
+                    bytes.flip();
+                    chars = decode(decoder, bytes, chars, endOfInput);
+                    bytes.compact();
+                } while (!endOfInput);
             }
-        }
 
-        if (is == null) {
-            throw new LoaderException(null, "Could not find template \"" + path.toString() + templateName + "\"");
+            CoderResult result = decoder.flush(chars);
+            while (result.isOverflow()) {
+                chars = grow(chars);
+                result = decoder.flush(chars);
+            }
+
+            char[] content = chars.array();
+            return chars.position() == content.length ? content : Arrays.copyOf(content, chars.position());
         }
+    }
 
-        try {
-            isr = new InputStreamReader(is, charset);
-            reader = new BufferedReader(isr);
-        } catch (UnsupportedEncodingException e) {
+    /**
+     * Decodes the given bytes, growing the character buffer if they do not
+     * fit, and returns the buffer holding the characters.
+     */
+    private static CharBuffer decode(CharsetDecoder decoder, ByteBuffer bytes, CharBuffer chars,
+                                     boolean endOfInput) throws CharacterCodingException {
+        CoderResult result = decoder.decode(bytes, chars, endOfInput);
+        while (result.isOverflow()) {
+            // the file has grown since its length was read
+            chars = grow(chars);
+            result = decoder.decode(bytes, chars, endOfInput);
         }
+        if (result.isError()) {
+            result.throwException();
+        }
+        return chars;
+    }
 
-        return reader;
+    private static CharBuffer grow(CharBuffer chars) {
+        CharBuffer grown = CharBuffer.allocate((int) Math.min(MAX_ARRAY_LENGTH, Math.max(16,
+                chars.capacity() * 2L)));
+        chars.flip();
+        return grown.put(chars);
+    }
+
+    /**
+     * Returns the decoder of the current thread for the charset of this
+     * loader, ready to be used. The decoder is replaced if the thread last
+     * used one of another charset.
+     */
+    private CharsetDecoder getDecoder() {
+        CharsetDecoder decoder = decoders.get();
+        Charset current = Charset.forName(charset);
+        if (decoder == null || !decoder.charset().equals(current)) {
+            decoder = current.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            decoders.set(decoder);
+        }
+        return decoder.reset();
     }
 
     public String getSuffix() {
@@ -128,6 +278,66 @@ public class FileLoader implements Loader<String> {
         return PathUtils.resolveRelativePath(relativePath, anchorPath, File.separatorChar);
     }
 
+    public boolean isWatchChanges() {
+        return watchChanges;
+    }
+
+    @Override
+    public boolean isWatchingChanges() {
+        return watchChanges;
+    }
+
+    /**
+     * Enables watching the prefix directory for changes. The watching starts
+     * once the first listener is added, which the PebbleEngine does when it is
+     * built, and requires a prefix to be set.
+     *
+     * @param watchChanges Whether or not to watch the templates for changes
+     */
+    public void setWatchChanges(boolean watchChanges) {
+        this.watchChanges = watchChanges;
+    }
+
+    @Override
+    public synchronized void addChangeListener(TemplateChangeListener listener) {
+        listeners.add(listener);
+        if (watchChanges && watcher == null) {
+            if (getPrefix() == null) {
+                logger.warn("Templates can only be watched for changes if a prefix is set.");
+                return;
+            }
+            try {
+                watcher = new FileWatcher(Paths.get(getPrefix()), getSuffix(), listeners);
+                watcher.start();
+            } catch (IOException e) {
+                logger.error("Could not watch the templates in {} for changes", getPrefix(), e);
+            }
+        }
+    }
+
+    /**
+     * Stops watching the prefix directory for changes, if it is being watched.
+     * The listeners which are {@link Closeable}, such as the one through
+     * which the PebbleEngine reloads the changed templates, are closed and
+     * removed.
+     */
+    public synchronized void stopWatching() {
+        if (watcher != null) {
+            watcher.stop();
+            watcher = null;
+        }
+        for (TemplateChangeListener listener : listeners) {
+            if (listener instanceof Closeable) {
+                listeners.remove(listener);
+                try {
+                    ((Closeable) listener).close();
+                } catch (IOException e) {
+                    logger.warn("Could not close the template change listener {}", listener, e);
+                }
+            }
+        }
+    }
+
     @Override
     public String createCacheKey(String templateName) {
        return templateName;
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.loader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+/**
+ * Watches a directory and all of its subdirectories on a background thread
+ * and notifies the listeners of a loader about the files which change.
+ *
+ * @author mbosecke
+ */
+class FileWatcher implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileWatcher.class);
+
+    private final Path root;
+
+    private final String suffix;
+
+    private final List<TemplateChangeListener> listeners;
+
+    private final WatchService watchService;
+
+    /**
+     * Constructor
+     *
+     * @param root      The directory to watch
+     * @param suffix    The suffix which is removed from the file names, may be null
+     * @param listeners The listeners to notify
+     * @throws IOException Thrown if the directory can not be watched
+     */
+    FileWatcher(Path root, String suffix, List<TemplateChangeListener> listeners) throws IOException {
+        this.root = root;
+        this.suffix = suffix;
+        this.listeners = listeners;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        register(root);
+    }
+
+    /**
+     * Starts watching on a new daemon thread.
+     */
+    void start() {
+        Thread thread = new Thread(this, "pebble-file-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching; the background thread terminates shortly after.
+     */
+    void stop() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.warn("Could not close the watch service of {}", root, e);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path directory = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        logger.warn("Some changes of the templates in {} have been missed", root);
+                        continue;
+                    }
+                    Path path = directory.resolve((Path) event.context());
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                        try {
+                            register(path);
+                        } catch (IOException e) {
+                            // the directory may have been deleted already; the others are still watched
+                            logger.warn("Could not watch the templates in {} for changes", path, e);
+                        }
+                    } else {
+                        notifyListeners(path);
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    private void notifyListeners(Path path) {
+        String templateName = root.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+        if (suffix != null) {
+            if (!templateName.endsWith(suffix)) {
+                return;
+            }
+            templateName = templateName.substring(0, templateName.length() - suffix.length());
+        }
+        logger.debug("Template {} has changed.", templateName);
+        for (TemplateChangeListener listener : listeners) {
+            listener.templateChanged(templateName);
+        }
+    }
+
+    /**
+     * Watches a directory and its subdirectories. A subdirectory which can
+     * not be watched, because it has been deleted in the meantime or can not
+     * be read, is skipped.
+     *
+     * @param directory The directory to watch
+     * @throws IOException Thrown if the directory itself can not be watched
+     */
+    private void register(final Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                try {
+                    dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                } catch (IOException e) {
+                    if (dir.equals(directory)) {
+                        throw e;
+                    }
+                    logger.warn("Could not watch the templates in {} for changes", dir, e);
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                if (file.equals(directory)) {
+                    throw e;
+                }
+                logger.warn("Could not watch the templates in {} for changes", file, e);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.loader;
+
+import com.mitchellbosecke.pebble.error.LoaderException;
+
+/**
+ * Implemented by loaders which can describe the source of a template without
+ * reading it. The {@link com.mitchellbosecke.pebble.PebbleEngine} compares
+ * the metadata of a cached template with the current one to find out whether
+ * it has to be recompiled.
+ *
+ * @author mbosecke
+ */
+public interface MetadataLoader<T> {
+
+    /**
+     * Returns the current metadata of a template. This is called often and
+     * should not be much more expensive than a file system lookup.
+     *
+     * @param cacheKey The cache key created by the loader for the template
+     * @return The metadata, or null if it is not known
+     * @throws LoaderException If the template can not be found
+     */
+    TemplateMetadata getMetadata(T cacheKey) throws LoaderException;
+}
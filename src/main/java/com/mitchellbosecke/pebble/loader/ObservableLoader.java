@@ -0,0 +1,37 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.loader;
+
+/**
+ * Implemented by loaders which are able to tell when the source of a
+ * template changes. The {@link com.mitchellbosecke.pebble.PebbleEngine}
+ * registers itself as a listener in order to recompile the changed templates,
+ * provided that the loader watches for changes.
+ *
+ * @author mbosecke
+ */
+public interface ObservableLoader {
+
+    /**
+     * Returns whether or not the loader watches, or is going to watch, the
+     * templates for changes. The listeners of a loader which does not are
+     * never notified, so none should be registered.
+     *
+     * @return Whether or not changes are reported to the listeners
+     */
+    boolean isWatchingChanges();
+
+    /**
+     * Registers a listener which is notified whenever the source of a
+     * template changes.
+     *
+     * @param listener The listener
+     */
+    void addChangeListener(TemplateChangeListener listener);
+}
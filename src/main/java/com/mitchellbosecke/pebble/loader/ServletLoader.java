@@ -7,13 +7,14 @@ import org.slf4j.LoggerFactory;
 
 import javax.servlet.ServletContext;
 import java.io.*;
+import java.net.URL;
 
 /**
  * Loader that uses a servlet context to find templates.
  *
  * @author mbosecke
  */
-public class ServletLoader implements Loader<String> {
+public class ServletLoader implements Loader<String>, MetadataLoader<String> {
 
     private static final Logger logger = LoggerFactory.getLogger(ServletLoader.class);
 
@@ -39,22 +40,7 @@ public class ServletLoader implements Loader<String> {
 
         InputStream is = null;
 
-        // Add the prefix and make sure that it ends with a separator character
-        StringBuilder path = new StringBuilder(128);
-        if (getPrefix() != null) {
-
-            path.append(getPrefix());
-
-            // we do NOT use OS dependent separators here; getResourceAsStream
-            // explicitly requires forward slashes.
-            if (!getPrefix().endsWith(Character.toString(expectedSeparator))) {
-                path.append(expectedSeparator);
-            }
-        }
-        path.append(templateName);
-        if (getSuffix() != null)
-            path.append(getSuffix());
-        String location = path.toString();
+        String location = getLocation(templateName);
         logger.debug("Looking for template in {}.", location);
 
         is = context.getResourceAsStream(location);
@@ -72,6 +58,40 @@ public class ServletLoader implements Loader<String> {
         return reader;
     }
 
+    @Override
+    public TemplateMetadata getMetadata(String templateName) throws LoaderException {
+        String location = getLocation(templateName);
+        try {
+            URL url = context.getResource(location);
+            if (url == null) {
+                throw new LoaderException(null, "Could not find template \"" + location + "\"");
+            }
+            return TemplateMetadata.of(url);
+        } catch (IOException e) {
+            throw new LoaderException(e, "Could not read template \"" + location + "\"");
+        }
+    }
+
+    private String getLocation(String templateName) {
+
+        // Add the prefix and make sure that it ends with a separator character
+        StringBuilder path = new StringBuilder(128);
+        if (getPrefix() != null) {
+
+            path.append(getPrefix());
+
+            // we do NOT use OS dependent separators here; getResourceAsStream
+            // explicitly requires forward slashes.
+            if (!getPrefix().endsWith(Character.toString(expectedSeparator))) {
+                path.append(expectedSeparator);
+            }
+        }
+        path.append(templateName);
+        if (getSuffix() != null)
+            path.append(getSuffix());
+        return path.toString();
+    }
+
     public String getSuffix() {
         return suffix;
     }
@@ -18,13 +18,21 @@ import java.io.StringReader;
  * it is primarily for testing and debugging. Many tags do not
  * work when using this loader, such as "extends", "imports", "include".
  */
-public class StringLoader implements Loader<String> {
+public class StringLoader implements Loader<String>, MetadataLoader<String> {
 
     @Override
     public Reader getReader(String templateName) throws LoaderException {
         return new StringReader(templateName);
     }
 
+    /**
+     * The template is its own name, hence it never changes.
+     */
+    @Override
+    public TemplateMetadata getMetadata(String templateName) {
+        return new TemplateMetadata(TemplateMetadata.UNKNOWN, templateName.length(), null);
+    }
+
     @Override
     public void setPrefix(String prefix) {
 
@@ -0,0 +1,26 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.loader;
+
+/**
+ * Notified by an {@link ObservableLoader} whenever the source of a template
+ * has changed.
+ *
+ * @author mbosecke
+ */
+public interface TemplateChangeListener {
+
+    /**
+     * Called after the source of a template has been created, modified or
+     * deleted. May be called from a background thread.
+     *
+     * @param templateName The name of the template, as it would be passed to the loader
+     */
+    void templateChanged(String templateName);
+}
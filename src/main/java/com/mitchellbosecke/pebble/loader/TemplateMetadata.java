@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.jar.JarEntry;
+
+/**
+ * Describes the source of a template well enough to tell whether it has
+ * changed without reading it: the template is considered unchanged as long
+ * as its metadata is equal.
+ *
+ * @author mbosecke
+ */
+public final class TemplateMetadata {
+
+    /**
+     * The value of the last modification time or the size when it is not known.
+     */
+    public static final long UNKNOWN = -1;
+
+    private final long lastModified;
+
+    private final long size;
+
+    private final String hash;
+
+    /**
+     * Constructor
+     *
+     * @param lastModified The time of the last modification in milliseconds since the epoch, or {@link #UNKNOWN}
+     * @param size         The size of the source in bytes, or {@link #UNKNOWN}
+     * @param hash         A hash of the content, or null if it is not known
+     */
+    public TemplateMetadata(long lastModified, long size, String hash) {
+        this.lastModified = lastModified;
+        this.size = size;
+        this.hash = hash;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Reads the metadata of a file.
+     */
+    static TemplateMetadata of(File file) {
+        return new TemplateMetadata(file.lastModified(), file.length(), null);
+    }
+
+    /**
+     * Reads the metadata of a resource without reading its content when
+     * possible.
+     */
+    static TemplateMetadata of(URL url) throws IOException {
+        if ("file".equals(url.getProtocol())) {
+            try {
+                return of(new File(url.toURI()));
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                // not a plain file after all, ask the connection instead
+            }
+        }
+        URLConnection connection = url.openConnection();
+        if (connection instanceof JarURLConnection) {
+            JarEntry entry = ((JarURLConnection) connection).getJarEntry();
+            if (entry != null) {
+                return new TemplateMetadata(entry.getTime(), entry.getSize(), Long.toHexString(entry.getCrc()));
+            }
+        }
+        try {
+            return new TemplateMetadata(connection.getLastModified(), connection.getContentLengthLong(), null);
+        } finally {
+            // some connections open the resource just to answer the above
+            InputStream in = connection.getInputStream();
+            in.close();
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof TemplateMetadata)) {
+            return false;
+        }
+        TemplateMetadata other = (TemplateMetadata) obj;
+        return lastModified == other.lastModified && size == other.size
+                && (hash == null ? other.hash == null : hash.equals(other.hash));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (lastModified ^ (lastModified >>> 32));
+        result = 31 * result + (int) (size ^ (size >>> 32));
+        return 31 * result + (hash == null ? 0 : hash.hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return "TemplateMetadata[lastModified=" + lastModified + ", size=" + size + ", hash=" + hash + "]";
+    }
+}
@@ -8,20 +8,32 @@
  ******************************************************************************/
 package com.mitchellbosecke.pebble.node;
 
+import com.google.common.cache.Cache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.mitchellbosecke.pebble.cache.BaseTagCacheKey;
+import com.mitchellbosecke.pebble.cache.CachedFragment;
+import com.mitchellbosecke.pebble.cache.TieredTagCache;
 import com.mitchellbosecke.pebble.error.PebbleException;
 import com.mitchellbosecke.pebble.extension.NodeVisitor;
 import com.mitchellbosecke.pebble.node.expression.Expression;
 import com.mitchellbosecke.pebble.template.EvaluationContext;
 import com.mitchellbosecke.pebble.template.PebbleTemplateImpl;
 import com.mitchellbosecke.pebble.tokenParser.CacheTokenParser;
+import com.mitchellbosecke.pebble.utils.FutureWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Node for the cache tag
@@ -30,8 +42,12 @@ import java.util.concurrent.ExecutionException;
  */
 public class CacheNode extends AbstractRenderableNode {
 
+    private static final Logger logger = LoggerFactory.getLogger(CacheNode.class);
+
     /**
-     * Key to be used in the cache
+     * Key to be used in the cache. Fragments without a namespace are private
+     * to the tag which rendered them; fragments with a namespace are shared by
+     * all of the tags using that namespace and the same key values.
      *
      * @author Eric Bussieres
      */
@@ -39,12 +55,48 @@ public class CacheNode extends AbstractRenderableNode {
 
         private final Locale locale;
 
-        private final String name;
+        private final String namespace;
+
+        private final List<Object> keys;
+
+        private final String version;
 
-        public CacheKey(String name, Locale locale) {
+        public CacheKey(String namespace, List<Object> keys, Locale locale, String version) {
             super(CacheTokenParser.TAG_NAME);
-            this.name = name;
+            this.namespace = namespace;
+            this.keys = keys;
             this.locale = locale;
+            this.version = version;
+        }
+
+        /**
+         * The key is versioned by the content of the template, and of the
+         * templates it includes, imports or extends, so that a fragment
+         * rendered by a previous version of any of them is never used. Keys
+         * containing values without a stable string representation are not
+         * persisted.
+         */
+        @Override
+        public String getPersistentKey() {
+            if (this.version == null || (this.namespace == null && position < 0)) {
+                return null;
+            }
+            StringBuilder builder = new StringBuilder(this.version).append(':');
+            if (this.namespace == null) {
+                builder.append('@').append(getLineNumber()).append(':').append(position);
+            } else {
+                builder.append(this.namespace.length()).append(':').append(this.namespace);
+            }
+            builder.append(':').append(this.locale);
+            for (Object key : this.keys) {
+                if (!(key == null || key instanceof CharSequence || key instanceof Number || key instanceof Boolean
+                        || key instanceof Character || key instanceof Enum)) {
+                    return null;
+                }
+                String value = String.valueOf(key);
+                builder.append(':').append(value.length()).append(':').append(value);
+            }
+            return builder.toString();
         }
 
         /**
@@ -64,7 +116,11 @@ public class CacheNode extends AbstractRenderableNode {
                 return false;
             }
             CacheKey other = (CacheKey) obj;
-            if (!this.getOuterType().equals(other.getOuterType())) {
+            if (this.namespace == null) {
+                if (other.namespace != null || !this.getOuterType().equals(other.getOuterType())) {
+                    return false;
+                }
+            } else if (!this.namespace.equals(other.namespace)) {
                 return false;
             }
             if (this.locale == null) {
@@ -74,14 +130,7 @@ public class CacheNode extends AbstractRenderableNode {
             } else if (!this.locale.equals(other.locale)) {
                 return false;
             }
-            if (this.name == null) {
-                if (other.name != null) {
-                    return false;
-                }
-            } else if (!this.name.equals(other.name)) {
-                return false;
-            }
-            return true;
+            return this.keys.equals(other.keys);
         }
 
         /**
@@ -93,9 +142,10 @@ public class CacheNode extends AbstractRenderableNode {
         public int hashCode() {
             final int prime = 31;
             int result = super.hashCode();
-            result = prime * result + this.getOuterType().hashCode();
+            result = prime * result + ((this.namespace == null) ? this.getOuterType().hashCode() : this.namespace
+                    .hashCode());
             result = prime * result + ((this.locale == null) ? 0 : this.locale.hashCode());
-            result = prime * result + ((this.name == null) ? 0 : this.name.hashCode());
+            result = prime * result + this.keys.hashCode();
             return result;
         }
 
@@ -106,12 +156,42 @@ public class CacheNode extends AbstractRenderableNode {
 
     private final BodyNode body;
 
-    private final Expression<?> name;
+    private final List<Expression<?>> keys;
+
+    private final Expression<?> timeToLive;
+
+    private final Expression<?> staleWhileRevalidate;
+
+    private final String namespace;
+
+    private final int position;
 
     public CacheNode(int lineNumber, Expression<?> name, BodyNode body) {
+        this(lineNumber, -1, Collections.<Expression<?>>singletonList(name), null, null, null, body);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param lineNumber           The line number of the tag
+     * @param position             The position of the tag within the tokens of the template, or -1
+     *                             if unknown, which tells apart tags on the same line
+     * @param keys                 The expressions whose values identify the fragment
+     * @param timeToLive           The expression of the time to live in seconds, may be null
+     * @param staleWhileRevalidate The expression of the time in seconds an expired fragment may
+     *                             be served while it is refreshed, may be null
+     * @param namespace            The namespace of the fragment, may be null
+     * @param body                 The body of the tag
+     */
+    public CacheNode(int lineNumber, int position, List<Expression<?>> keys, Expression<?> timeToLive,
+                     Expression<?> staleWhileRevalidate, String namespace, BodyNode body) {
         super(lineNumber);
+        this.position = position;
         this.body = body;
-        this.name = name;
+        this.keys = keys;
+        this.timeToLive = timeToLive;
+        this.staleWhileRevalidate = staleWhileRevalidate;
+        this.namespace = namespace;
     }
 
     @Override
@@ -122,21 +202,143 @@ public class CacheNode extends AbstractRenderableNode {
     @Override
     public void render(final PebbleTemplateImpl self, Writer writer, final EvaluationContext context)
             throws PebbleException, IOException {
+        List<Object> keyValues = new ArrayList<>(this.keys.size());
+        for (Expression<?> key : this.keys) {
+            keyValues.add(key.evaluate(self, context));
+        }
+        final Long timeToLiveNanos = this.evaluateSeconds(this.timeToLive, "time to live", self, context);
+        final Long staleNanos = this.evaluateSeconds(this.staleWhileRevalidate, "stale time", self, context);
+
+        final CacheKey key = new CacheKey(this.namespace, keyValues, context.getLocale(), this.getVersion(self,
+                context));
+        final Cache<BaseTagCacheKey, Object> tagCache = context.getTagCache();
         try {
-            CacheKey key = new CacheKey((String) this.name.evaluate(self, context), context.getLocale());
-            String body = (String) context.getTagCache().get(key, new Callable<Object>() {
+            Object cached = tagCache.getIfPresent(key);
+            if (cached instanceof CachedFragment && ((CachedFragment) cached).isExpired()) {
+                CachedFragment stale = (CachedFragment) cached;
+                if (stale.isStale() && context.getExecutorService() != null) {
+                    if (stale.startRefresh()) {
+                        this.refresh(self, context, key, stale, timeToLiveNanos, staleNanos);
+                    }
+                    if (stale.writeTo(writer)) {
+                        return;
+                    }
+                }
+                tagCache.invalidate(key);
+            }
+
+            CachedFragment fragment = (CachedFragment) tagCache.get(key, new Callable<Object>() {
 
                 @Override
-                public String call() throws Exception {
-                    StringWriter tempWriter = new StringWriter();
-                    CacheNode.this.body.render(self, tempWriter, context);
+                public CachedFragment call() throws Exception {
+                    return CacheNode.this.renderFragment(self, context, timeToLiveNanos, staleNanos);
+                }
+            });
+            if (!fragment.writeTo(writer)) {
+                // the fragment was evicted from an off-heap cache before it could be written
+                writer.write(this.renderFragment(self, context, timeToLiveNanos, staleNanos).getContent());
+            }
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new PebbleException(e, "Could not render cache block [" + keyValues + "]", getLineNumber(),
+                    self.getName());
+        }
+    }
 
-                    return tempWriter.toString();
+    /**
+     * Renders the body again on the executor service, with a snapshot of the
+     * context, and replaces the stale fragment once done.
+     */
+    private void refresh(final PebbleTemplateImpl self, EvaluationContext context, final CacheKey key,
+                         final CachedFragment stale, final Long timeToLiveNanos, final Long staleNanos) {
+        final EvaluationContext contextCopy = context.threadSafeCopy(self);
+        final Cache<BaseTagCacheKey, Object> tagCache = context.getTagCache();
+        try {
+            context.getExecutorService().execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        tagCache.put(key, CacheNode.this.renderFragment(self, contextCopy, timeToLiveNanos,
+                                staleNanos));
+                    } catch (PebbleException | IOException | RuntimeException e) {
+                        logger.warn(String.format("Could not refresh cache block [%s:%d]", self.getName(),
+                                getLineNumber()), e);
+                        stale.refreshFailed();
+                    }
                 }
             });
-            writer.write(body);
-        } catch (ExecutionException e) {
-            throw new PebbleException(e, "Could not render cache block [" + this.name + "]");
+        } catch (RejectedExecutionException e) {
+            stale.refreshFailed();
+        }
+    }
+
+    /**
+     * Returns the version of the fragments persisted by the fragment store,
+     * if any; the fragments are not persisted if it is not known.
+     */
+    private String getVersion(PebbleTemplateImpl self, EvaluationContext context) {
+        if (!(context.getTagCache() instanceof TieredTagCache)) {
+            return null;
+        }
+        try {
+            return self.getDependencyHash();
+        } catch (PebbleException e) {
+            logger.debug(String.format("Could not hash the dependencies of the template [%s]", self.getName()), e);
+            return null;
         }
     }
+
+    private CachedFragment renderFragment(PebbleTemplateImpl self, EvaluationContext context, Long timeToLiveNanos,
+                                          Long staleNanos) throws PebbleException, IOException {
+        StringWriter tempWriter = new StringWriter();
+
+        // the body may contain "parallel" tags
+        Writer bodyWriter = context.getExecutorService() == null ? tempWriter : new FutureWriter(tempWriter,
+                context.getDeadline());
+        this.body.render(self, bodyWriter, context);
+        bodyWriter.flush();
+
+        if (timeToLiveNanos == null) {
+            return new CachedFragment(tempWriter.toString());
+        }
+        return new CachedFragment(tempWriter.toString(), timeToLiveNanos, staleNanos == null ? 0 : staleNanos,
+                TimeUnit.NANOSECONDS);
+    }
+
+    private Long evaluateSeconds(Expression<?> expression, String description, PebbleTemplateImpl self,
+                                 EvaluationContext context) throws PebbleException {
+        if (expression == null) {
+            return null;
+        }
+        Object value = expression.evaluate(self, context);
+        if (!(value instanceof Number)) {
+            throw new PebbleException(null, "The " + description + " of a cache block must be a number of seconds",
+                    getLineNumber(), self.getName());
+        }
+        return (long) (((Number) value).doubleValue() * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    public BodyNode getBody() {
+        return body;
+    }
+
+    public List<Expression<?>> getKeys() {
+        return keys;
+    }
+
+    public Expression<?> getTimeToLive() {
+        return timeToLive;
+    }
+
+    public Expression<?> getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    public int getPosition() {
+        return position;
+    }
 }
@@ -14,6 +14,7 @@ import java.io.Writer;
 import com.mitchellbosecke.pebble.error.PebbleException;
 import com.mitchellbosecke.pebble.extension.NodeVisitor;
 import com.mitchellbosecke.pebble.node.expression.Expression;
+import com.mitchellbosecke.pebble.node.expression.LiteralStringExpression;
 import com.mitchellbosecke.pebble.template.EvaluationContext;
 import com.mitchellbosecke.pebble.template.PebbleTemplateImpl;
 
@@ -29,7 +30,12 @@ public class ExtendsNode extends AbstractRenderableNode {
     @Override
     public void render(final PebbleTemplateImpl self, Writer writer, final EvaluationContext context)
             throws IOException, PebbleException {
-        self.setParent(context, (String) parentExpression.evaluate(self, context));
+        if (parentExpression instanceof LiteralStringExpression) {
+            String templateName = ((LiteralStringExpression) parentExpression).getValue();
+            self.setParent(context, self.getLinkedTemplate(templateName));
+        } else {
+            self.setParent(context, (String) parentExpression.evaluate(self, context));
+        }
     }
 
     @Override
@@ -13,6 +13,7 @@ import java.io.Writer;
 import com.mitchellbosecke.pebble.error.PebbleException;
 import com.mitchellbosecke.pebble.extension.NodeVisitor;
 import com.mitchellbosecke.pebble.node.expression.Expression;
+import com.mitchellbosecke.pebble.node.expression.LiteralStringExpression;
 import com.mitchellbosecke.pebble.template.EvaluationContext;
 import com.mitchellbosecke.pebble.template.PebbleTemplateImpl;
 
@@ -27,7 +28,12 @@ public class ImportNode extends AbstractRenderableNode {
 
     @Override
     public void render(PebbleTemplateImpl self, Writer writer, EvaluationContext context) throws PebbleException {
-        self.importTemplate(context, (String) importExpression.evaluate(self, context));
+        if (importExpression instanceof LiteralStringExpression) {
+            String templateName = ((LiteralStringExpression) importExpression).getValue();
+            self.importTemplate(context, self.getLinkedTemplate(templateName));
+        } else {
+            self.importTemplate(context, (String) importExpression.evaluate(self, context));
+        }
     }
 
     @Override
@@ -16,6 +16,7 @@ import java.util.Map;
 import com.mitchellbosecke.pebble.error.PebbleException;
 import com.mitchellbosecke.pebble.extension.NodeVisitor;
 import com.mitchellbosecke.pebble.node.expression.Expression;
+import com.mitchellbosecke.pebble.node.expression.LiteralStringExpression;
 import com.mitchellbosecke.pebble.node.expression.MapExpression;
 import com.mitchellbosecke.pebble.template.EvaluationContext;
 import com.mitchellbosecke.pebble.template.PebbleTemplateImpl;
@@ -35,13 +36,19 @@ public class IncludeNode extends AbstractRenderableNode {
     @Override
     public void render(PebbleTemplateImpl self, Writer writer, EvaluationContext context) throws PebbleException,
             IOException {
-        String templateName = (String) includeExpression.evaluate(self, context);
-
         Map<?, ?> map = Collections.emptyMap();
         if (this.mapExpression != null) {
             map = this.mapExpression.evaluate(self, context);
         }
 
+        if (includeExpression instanceof LiteralStringExpression) {
+            String templateName = ((LiteralStringExpression) includeExpression).getValue();
+            self.includeTemplate(writer, context, self.getLinkedTemplate(templateName), map);
+            return;
+        }
+
+        String templateName = (String) includeExpression.evaluate(self, context);
+
         if (templateName == null) {
             throw new PebbleException(
                     null,
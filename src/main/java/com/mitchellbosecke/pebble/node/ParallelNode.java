@@ -12,6 +12,7 @@ import com.mitchellbosecke.pebble.error.PebbleException;
 import com.mitchellbosecke.pebble.extension.NodeVisitor;
 import com.mitchellbosecke.pebble.template.EvaluationContext;
 import com.mitchellbosecke.pebble.template.PebbleTemplateImpl;
+import com.mitchellbosecke.pebble.utils.Deadline;
 import com.mitchellbosecke.pebble.utils.FutureWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -66,15 +67,27 @@ public class ParallelNode extends AbstractRenderableNode {
             
         } else {
 
+            final Deadline deadline = context.getDeadline();
+            if (deadline != null && deadline.isExpired()) {
+                throw new PebbleException(null, "The deadline of the evaluation has passed", getLineNumber(),
+                        self.getName());
+            }
+
             final EvaluationContext contextCopy = context.threadSafeCopy(self);
 
             final StringWriter newStringWriter = new StringWriter();
-            final Writer newFutureWriter = new FutureWriter(newStringWriter);
+            final Writer newFutureWriter = new FutureWriter(newStringWriter, deadline);
 
             Future<String> future = es.submit(new Callable<String>() {
 
                 @Override
                 public String call() throws PebbleException, IOException {
+
+                    // the task may have been queued for longer than the deadline allows
+                    if (deadline != null && deadline.isExpired()) {
+                        throw new PebbleException(null, "The deadline of the evaluation has passed",
+                                getLineNumber(), self.getName());
+                    }
                     body.render(self, newFutureWriter, contextCopy);
                     newFutureWriter.flush();
                     newFutureWriter.close();
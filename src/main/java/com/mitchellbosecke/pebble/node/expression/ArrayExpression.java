@@ -52,6 +52,10 @@ public class ArrayExpression implements Expression<List<?>> {
         return returnValues;
     }
 
+    public List<Expression<?>> getValues() {
+        return values;
+    }
+
     @Override
     public int getLineNumber() {
         return this.lineNumber;
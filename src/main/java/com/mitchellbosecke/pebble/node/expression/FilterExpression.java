@@ -10,6 +10,7 @@ package com.mitchellbosecke.pebble.node.expression;
 
 import com.mitchellbosecke.pebble.error.AttributeNotFoundException;
 import com.mitchellbosecke.pebble.error.PebbleException;
+import com.mitchellbosecke.pebble.extension.ExtensionRegistry;
 import com.mitchellbosecke.pebble.extension.Filter;
 import com.mitchellbosecke.pebble.extension.core.DefaultFilter;
 import com.mitchellbosecke.pebble.extension.escaper.EscapeFilter;
@@ -17,15 +18,18 @@ import com.mitchellbosecke.pebble.extension.escaper.SafeString;
 import com.mitchellbosecke.pebble.node.ArgumentsNode;
 import com.mitchellbosecke.pebble.template.EvaluationContext;
 import com.mitchellbosecke.pebble.template.PebbleTemplateImpl;
+import com.mitchellbosecke.pebble.utils.Pair;
 
 import java.util.Map;
 
 public class FilterExpression extends BinaryExpression<Object> {
 
     /**
-     * Save the filter instance on the first evaluation.
+     * Save the filter instance, along with the registry it was found in, on
+     * the first evaluation. The node may be shared by the templates of
+     * several engines, which may provide different instances.
      */
-    private Filter filter = null;
+    private Pair<ExtensionRegistry, Filter> cachedFilter = null;
 
     public FilterExpression() {
         super();
@@ -39,9 +43,13 @@ public class FilterExpression extends BinaryExpression<Object> {
         ArgumentsNode args = filterInvocation.getArgs();
         String filterName = filterInvocation.getFilterName();
 
-        if (this.filter == null) {
-            this.filter = context.getExtensionRegistry().getFilter(filterInvocation.getFilterName());
+        Pair<ExtensionRegistry, Filter> cached = this.cachedFilter;
+        if (cached == null || cached.getLeft() != context.getExtensionRegistry()) {
+            ExtensionRegistry registry = context.getExtensionRegistry();
+            cached = new Pair<>(registry, registry.getFilter(filterInvocation.getFilterName()));
+            this.cachedFilter = cached;
         }
+        Filter filter = cached.getRight();
 
         if (filter == null) {
             throw new PebbleException(null, String.format("Filter [%s] does not exist.", filterName),
@@ -10,18 +10,24 @@ package com.mitchellbosecke.pebble.node.expression;
 
 import com.mitchellbosecke.pebble.error.AttributeNotFoundException;
 import com.mitchellbosecke.pebble.error.PebbleException;
+import com.mitchellbosecke.pebble.extension.ExtensionRegistry;
 import com.mitchellbosecke.pebble.extension.Test;
 import com.mitchellbosecke.pebble.extension.core.DefinedTest;
 import com.mitchellbosecke.pebble.node.ArgumentsNode;
 import com.mitchellbosecke.pebble.node.TestInvocationExpression;
 import com.mitchellbosecke.pebble.template.EvaluationContext;
 import com.mitchellbosecke.pebble.template.PebbleTemplateImpl;
+import com.mitchellbosecke.pebble.utils.Pair;
 
 import java.util.Map;
 
 public class PositiveTestExpression extends BinaryExpression<Object> {
 
-    private Test cachedTest;
+    /**
+     * The test, along with the registry it was found in, as the node may be
+     * shared by the templates of several engines.
+     */
+    private Pair<ExtensionRegistry, Test> cachedTest;
 
     @Override
     public Object evaluate(PebbleTemplateImpl self, EvaluationContext context) throws PebbleException {
@@ -29,17 +35,21 @@ public class PositiveTestExpression extends BinaryExpression<Object> {
         TestInvocationExpression testInvocation = (TestInvocationExpression) getRightExpression();
         ArgumentsNode args = testInvocation.getArgs();
 
-        if (cachedTest == null) {
+        Pair<ExtensionRegistry, Test> cached = cachedTest;
+        if (cached == null || cached.getLeft() != context.getExtensionRegistry()) {
             String testName = testInvocation.getTestName();
 
-            cachedTest = context.getExtensionRegistry().getTest(testInvocation.getTestName());
+            ExtensionRegistry registry = context.getExtensionRegistry();
+            Test found = registry.getTest(testInvocation.getTestName());
 
-            if (cachedTest == null) {
+            if (found == null) {
                 throw new PebbleException(null, String.format("Test [%s] does not exist.", testName),
                         this.getLineNumber(), self.getName());
             }
+            cached = new Pair<>(registry, found);
+            cachedTest = cached;
         }
-        Test test = cachedTest;
+        Test test = cached.getRight();
 
         Map<String, Object> namedArguments = args.getArgumentMap(self, context, test);
 
@@ -52,4 +52,8 @@ public class RenderableNodeExpression extends UnaryExpression {
         return this.lineNumber;
     }
 
+    public RenderableNode getNode() {
+        return node;
+    }
+
 }
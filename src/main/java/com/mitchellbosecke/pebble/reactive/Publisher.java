@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.reactive;
+
+/**
+ * A provider of a potentially unbounded number of sequenced elements,
+ * publishing them according to the demand received from its subscribers.
+ * <p>
+ * This interface mirrors the Reactive Streams {@code Publisher} contract so
+ * that it can be adapted to {@code java.util.concurrent.Flow.Publisher} or
+ * any Reactive Streams implementation with a trivial wrapper while Pebble
+ * remains compatible with Java 7.
+ *
+ * @param <T> The type of element signaled
+ */
+public interface Publisher<T> {
+
+    /**
+     * Requests the publisher to start streaming data to the given subscriber.
+     * Every invocation starts a new, independent stream.
+     *
+     * @param subscriber The subscriber that will consume signals from this publisher
+     */
+    void subscribe(Subscriber<? super T> subscriber);
+
+}
@@ -0,0 +1,387 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.reactive;
+
+import com.mitchellbosecke.pebble.template.PebbleTemplate;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A publisher which renders a template on an {@link ExecutorService} and emits
+ * the output as a sequence of {@link CharBuffer} chunks.
+ * <p>
+ * Every subscription triggers a new evaluation of the template. The evaluation
+ * starts once the subscriber signals demand for the first time. Chunks are
+ * only emitted as far as the subscriber has signaled demand; the evaluation
+ * goes on ahead of the demand until a number of chunks, the high-water mark,
+ * is queued, and is then paused until the subscriber requests more chunks or
+ * cancels the subscription. At most that many chunks are therefore kept in
+ * memory per subscription. Cancelling the subscription aborts the evaluation
+ * the next time it produces a chunk.
+ * <p>
+ * A paused evaluation parks its thread of the executor. Demand must thus not
+ * be signaled from a task waiting for a thread of the same bounded executor.
+ * <p>
+ * Signals are sent either from the thread performing the evaluation or from
+ * the thread signaling demand, but never concurrently.
+ * <p>
+ * The executor should not be the one running the "parallel" tags of the
+ * engine: the evaluation waits for the parallel branches it starts, which
+ * could starve a bounded executor running both.
+ *
+ * @author mbosecke
+ */
+public class RenderPublisher implements Publisher<CharBuffer> {
+
+    /**
+     * The amount of characters buffered before a chunk is emitted.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024;
+
+    /**
+     * The number of chunks queued ahead of the demand of the subscriber
+     * before the evaluation is paused.
+     */
+    public static final int DEFAULT_HIGH_WATER_MARK = 16;
+
+    private final PebbleTemplate template;
+
+    private final Map<String, Object> context;
+
+    private final Locale locale;
+
+    private final ExecutorService executorService;
+
+    private final int chunkSize;
+
+    private final int highWaterMark;
+
+    /**
+     * Constructor
+     *
+     * @param template        The template to evaluate
+     * @param context         The variables used during the evaluation, may be null
+     * @param locale          The locale used during the evaluation, may be null
+     * @param executorService The executor service used to perform the evaluation
+     * @param chunkSize       The maximum amount of characters in a single chunk
+     */
+    public RenderPublisher(PebbleTemplate template, Map<String, Object> context, Locale locale,
+                           ExecutorService executorService, int chunkSize) {
+        this(template, context, locale, executorService, chunkSize, DEFAULT_HIGH_WATER_MARK);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param template        The template to evaluate
+     * @param context         The variables used during the evaluation, may be null
+     * @param locale          The locale used during the evaluation, may be null
+     * @param executorService The executor service used to perform the evaluation
+     * @param chunkSize       The maximum amount of characters in a single chunk
+     * @param highWaterMark   The number of chunks queued ahead of the demand before the
+     *                        evaluation is paused
+     */
+    public RenderPublisher(PebbleTemplate template, Map<String, Object> context, Locale locale,
+                           ExecutorService executorService, int chunkSize, int highWaterMark) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        if (highWaterMark <= 0) {
+            throw new IllegalArgumentException("High-water mark must be positive");
+        }
+        this.template = template;
+        this.context = context;
+        this.locale = locale;
+        this.executorService = executorService;
+        this.chunkSize = chunkSize;
+        this.highWaterMark = highWaterMark;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super CharBuffer> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber can not be null");
+        }
+        RenderSubscription subscription = new RenderSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * The state shared between the subscriber and the evaluating thread.
+     * Chunks are queued by the evaluation and handed to the subscriber by
+     * {@link #drain()}, which is serialized and called both by the evaluation
+     * and whenever the subscriber signals demand. The evaluating thread only
+     * waits for demand once the queue reaches the high-water mark, and is
+     * woken up by every drain.
+     */
+    private class RenderSubscription implements Subscription, Runnable {
+
+        private final Subscriber<? super CharBuffer> subscriber;
+
+        private final Queue<CharBuffer> chunks = new ConcurrentLinkedQueue<>();
+
+        /**
+         * The number of chunks in the queue.
+         */
+        private final AtomicInteger queued = new AtomicInteger();
+
+        /**
+         * The thread performing the evaluation, which parks while the queue is
+         * full.
+         */
+        private volatile Thread renderer;
+
+        private final AtomicLong requested = new AtomicLong();
+
+        /**
+         * The number of pending calls to drain, only one of which does the
+         * work.
+         */
+        private final AtomicInteger drainers = new AtomicInteger();
+
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        private volatile boolean cancelled = false;
+
+        /**
+         * Whether or not the evaluation is over, all of its chunks having been
+         * queued.
+         */
+        private volatile boolean done = false;
+
+        /**
+         * The exception which ended the evaluation, set before done.
+         */
+        private volatile Throwable error;
+
+        /**
+         * A violation of the subscription protocol by the subscriber.
+         */
+        private volatile Throwable protocolViolation;
+
+        /**
+         * Whether or not a terminal signal has been sent, only accessed by the
+         * draining thread.
+         */
+        private boolean terminated = false;
+
+        public RenderSubscription(Subscriber<? super CharBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                protocolViolation = new IllegalArgumentException(
+                        "The number of requested elements must be positive (Reactive Streams rule 3.9)");
+                drain();
+                return;
+            }
+            long current;
+            do {
+                current = requested.get();
+            } while (!requested.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+
+            if (started.compareAndSet(false, true)) {
+                if (executorService == null) {
+                    fail(new IllegalStateException(
+                            "An async executor must be provided to the PebbleEngine in order to publish the output of a template."));
+                    return;
+                }
+                try {
+                    executorService.execute(this);
+                } catch (RejectedExecutionException e) {
+                    fail(e);
+                    return;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        /**
+         * Ends a subscription whose evaluation could not be started.
+         */
+        private void fail(Throwable throwable) {
+            error = throwable;
+            done = true;
+            drain();
+        }
+
+        @Override
+        public void run() {
+            renderer = Thread.currentThread();
+            ChunkWriter writer = new ChunkWriter();
+            try {
+                if (context == null) {
+                    template.evaluate(writer, locale);
+                } else {
+                    template.evaluate(writer, context, locale);
+                }
+                writer.close();
+            } catch (Exception e) {
+                error = e;
+            }
+            renderer = null;
+            done = true;
+            drain();
+        }
+
+        /**
+         * Hands the queued chunks to the subscriber as far as it has signaled
+         * demand, then the terminal signal once the evaluation is over. A call
+         * made while another thread is draining leaves the work to that
+         * thread, which also prevents recursion when the subscriber requests
+         * more chunks from within onNext.
+         */
+        private void drain() {
+            if (drainers.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (!terminated) {
+                    drainOnce();
+                }
+                if (terminated) {
+                    chunks.clear();
+                    queued.set(0);
+                }
+                missed = drainers.addAndGet(-missed);
+            } while (missed != 0);
+
+            // the queue may have room again, or the subscription may be over
+            LockSupport.unpark(renderer);
+        }
+
+        private void drainOnce() {
+            if (cancelled) {
+                terminated = true;
+                return;
+            }
+            Throwable violation = protocolViolation;
+            if (violation != null) {
+                terminated = true;
+                cancelled = true;
+                subscriber.onError(violation);
+                return;
+            }
+
+            long demand = requested.get();
+            long emitted = 0;
+            while (emitted != demand && !cancelled) {
+                CharBuffer chunk = chunks.poll();
+                if (chunk == null) {
+                    break;
+                }
+                subscriber.onNext(chunk);
+                emitted++;
+            }
+            if (emitted != 0) {
+                queued.addAndGet((int) -emitted);
+                if (demand != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+            }
+
+            // done is read before the queue so that the last chunk can not be missed
+            if (!cancelled && done && chunks.isEmpty()) {
+                terminated = true;
+                Throwable throwable = error;
+                if (throwable == null) {
+                    subscriber.onComplete();
+                } else {
+                    subscriber.onError(throwable);
+                }
+            }
+        }
+
+        /**
+         * Buffers the output of the evaluation and queues it one chunk at a
+         * time.
+         */
+        private class ChunkWriter extends Writer {
+
+            private char[] buffer = new char[chunkSize];
+
+            private int count = 0;
+
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                while (len > 0) {
+                    int amount = Math.min(len, buffer.length - count);
+                    System.arraycopy(cbuf, off, buffer, count, amount);
+                    count += amount;
+                    off += amount;
+                    len -= amount;
+                    if (count == buffer.length) {
+                        emit();
+                    }
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (count > 0) {
+                    emit();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+
+            private void emit() throws IOException {
+                checkSubscription();
+
+                // the subscriber takes ownership of the current buffer
+                chunks.offer(CharBuffer.wrap(buffer, 0, count));
+                queued.incrementAndGet();
+                buffer = new char[chunkSize];
+                count = 0;
+                drain();
+
+                // pause the evaluation until the subscriber has taken enough chunks
+                while (queued.get() >= highWaterMark) {
+                    checkSubscription();
+                    LockSupport.park(this);
+                    if (Thread.interrupted()) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for demand");
+                    }
+                }
+            }
+
+            private void checkSubscription() throws IOException {
+                if (cancelled || protocolViolation != null) {
+                    throw new IOException("Subscription has been terminated");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.reactive;
+
+/**
+ * Receives the elements emitted by a {@link Publisher}. No elements are
+ * received until {@link Subscription#request(long)} has been invoked.
+ * <p>
+ * Mirrors the Reactive Streams {@code Subscriber} contract.
+ *
+ * @param <T> The type of element signaled
+ */
+public interface Subscriber<T> {
+
+    /**
+     * Invoked once, before any other signal, after
+     * {@link Publisher#subscribe(Subscriber)} has been called.
+     *
+     * @param subscription The subscription used to signal demand or cancel
+     */
+    void onSubscribe(Subscription subscription);
+
+    /**
+     * Data notification sent in response to demand signaled through
+     * {@link Subscription#request(long)}.
+     *
+     * @param item The element signaled
+     */
+    void onNext(T item);
+
+    /**
+     * Terminal state after a failure. No further signals will be sent.
+     *
+     * @param throwable The cause of the failure
+     */
+    void onError(Throwable throwable);
+
+    /**
+     * Terminal state after a successful completion. No further signals will
+     * be sent.
+     */
+    void onComplete();
+
+}
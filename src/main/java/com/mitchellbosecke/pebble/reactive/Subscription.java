@@ -0,0 +1,33 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.reactive;
+
+/**
+ * Represents the one-to-one lifecycle of a {@link Subscriber} subscribing to a
+ * {@link Publisher}.
+ * <p>
+ * Mirrors the Reactive Streams {@code Subscription} contract.
+ */
+public interface Subscription {
+
+    /**
+     * Adds the given number of elements to the outstanding demand. A
+     * non-positive number results in an {@link IllegalArgumentException}
+     * being signaled through {@link Subscriber#onError(Throwable)}.
+     *
+     * @param n The number of additional elements requested
+     */
+    void request(long n);
+
+    /**
+     * Requests the publisher to stop sending data and to release resources.
+     */
+    void cancel();
+
+}
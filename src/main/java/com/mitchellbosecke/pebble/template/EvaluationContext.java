@@ -11,6 +11,7 @@ package com.mitchellbosecke.pebble.template;
 import com.google.common.cache.Cache;
 import com.mitchellbosecke.pebble.cache.BaseTagCacheKey;
 import com.mitchellbosecke.pebble.extension.ExtensionRegistry;
+import com.mitchellbosecke.pebble.utils.Deadline;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -71,7 +72,12 @@ public class EvaluationContext {
     private final List<PebbleTemplateImpl> importedTemplates;
 
     /**
-     * Constructor used to provide all final variables.
+     * The deadline by which the evaluation has to be finished (can be null).
+     */
+    private final Deadline deadline;
+
+    /**
+     * Constructor used to provide all final variables except for the deadline.
      *
      * @param self              The template implementation
      * @param strictVariables   Whether strict variables is to be used
@@ -86,6 +92,27 @@ public class EvaluationContext {
                              ExtensionRegistry extensionRegistry, Cache<BaseTagCacheKey, Object> tagCache,
                              ExecutorService executorService, List<PebbleTemplateImpl> importedTemplates, ScopeChain scopeChain,
                              Hierarchy hierarchy) {
+        this(self, strictVariables, locale, extensionRegistry, tagCache, executorService, importedTemplates,
+                scopeChain, hierarchy, null);
+    }
+
+    /**
+     * Constructor used to provide all final variables.
+     *
+     * @param self              The template implementation
+     * @param strictVariables   Whether strict variables is to be used
+     * @param locale            The locale of the template
+     * @param extensionRegistry The extension registry
+     * @param executorService   The optional executor service
+     * @param scopeChain        The scope chain
+     * @param hierarchy         The inheritance chain
+     * @param tagCache          The cache used by the "cache" tag
+     * @param deadline          The optional deadline of the evaluation
+     */
+    public EvaluationContext(PebbleTemplateImpl self, boolean strictVariables, Locale locale,
+                             ExtensionRegistry extensionRegistry, Cache<BaseTagCacheKey, Object> tagCache,
+                             ExecutorService executorService, List<PebbleTemplateImpl> importedTemplates, ScopeChain scopeChain,
+                             Hierarchy hierarchy, Deadline deadline) {
 
         if (hierarchy == null) {
             hierarchy = new Hierarchy(self);
@@ -99,6 +126,7 @@ public class EvaluationContext {
         this.importedTemplates = importedTemplates;
         this.scopeChain = scopeChain;
         this.hierarchy = hierarchy;
+        this.deadline = deadline;
     }
 
     /**
@@ -110,7 +138,7 @@ public class EvaluationContext {
      */
     public EvaluationContext shallowCopyWithoutInheritanceChain(PebbleTemplateImpl self) {
         EvaluationContext result = new EvaluationContext(self, strictVariables, locale, extensionRegistry, tagCache,
-                executorService, importedTemplates, scopeChain, null);
+                executorService, importedTemplates, scopeChain, null, deadline);
         return result;
     }
 
@@ -124,7 +152,7 @@ public class EvaluationContext {
      */
     public EvaluationContext threadSafeCopy(PebbleTemplateImpl self) {
         EvaluationContext result = new EvaluationContext(self, strictVariables, locale, extensionRegistry, tagCache,
-                executorService, new ArrayList<>(importedTemplates), scopeChain.deepCopy(), hierarchy);
+                executorService, new ArrayList<>(importedTemplates), scopeChain.deepCopy(), hierarchy, deadline);
         return result;
     }
 
@@ -164,6 +192,15 @@ public class EvaluationContext {
         return executorService;
     }
 
+    /**
+     * Returns the deadline of the evaluation if exists or null
+     *
+     * @return The deadline if exists, or null
+     */
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
     /**
      * Returns a list of imported templates.
      *
@@ -8,12 +8,16 @@
  ******************************************************************************/
 package com.mitchellbosecke.pebble.template;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import com.mitchellbosecke.pebble.error.PebbleException;
+import com.mitchellbosecke.pebble.reactive.Publisher;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.CharBuffer;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A template object constructed by an instance of {@link com.mitchellbosecke.pebble.PebbleEngine}. A template
@@ -63,6 +67,70 @@ public interface PebbleTemplate {
      */
     void evaluate(Writer writer, Map<String, Object> context, Locale locale) throws PebbleException, IOException;
 
+    /**
+     * Evaluate the template with a particular locale and a set of variables which
+     * has to be finished within the given amount of time.
+     * <p>
+     * The deadline is enforced on the content of the "parallel" tag and other work
+     * performed on the ExecutorService provided to the
+     * {@link com.mitchellbosecke.pebble.PebbleEngine}: waiting for that work is given
+     * up once the deadline has passed, and all outstanding work is then cancelled, as
+     * it is when any part of it fails. Work which has not started yet by then is
+     * skipped. Content rendered on the calling thread is not interrupted.
+     *
+     * @param writer  The results of the evaluation are written to this writer.
+     * @param context The variables used during the evaluation of the template, may be null.
+     * @param locale  The locale used during the evaluation of the template, may be null.
+     * @param timeout The maximum amount of time the evaluation may take
+     * @param unit    The unit of the timeout
+     * @throws PebbleException An exception with the evaluation of the template
+     * @throws IOException     An IO exception during the evaluation; an
+     *                         {@link java.io.InterruptedIOException} if the deadline passed
+     */
+    void evaluate(Writer writer, Map<String, Object> context, Locale locale, long timeout, TimeUnit unit)
+            throws PebbleException, IOException;
+
+    /**
+     * Evaluate the template asynchronously with a set of variables and the default locale
+     * provided by the {@link com.mitchellbosecke.pebble.PebbleEngine}.
+     *
+     * @param context The variables used during the evaluation of the template.
+     * @return A future which is completed with the output of the template
+     * @see #evaluateAsync(Map, Locale)
+     */
+    ListenableFuture<String> evaluateAsync(Map<String, Object> context);
+
+    /**
+     * Evaluate the template asynchronously with a particular locale and a set of variables.
+     * <p>
+     * The evaluation is performed on the async executor provided to the
+     * {@link com.mitchellbosecke.pebble.PebbleEngine}, which should not be the one used by the
+     * "parallel" tag. If no async executor was provided, the returned future has already
+     * failed with an IllegalStateException; the calling thread is never blocked.
+     *
+     * @param context The variables used during the evaluation of the template.
+     * @param locale  The locale used during the evaluation of the template.
+     * @return A future which is completed with the output of the template, or failed
+     * with the exception thrown during the evaluation
+     */
+    ListenableFuture<String> evaluateAsync(Map<String, Object> context, Locale locale);
+
+    /**
+     * Returns a publisher which evaluates the template on the async executor provided
+     * to the {@link com.mitchellbosecke.pebble.PebbleEngine} and emits the output in chunks as
+     * far as the subscriber has signaled demand. The evaluation goes on ahead of the demand
+     * until {@link com.mitchellbosecke.pebble.reactive.RenderPublisher#DEFAULT_HIGH_WATER_MARK}
+     * chunks are buffered, and is then paused until more chunks are requested.
+     * <p>
+     * Every subscription triggers a new evaluation. A subscription fails with an
+     * IllegalStateException if no async executor was provided to the engine.
+     *
+     * @param context The variables used during the evaluation of the template.
+     * @param locale  The locale used during the evaluation of the template.
+     * @return A publisher of the output of the template
+     */
+    Publisher<CharBuffer> evaluatePublisher(Map<String, Object> context, Locale locale);
+
     /**
      * Returns the name of the template
      *
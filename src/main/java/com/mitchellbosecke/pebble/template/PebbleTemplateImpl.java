@@ -8,20 +8,47 @@
  ******************************************************************************/
 package com.mitchellbosecke.pebble.template;
 
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.mitchellbosecke.pebble.PebbleEngine;
 import com.mitchellbosecke.pebble.error.PebbleException;
+import com.mitchellbosecke.pebble.extension.ExtensionRegistry;
 import com.mitchellbosecke.pebble.extension.escaper.SafeString;
+import com.mitchellbosecke.pebble.loader.TemplateMetadata;
 import com.mitchellbosecke.pebble.node.ArgumentsNode;
 import com.mitchellbosecke.pebble.node.RootNode;
+import com.mitchellbosecke.pebble.reactive.Publisher;
+import com.mitchellbosecke.pebble.reactive.RenderPublisher;
+import com.mitchellbosecke.pebble.utils.Deadline;
 import com.mitchellbosecke.pebble.utils.FutureWriter;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The actual implementation of a PebbleTemplate
@@ -47,6 +74,77 @@ public class PebbleTemplateImpl implements PebbleTemplate {
      */
     private final Map<String, Macro> macros = new HashMap<>();
 
+    /**
+     * Names of the templates referenced with a string literal by the "extends",
+     * "include" and "import" tags, as written in the template.
+     */
+    private final Set<String> dependencies = new LinkedHashSet<>();
+
+    /**
+     * The compiled templates referenced with a string literal, keyed by their
+     * names as written in the template, so that rendering does not have to
+     * resolve and look them up every time.
+     */
+    private final ConcurrentMap<String, Link> links = new ConcurrentHashMap<>(4);
+
+    /**
+     * Names of the macros whose output only depends on their arguments.
+     */
+    private final Set<String> pureMacros = new HashSet<>();
+
+    /**
+     * Whether or not this template, disregarding the templates it includes,
+     * can be evaluated without affecting the template which includes it.
+     */
+    private boolean isolated = false;
+
+    /**
+     * Whether or not this template and all of the templates it includes can be
+     * evaluated without affecting the template which includes it; computed on
+     * first use.
+     */
+    private volatile Boolean isolatedIncludingDependencies;
+
+    /**
+     * The output of this template if it consists of nothing but text, null
+     * otherwise.
+     */
+    private char[] staticContent;
+
+    /**
+     * The estimated amount of memory retained by this template, in bytes.
+     */
+    private long estimatedSize = 0;
+
+    /**
+     * A hash of the tokens of this template.
+     */
+    private String contentHash;
+
+    /**
+     * The hash of the content of this template and of the templates it
+     * depends on, computed on first use.
+     */
+    private volatile DependencyHash dependencyHash;
+
+    /**
+     * The metadata of the source of this template when it was loaded.
+     */
+    private TemplateMetadata metadata;
+
+    /**
+     * When the metadata was last compared with the source, as measured by
+     * {@link System#nanoTime()}.
+     */
+    private volatile long lastValidated;
+
+    /**
+     * The template whose AST this template shares, which is kept in the
+     * template repository as long as it is referenced; null if the AST was
+     * parsed for this template.
+     */
+    private PebbleTemplateImpl origin;
+
     /**
      * The root node of the AST to be rendered.
      */
@@ -70,6 +168,31 @@ public class PebbleTemplateImpl implements PebbleTemplate {
         this.name = name;
     }
 
+    /**
+     * Creates a template of another name, or of another engine, compiled from
+     * the same content as the given one. The AST, and everything derived from
+     * it, is shared with that template; relative names are resolved against
+     * the new name and everything else is taken from the new engine.
+     *
+     * @param engine   The pebble engine the template belongs to
+     * @param template The template compiled from the same content
+     * @param name     The name of the template
+     */
+    public PebbleTemplateImpl(PebbleEngine engine, PebbleTemplateImpl template, String name) {
+        this.engine = engine;
+        this.rootNode = template.rootNode;
+        this.name = name;
+        this.origin = template.origin == null ? template : template.origin;
+        this.blocks.putAll(template.blocks);
+        this.macros.putAll(template.macros);
+        this.dependencies.addAll(template.dependencies);
+        this.pureMacros.addAll(template.pureMacros);
+        this.isolated = template.isolated;
+        this.staticContent = template.staticContent;
+        this.estimatedSize = template.estimatedSize;
+        this.contentHash = template.contentHash;
+    }
+
     public void evaluate(Writer writer) throws PebbleException, IOException {
         EvaluationContext context = initContext(null);
         evaluate(writer, context);
@@ -92,6 +215,45 @@ public class PebbleTemplateImpl implements PebbleTemplate {
         evaluate(writer, context);
     }
 
+    public void evaluate(Writer writer, Map<String, Object> map, Locale locale, long timeout, TimeUnit unit)
+            throws PebbleException, IOException {
+        EvaluationContext context = initContext(locale, Deadline.after(timeout, unit));
+        if (map != null) {
+            context.getScopeChain().pushScope(map);
+        }
+        evaluate(writer, context);
+    }
+
+    public ListenableFuture<String> evaluateAsync(Map<String, Object> map) {
+        return evaluateAsync(map, null);
+    }
+
+    public ListenableFuture<String> evaluateAsync(final Map<String, Object> map, final Locale locale) {
+        ExecutorService executorService = engine.getAsyncExecutor();
+        if (executorService == null) {
+            return Futures.immediateFailedFuture(new IllegalStateException(
+                    "An async executor must be provided to the PebbleEngine in order to evaluate a template asynchronously."));
+        }
+
+        return MoreExecutors.listeningDecorator(executorService).submit(new Callable<String>() {
+
+            @Override
+            public String call() throws PebbleException, IOException {
+                StringWriter writer = new StringWriter();
+                if (map == null) {
+                    evaluate(writer, locale);
+                } else {
+                    evaluate(writer, map, locale);
+                }
+                return writer.toString();
+            }
+        });
+    }
+
+    public Publisher<CharBuffer> evaluatePublisher(Map<String, Object> map, Locale locale) {
+        return new RenderPublisher(this, map, locale, engine.getAsyncExecutor(), RenderPublisher.DEFAULT_CHUNK_SIZE);
+    }
+
     /**
      * This is the authoritative evaluate method. It will evaluate the template
      * starting at the root node.
@@ -103,7 +265,7 @@ public class PebbleTemplateImpl implements PebbleTemplate {
      */
     private void evaluate(Writer writer, EvaluationContext context) throws PebbleException, IOException {
         if (context.getExecutorService() != null) {
-            writer = new FutureWriter(writer);
+            writer = new FutureWriter(writer, context.getDeadline());
         }
         rootNode.render(this, writer, context);
 
@@ -128,6 +290,17 @@ public class PebbleTemplateImpl implements PebbleTemplate {
      * @return The evaluation context
      */
     private EvaluationContext initContext(Locale locale) {
+        return initContext(locale, null);
+    }
+
+    /**
+     * Initializes the evaluation context with settings from the engine.
+     *
+     * @param locale   The desired locale
+     * @param deadline The deadline of the evaluation, may be null
+     * @return The evaluation context
+     */
+    private EvaluationContext initContext(Locale locale, Deadline deadline) {
         locale = locale == null ? engine.getDefaultLocale() : locale;
 
         // globals
@@ -141,7 +314,7 @@ public class PebbleTemplateImpl implements PebbleTemplate {
 
         EvaluationContext context = new EvaluationContext(this, engine.isStrictVariables(), locale,
                 engine.getExtensionRegistry(), engine.getTagCache(), engine.getExecutorService(),
-                new ArrayList<PebbleTemplateImpl>(), scopeChain, null);
+                new ArrayList<PebbleTemplateImpl>(), scopeChain, null, deadline);
         return context;
     }
 
@@ -154,7 +327,17 @@ public class PebbleTemplateImpl implements PebbleTemplate {
      *                         template
      */
     public void importTemplate(EvaluationContext context, String name) throws PebbleException {
-        context.getImportedTemplates().add((PebbleTemplateImpl) engine.getTemplate(this.resolveRelativePath(name)));
+        importTemplate(context, (PebbleTemplateImpl) engine.getTemplate(this.resolveRelativePath(name)));
+    }
+
+    /**
+     * Imports a template which has been compiled already.
+     *
+     * @param context  The evaluation context
+     * @param template The template to import
+     */
+    public void importTemplate(EvaluationContext context, PebbleTemplateImpl template) {
+        context.getImportedTemplates().add(template);
     }
 
     /**
@@ -170,7 +353,66 @@ public class PebbleTemplateImpl implements PebbleTemplate {
      */
     public void includeTemplate(Writer writer, EvaluationContext context, String name, Map<?, ?> additionalVariables)
             throws PebbleException, IOException {
-        PebbleTemplateImpl template = (PebbleTemplateImpl) engine.getTemplate(this.resolveRelativePath(name));
+        includeTemplate(writer, context, (PebbleTemplateImpl) engine.getTemplate(this.resolveRelativePath(name)),
+                additionalVariables);
+    }
+
+    /**
+     * Includes a template which has been compiled already into this template.
+     *
+     * @param writer              the writer to which the output should be written to.
+     * @param context             the context within which the template is rendered in.
+     * @param template            the template to include.
+     * @param additionalVariables the map with additional variables provided with the include
+     *                            tag to add within the include tag.
+     * @throws PebbleException Any error occurring during the evaluation of the template
+     * @throws IOException     Any error occurring while writing the output
+     */
+    public void includeTemplate(Writer writer, EvaluationContext context, final PebbleTemplateImpl template,
+                                Map<?, ?> additionalVariables) throws PebbleException, IOException {
+        char[] content = template.getStaticContent();
+        if (content != null) {
+            writer.write(content);
+            return;
+        }
+
+        ExecutorService executorService = context.getExecutorService();
+        if (executorService != null && engine.isParallelIncludes() && writer instanceof FutureWriter
+                && template.isIsolated()) {
+
+            /*
+             * The included template can not affect this template so it is
+             * evaluated concurrently with a snapshot of the context, the same
+             * way as the contents of the "parallel" tag.
+             */
+            final Deadline deadline = context.getDeadline();
+            if (deadline != null && deadline.isExpired()) {
+                throw new PebbleException(null, "The deadline of the evaluation has passed", null, this.getName());
+            }
+
+            final EvaluationContext contextCopy = context.threadSafeCopy(this);
+            final Map<?, ?> variables = additionalVariables;
+            Future<String> future = executorService.submit(new Callable<String>() {
+
+                @Override
+                public String call() throws PebbleException, IOException {
+                    if (deadline != null && deadline.isExpired()) {
+                        throw new PebbleException(null, "The deadline of the evaluation has passed", null,
+                                template.getName());
+                    }
+                    StringWriter stringWriter = new StringWriter();
+                    evaluateInclude(stringWriter, contextCopy, template, variables);
+                    return stringWriter.toString();
+                }
+            });
+            ((FutureWriter) writer).enqueue(future);
+        } else {
+            evaluateInclude(writer, context, template, additionalVariables);
+        }
+    }
+
+    private void evaluateInclude(Writer writer, EvaluationContext context, PebbleTemplateImpl template,
+                                 Map<?, ?> additionalVariables) throws PebbleException, IOException {
         EvaluationContext newContext = context.shallowCopyWithoutInheritanceChain(template);
         ScopeChain scopeChain = newContext.getScopeChain();
         scopeChain.pushScope();
@@ -181,6 +423,222 @@ public class PebbleTemplateImpl implements PebbleTemplate {
         scopeChain.popScope();
     }
 
+    /**
+     * Returns whether or not this template can be included by another template
+     * without affecting it, i.e. without setting variables or importing macros
+     * which would be visible to the including template. The templates included
+     * by this template are taken into account and compiled if necessary.
+     *
+     * @return Whether or not this template can be included without side effects
+     * @throws PebbleException Thrown if an included template can not be compiled
+     */
+    public boolean isIsolated() throws PebbleException {
+        Boolean result = isolatedIncludingDependencies;
+        if (result == null) {
+            result = isIsolated(new HashSet<PebbleTemplateImpl>());
+            isolatedIncludingDependencies = result;
+        }
+        return result;
+    }
+
+    private boolean isIsolated(Set<PebbleTemplateImpl> visiting) throws PebbleException {
+        if (isolatedIncludingDependencies != null) {
+            return isolatedIncludingDependencies;
+        }
+
+        // a template including itself is not worth the trouble
+        if (!isolated || !visiting.add(this)) {
+            return false;
+        }
+
+        // an isolated template can only depend on templates it includes
+        for (String dependency : dependencies) {
+            PebbleTemplateImpl template = getLinkedTemplate(dependency);
+            if (!template.isIsolated(visiting)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a hash of the content of this template, which changes whenever
+     * the template is modified.
+     *
+     * @return The content hash, or null if unknown
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * Returns a hash of the content of this template and of the templates it
+     * references with a string literal, directly or not, which changes
+     * whenever any of them is modified. Templates whose name is only known at
+     * evaluation time are not taken into account.
+     * <p>
+     * The hash is computed once for as long as no template of the engine has
+     * been invalidated, like the links to the referenced templates.
+     *
+     * @return The hash, or null if the content hash of one of the templates is unknown
+     * @throws PebbleException Thrown if a referenced template can not be compiled
+     */
+    public String getDependencyHash() throws PebbleException {
+        if (dependencies.isEmpty()) {
+            return contentHash;
+        }
+        DependencyHash current = dependencyHash;
+        if (current != null && current.generation == engine.getGeneration()) {
+            return current.hash;
+        }
+
+        // the generation is read first so that an invalidation during the computation is noticed later on
+        long generation = engine.getGeneration();
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        String hash = hashDependencies(hasher, new HashSet<PebbleTemplateImpl>()) ? hasher.hash().toString() : null;
+        dependencyHash = new DependencyHash(hash, generation);
+        return hash;
+    }
+
+    private boolean hashDependencies(Hasher hasher, Set<PebbleTemplateImpl> visited) throws PebbleException {
+        if (!visited.add(this)) {
+            return true;
+        }
+        if (contentHash == null) {
+            return false;
+        }
+        hasher.putUnencodedChars(contentHash).putChar(':');
+        for (String dependency : dependencies) {
+            if (!getLinkedTemplate(dependency).hashDependencies(hasher, visited)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the hash of the content of this template.
+     *
+     * @param contentHash The content hash
+     */
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * Returns the metadata of the source of this template when it was loaded.
+     *
+     * @return The metadata, or null if unknown
+     */
+    public TemplateMetadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Sets the metadata of the source of this template when it was loaded.
+     *
+     * @param metadata The metadata
+     */
+    public void setMetadata(TemplateMetadata metadata) {
+        this.metadata = metadata;
+    }
+
+    /**
+     * Returns when the metadata was last compared with the source.
+     *
+     * @return The point in time as measured by {@link System#nanoTime()}
+     */
+    public long getLastValidated() {
+        return lastValidated;
+    }
+
+    /**
+     * Sets when the metadata was last compared with the source.
+     *
+     * @param lastValidated The point in time as measured by {@link System#nanoTime()}
+     */
+    public void setLastValidated(long lastValidated) {
+        this.lastValidated = lastValidated;
+    }
+
+    /**
+     * Returns the estimated amount of memory retained by this template.
+     *
+     * @return The estimated size in bytes
+     */
+    public long getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    /**
+     * Sets the estimated amount of memory retained by this template.
+     *
+     * @param estimatedSize The estimated size in bytes
+     */
+    public void setEstimatedSize(long estimatedSize) {
+        this.estimatedSize = estimatedSize;
+    }
+
+    /**
+     * Sets whether or not this template, disregarding the templates it includes,
+     * can be evaluated without affecting the template which includes it.
+     *
+     * @param isolated Whether or not this template is isolated
+     */
+    public void setIsolated(boolean isolated) {
+        this.isolated = isolated;
+    }
+
+    /**
+     * Returns the pre-rendered output of this template if it consists of
+     * nothing but text.
+     *
+     * @return The output of the template or null if it is not static
+     */
+    public char[] getStaticContent() {
+        return staticContent;
+    }
+
+    /**
+     * Sets the pre-rendered output of this template, which must consist of
+     * nothing but text.
+     *
+     * @param staticContent The output of the template
+     */
+    public void setStaticContent(char[] staticContent) {
+        this.staticContent = staticContent;
+    }
+
+    /**
+     * Marks a macro whose output only depends on its arguments and the locale,
+     * so that its output is memoized.
+     *
+     * @param macroName The name of the macro
+     */
+    public void setMacroPure(String macroName) {
+        pureMacros.add(macroName);
+    }
+
+    /**
+     * Returns whether or not the output of a macro only depends on its
+     * arguments and the locale.
+     *
+     * @param macroName The name of the macro
+     * @return Whether or not the macro is pure
+     */
+    public boolean isMacroPure(String macroName) {
+        return pureMacros.contains(macroName);
+    }
+
+    /**
+     * Returns the filters, tests and functions available to this template.
+     *
+     * @return The extension registry of the engine
+     */
+    public ExtensionRegistry getExtensionRegistry() {
+        return engine.getExtensionRegistry();
+    }
+
     /**
      * Checks if a macro exists
      *
@@ -239,6 +697,80 @@ public class PebbleTemplateImpl implements PebbleTemplate {
         this.macros.put(macro.getName(), macro);
     }
 
+    /**
+     * Registers the name of a template which is referenced by this template.
+     *
+     * @param templateName The name of the referenced template, as written in this template
+     */
+    public void registerDependency(String templateName) {
+        dependencies.add(templateName);
+    }
+
+    /**
+     * Returns the names of the templates which are statically referenced by this
+     * template through the "extends", "include" and "import" tags. Relative
+     * names are resolved against the name of this template.
+     *
+     * @return The names of the referenced templates
+     */
+    public List<String> getDependencies() {
+        List<String> result = new ArrayList<>(dependencies.size());
+        for (String dependency : dependencies) {
+            result.add(resolveRelativePath(dependency));
+        }
+        return result;
+    }
+
+    /**
+     * Links the templates referenced by this template with a string literal
+     * which are compiled and cached already; the others are linked once they
+     * are first rendered. This is done once the template has been compiled.
+     */
+    public void link() {
+        long generation = engine.getGeneration();
+        for (String dependency : dependencies) {
+            String templateName = resolveRelativePath(dependency);
+            Object cacheKey = engine.getLoader().createCacheKey(templateName);
+            PebbleTemplate template = engine.getTemplateCache().getIfPresent(cacheKey);
+            if (template instanceof PebbleTemplateImpl) {
+                links.put(dependency, new Link(templateName, cacheKey, (PebbleTemplateImpl) template, generation));
+            }
+        }
+    }
+
+    /**
+     * Returns a template referenced by this template with a string literal.
+     * The compiled template is kept once it has been looked up and used for as
+     * long as no template of the engine has been invalidated since, and its
+     * source has not changed.
+     *
+     * @param name The name of the template, as written in this template
+     * @return The compiled template
+     * @throws PebbleException Thrown if the template can not be compiled
+     */
+    public PebbleTemplateImpl getLinkedTemplate(String name) throws PebbleException {
+        Link link = links.get(name);
+        PebbleTemplateImpl linked = link == null ? null : link.template.get();
+        if (linked != null && link.generation == engine.getGeneration()) {
+            if (!engine.isOutdated(linked, link.cacheKey)) {
+                return linked;
+            }
+            engine.invalidate(link.templateName);
+        }
+
+        // the generation is read first so that an invalidation during the lookup is noticed later on
+        long generation = engine.getGeneration();
+        String templateName = resolveRelativePath(name);
+        PebbleTemplateImpl template = (PebbleTemplateImpl) engine.getTemplate(templateName);
+
+        // private copies and templates compiled while the cache is disabled are looked up every time
+        Object cacheKey = engine.getLoader().createCacheKey(templateName);
+        if (engine.getTemplateCache().getIfPresent(cacheKey) == template) {
+            links.put(name, new Link(templateName, cacheKey, template, generation));
+        }
+        return template;
+    }
+
     /**
      * A typical block declaration will use this method which evaluates the
      * block using the regular user-provided writer.
@@ -309,7 +841,7 @@ public class PebbleTemplateImpl implements PebbleTemplate {
             Macro macro = macros.get(macroName);
 
             Map<String, Object> namedArguments = args.getArgumentMap(this, context, macro);
-            result = new SafeString(macro.call(this, context, namedArguments));
+            result = new SafeString(callMacro(macro, context, namedArguments));
         }
 
         // check imported templates
@@ -337,9 +869,65 @@ public class PebbleTemplateImpl implements PebbleTemplate {
         return result;
     }
 
+    /**
+     * Calls a macro, serving the output of pure macros called with immutable
+     * arguments from the macro cache of the engine.
+     */
+    private String callMacro(final Macro macro, final EvaluationContext context,
+                             final Map<String, Object> namedArguments) throws PebbleException {
+        if (!pureMacros.contains(macro.getName()) || contentHash == null) {
+            return macro.call(this, context, namedArguments);
+        }
+        Map<String, Object> arguments = new HashMap<>(namedArguments);
+        arguments.remove("_self");
+        arguments.remove("_context");
+        for (Object argument : arguments.values()) {
+            if (!isImmutable(argument)) {
+                return macro.call(this, context, namedArguments);
+            }
+        }
+
+        MacroCallKey key = new MacroCallKey(contentHash, macro.getName(), context.getLocale(), arguments);
+        try {
+            return engine.getMacroCache().get(key, new Callable<String>() {
+
+                @Override
+                public String call() throws PebbleException {
+                    return macro.call(PebbleTemplateImpl.this, context, namedArguments);
+                }
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof PebbleException) {
+                throw (PebbleException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new PebbleException(cause, String.format("Could not evaluate macro [%s]", macro.getName()));
+        }
+    }
+
+    private static boolean isImmutable(Object value) {
+        return value == null || value instanceof String || value instanceof SafeString || value instanceof Long
+                || value instanceof Integer || value instanceof Double || value instanceof Float
+                || value instanceof Short || value instanceof Byte || value instanceof BigDecimal
+                || value instanceof BigInteger || value instanceof Boolean || value instanceof Character
+                || value instanceof Enum;
+    }
+
     public void setParent(EvaluationContext context, String parentName) throws PebbleException {
-        context.getHierarchy()
-                .pushAncestor((PebbleTemplateImpl) engine.getTemplate(this.resolveRelativePath(parentName)));
+        setParent(context, (PebbleTemplateImpl) engine.getTemplate(this.resolveRelativePath(parentName)));
+    }
+
+    /**
+     * Sets the parent of this template to a template which has been compiled
+     * already.
+     *
+     * @param context The evaluation context
+     * @param parent  The parent template
+     */
+    public void setParent(EvaluationContext context, PebbleTemplateImpl parent) {
+        context.getHierarchy().pushAncestor(parent);
     }
 
     /**
@@ -351,4 +939,91 @@ public class PebbleTemplateImpl implements PebbleTemplate {
         return name;
     }
 
+    /**
+     * Identifies a call of a macro of a template with a particular content.
+     * The content hash is used instead of the template itself so that the
+     * macro cache does not keep templates in memory once they have been
+     * evicted or reloaded, and so that templates with the same content share
+     * their entries.
+     */
+    private static class MacroCallKey {
+
+        private final String contentHash;
+
+        private final String macroName;
+
+        private final Locale locale;
+
+        private final Map<String, Object> arguments;
+
+        private final int hashCode;
+
+        public MacroCallKey(String contentHash, String macroName, Locale locale, Map<String, Object> arguments) {
+            this.contentHash = contentHash;
+            this.macroName = macroName;
+            this.locale = locale;
+            this.arguments = arguments;
+            this.hashCode = 31 * (31 * (31 * contentHash.hashCode() + macroName.hashCode())
+                    + (locale == null ? 0 : locale.hashCode())) + arguments.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof MacroCallKey)) {
+                return false;
+            }
+            MacroCallKey other = (MacroCallKey) obj;
+            return contentHash.equals(other.contentHash) && macroName.equals(other.macroName)
+                    && (locale == null ? other.locale == null : locale.equals(other.locale))
+                    && arguments.equals(other.arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * The hash of the dependencies of this template, as it was when the
+     * engine was at the given generation.
+     */
+    private static class DependencyHash {
+
+        private final String hash;
+
+        private final long generation;
+
+        private DependencyHash(String hash, long generation) {
+            this.hash = hash;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * A compiled template referenced by this template, as it was when the
+     * engine was at the given generation. The template is only weakly
+     * referenced, so that it can be collected once it has been evicted from
+     * the template cache; it is then looked up again.
+     */
+    private static class Link {
+
+        private final String templateName;
+
+        private final Object cacheKey;
+
+        private final WeakReference<PebbleTemplateImpl> template;
+
+        private final long generation;
+
+        private Link(String templateName, Object cacheKey, PebbleTemplateImpl template, long generation) {
+            this.templateName = templateName;
+            this.cacheKey = cacheKey;
+            this.template = new WeakReference<>(template);
+            this.generation = generation;
+        }
+    }
 }
@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.template;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.mitchellbosecke.pebble.PebbleEngine;
+import com.mitchellbosecke.pebble.error.PebbleException;
+import com.mitchellbosecke.pebble.reactive.Publisher;
+import com.mitchellbosecke.pebble.reactive.RenderPublisher;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-lived reference to a template of an engine, obtained through
+ * {@link PebbleEngine#handle(String)}, which can be kept in a field and
+ * evaluated any number of times from any number of threads.
+ * <p>
+ * The handle pins the compiled template, so that evaluating it does not have
+ * to create a cache key and look the template up in the template cache.
+ * Whenever the engine invalidates or reloads templates, which advances its
+ * generation, the handle looks the template up again and thereby picks up
+ * the recompiled version. The revalidation of the engine, if enabled, applies
+ * to the pinned template as well. A template which is not cached, such as
+ * with an engine whose caches are disabled, is looked up every time.
+ *
+ * @author mbosecke
+ */
+public class TemplateHandle implements PebbleTemplate {
+
+    private final PebbleEngine engine;
+
+    private final String name;
+
+    private final Object cacheKey;
+
+    private volatile Pinned pinned;
+
+    /**
+     * Constructor
+     *
+     * @param engine The engine the template belongs to
+     * @param name   The name of the template
+     * @throws PebbleException Thrown if the template can not be compiled
+     */
+    public TemplateHandle(PebbleEngine engine, String name) throws PebbleException {
+        this.engine = engine;
+        this.name = name;
+        this.cacheKey = engine.getLoader().createCacheKey(name);
+        getTemplate();
+    }
+
+    /**
+     * Returns the compiled template the handle currently refers to.
+     *
+     * @return The compiled template
+     * @throws PebbleException Thrown if the template has to be compiled again
+     *                         and can not be compiled
+     */
+    public PebbleTemplate getTemplate() throws PebbleException {
+        Pinned current = pinned;
+        if (current != null && current.generation == engine.getGeneration()) {
+            if (!engine.isOutdated(current.template, cacheKey)) {
+                return current.template;
+            }
+            engine.invalidate(name);
+        }
+
+        // the generation is read first so that an invalidation during the lookup is noticed later on
+        long generation = engine.getGeneration();
+        PebbleTemplate template = engine.getTemplate(name);
+        if (engine.getTemplateCache().getIfPresent(cacheKey) == template) {
+            pinned = new Pinned(template, generation);
+        } else {
+            pinned = null;
+        }
+        return template;
+    }
+
+    @Override
+    public void evaluate(Writer writer) throws PebbleException, IOException {
+        getTemplate().evaluate(writer);
+    }
+
+    @Override
+    public void evaluate(Writer writer, Locale locale) throws PebbleException, IOException {
+        getTemplate().evaluate(writer, locale);
+    }
+
+    @Override
+    public void evaluate(Writer writer, Map<String, Object> context) throws PebbleException, IOException {
+        getTemplate().evaluate(writer, context);
+    }
+
+    @Override
+    public void evaluate(Writer writer, Map<String, Object> context, Locale locale) throws PebbleException,
+            IOException {
+        getTemplate().evaluate(writer, context, locale);
+    }
+
+    @Override
+    public void evaluate(Writer writer, Map<String, Object> context, Locale locale, long timeout, TimeUnit unit)
+            throws PebbleException, IOException {
+        getTemplate().evaluate(writer, context, locale, timeout, unit);
+    }
+
+    @Override
+    public ListenableFuture<String> evaluateAsync(Map<String, Object> context) {
+        return evaluateAsync(context, null);
+    }
+
+    @Override
+    public ListenableFuture<String> evaluateAsync(final Map<String, Object> context, final Locale locale) {
+        ExecutorService executorService = engine.getAsyncExecutor();
+        if (executorService == null) {
+            return Futures.immediateFailedFuture(new IllegalStateException(
+                    "An async executor must be provided to the PebbleEngine in order to evaluate a template asynchronously."));
+        }
+
+        // the template is looked up on the executor so that a compilation error fails the future
+        return MoreExecutors.listeningDecorator(executorService).submit(new Callable<String>() {
+
+            @Override
+            public String call() throws PebbleException, IOException {
+                StringWriter writer = new StringWriter();
+                if (context == null) {
+                    evaluate(writer, locale);
+                } else {
+                    evaluate(writer, context, locale);
+                }
+                return writer.toString();
+            }
+        });
+    }
+
+    @Override
+    public Publisher<CharBuffer> evaluatePublisher(Map<String, Object> context, Locale locale) {
+        return new RenderPublisher(this, context, locale, engine.getAsyncExecutor(),
+                RenderPublisher.DEFAULT_CHUNK_SIZE);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The compiled template, as it was when the engine was at the given
+     * generation.
+     */
+    private static class Pinned {
+
+        private final PebbleTemplate template;
+
+        private final long generation;
+
+        private Pinned(PebbleTemplate template, long generation) {
+            this.template = template;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.template;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Holds compiled templates by content hash so that templates compiled from
+ * the same content share a single AST, within an engine as well as across
+ * all of the engines the repository is given to.
+ * <p>
+ * Templates are only shared between engines whose extensions have the same
+ * {@link com.mitchellbosecke.pebble.extension.ExtensionRegistry#getFingerprint()
+ * fingerprint}; everything else, such as the global variables, the default
+ * locale, the executor service and the caches, is taken from the engine
+ * rendering the template. A template is kept as long as a template sharing
+ * its AST is in use.
+ *
+ * @author mbosecke
+ */
+public class TemplateRepository {
+
+    private final Cache<String, PebbleTemplateImpl> templates = CacheBuilder.newBuilder().weakValues().build();
+
+    /**
+     * Returns a template compiled from the given content with the given
+     * extensions.
+     *
+     * @param fingerprint The fingerprint of the extensions of the engine
+     * @param contentHash The hash of the content
+     * @return The template, or null if there is none
+     */
+    public PebbleTemplateImpl get(String fingerprint, String contentHash) {
+        return templates.getIfPresent(fingerprint + ':' + contentHash);
+    }
+
+    /**
+     * Adds a template whose AST can be shared.
+     *
+     * @param fingerprint The fingerprint of the extensions of the engine which compiled the template
+     * @param template    The template
+     */
+    public void put(String fingerprint, PebbleTemplateImpl template) {
+        templates.put(fingerprint + ':' + template.getContentHash(), template);
+    }
+
+    /**
+     * Returns the number of templates which can currently be shared.
+     *
+     * @return The number of templates
+     */
+    public long size() {
+        templates.cleanUp();
+        return templates.size();
+    }
+}
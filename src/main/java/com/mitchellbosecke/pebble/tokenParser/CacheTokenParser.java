@@ -18,8 +18,21 @@ import com.mitchellbosecke.pebble.node.expression.Expression;
 import com.mitchellbosecke.pebble.parser.Parser;
 import com.mitchellbosecke.pebble.parser.StoppingCondition;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
- * Token parser for the cache tag
+ * Token parser for the cache tag:
+ *
+ * <pre>
+ * {% cache 'name', key1, key2 ttl 60 stale 10 namespace 'products' %}...{% endcache %}
+ * </pre>
+ *
+ * The comma separated expressions identify the fragment. The time to live is
+ * an expression evaluating to a number of seconds and the namespace is a
+ * string literal; both are optional. The optional stale time is the number of
+ * seconds during which an expired fragment is still served while it is
+ * rendered again on the ExecutorService.
  *
  * @author Eric Bussieres
  */
@@ -35,14 +48,35 @@ public class CacheTokenParser extends AbstractTokenParser {
     public RenderableNode parse(Token token, Parser parser) throws ParserException {
         TokenStream stream = parser.getStream();
         int lineNumber = token.getLineNumber();
+        int position = stream.getPosition();
 
         // skip over the 'cache' token
         stream.next();
 
-        Expression<?> expression = parser.getExpressionParser().parseExpression();
+        List<Expression<?>> keys = new ArrayList<>();
+        keys.add(parser.getExpressionParser().parseExpression());
+        while (stream.current().test(Token.Type.PUNCTUATION, ",")) {
+            stream.next();
+            keys.add(parser.getExpressionParser().parseExpression());
+        }
 
-        // Skip the expression
-        stream.next();
+        Expression<?> timeToLive = null;
+        Expression<?> staleWhileRevalidate = null;
+        String namespace = null;
+        while (stream.current().test(Token.Type.NAME, "ttl", "stale", "namespace")) {
+            if (stream.current().test(Token.Type.NAME, "ttl")) {
+                stream.next();
+                timeToLive = parser.getExpressionParser().parseExpression();
+            } else if (stream.current().test(Token.Type.NAME, "stale")) {
+                stream.next();
+                staleWhileRevalidate = parser.getExpressionParser().parseExpression();
+            } else {
+                stream.next();
+                namespace = stream.expect(Token.Type.STRING).getValue();
+            }
+        }
+
+        stream.expect(Token.Type.EXECUTE_END);
 
         // now we parse the cache body
         BodyNode cacheBody = parser.subparse(new StoppingCondition() {
@@ -56,6 +90,6 @@ public class CacheTokenParser extends AbstractTokenParser {
         stream.next();
 
         stream.expect(Token.Type.EXECUTE_END);
-        return new CacheNode(lineNumber, expression, cacheBody);
+        return new CacheNode(lineNumber, position, keys, timeToLive, staleWhileRevalidate, namespace, cacheBody);
     }
 }
@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A writer which can also accept content that is already encoded, so that
+ * content stored as bytes does not have to be decoded only to be encoded
+ * again.
+ *
+ * @author mbosecke
+ */
+public interface ByteWriter {
+
+    /**
+     * Returns the charset the output is encoded with.
+     *
+     * @return The charset, or null if the writer can not accept encoded content at the moment
+     */
+    Charset getCharset();
+
+    /**
+     * Writes the remaining bytes of a buffer, which must be encoded with the
+     * charset returned by {@link #getCharset()}. The position of the buffer is
+     * not guaranteed to be advanced.
+     *
+     * @param bytes The encoded content
+     * @throws IOException Thrown if the content can not be written
+     */
+    void write(ByteBuffer bytes) throws IOException;
+}
@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time, measured with {@link System#nanoTime()}, by which the
+ * evaluation of a template has to be finished.
+ *
+ * @author mbosecke
+ */
+public class Deadline {
+
+    private final long deadlineNanos;
+
+    private Deadline(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * Creates a deadline which passes after the given amount of time.
+     *
+     * @param timeout The amount of time
+     * @param unit    The unit of the amount of time
+     * @return The deadline
+     */
+    public static Deadline after(long timeout, TimeUnit unit) {
+        return new Deadline(System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /**
+     * Returns the time left until the deadline passes, which is negative or
+     * zero once it has passed.
+     *
+     * @return The remaining time in nanoseconds
+     */
+    public long remainingNanos() {
+        return deadlineNanos - System.nanoTime();
+    }
+
+    /**
+     * Returns whether or not the deadline has passed.
+     *
+     * @return Whether or not the deadline has passed
+     */
+    public boolean isExpired() {
+        return remainingNanos() <= 0;
+    }
+}
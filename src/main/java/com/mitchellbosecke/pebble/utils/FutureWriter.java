@@ -9,8 +9,12 @@
 package com.mitchellbosecke.pebble.utils;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.LinkedList;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -24,19 +28,34 @@ import java.util.concurrent.TimeoutException;
  * It is not thread safe but that is okay. Each thread will have it's own
  * writer, provided by the "parallel" node; i.e. they will never share writers.
  *
+ * If a deadline is provided, flushing the writer waits for the futures no
+ * longer than until the deadline passes. Whenever a future can not be written,
+ * because the deadline has passed, the waiting thread was interrupted or the
+ * future failed, all of the remaining futures are cancelled.
+ *
+ * Encoded content is passed on to the user-provided writer if it is a
+ * {@link ByteWriter}.
+ *
  * @author Mitchell
  *
  */
-public class FutureWriter extends Writer {
+public class FutureWriter extends Writer implements ByteWriter {
 
-    private final LinkedList<Future<String>> orderedFutures = new LinkedList<>();
+    private final LinkedList<Future<?>> orderedFutures = new LinkedList<>();
 
     private final Writer internalWriter;
 
+    private final Deadline deadline;
+
     private boolean closed = false;
 
     public FutureWriter(Writer writer) {
+        this(writer, null);
+    }
+
+    public FutureWriter(Writer writer, Deadline deadline) {
         this.internalWriter = writer;
+        this.deadline = deadline;
     }
 
     public void enqueue(Future<String> future) throws IOException {
@@ -58,52 +77,78 @@ public class FutureWriter extends Writer {
         if (orderedFutures.isEmpty()) {
             internalWriter.write(result);
         } else {
-            Future<String> future = new Future<String>() {
-
-                @Override
-                public boolean cancel(boolean mayInterruptIfRunning) {
-                    return false;
-                }
-
-                @Override
-                public boolean isCancelled() {
-                    return false;
-                }
-
-                @Override
-                public boolean isDone() {
-                    return true;
-                }
-
-                @Override
-                public String get() throws InterruptedException, ExecutionException {
-                    return result;
-                }
+            orderedFutures.add(new CompletedFuture<>(result));
+        }
+    }
 
-                @Override
-                public String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
-                        TimeoutException {
-                    return null;
-                }
+    /**
+     * Returns the charset of the wrapped writer if it accepts encoded content.
+     */
+    @Override
+    public Charset getCharset() {
+        return internalWriter instanceof ByteWriter ? ((ByteWriter) internalWriter).getCharset() : null;
+    }
 
-            };
+    /**
+     * Forwards encoded content to the wrapped writer, which must be a
+     * {@link ByteWriter}. Content which has to wait for futures is copied.
+     */
+    @Override
+    public void write(ByteBuffer bytes) throws IOException {
+        if (closed) {
+            throw new IOException("Writer is closed");
+        }
+        if (getCharset() == null) {
+            throw new IllegalStateException("The underlying writer does not accept encoded content");
+        }
 
-            orderedFutures.add(future);
+        if (orderedFutures.isEmpty()) {
+            ((ByteWriter) internalWriter).write(bytes);
+        } else {
+            ByteBuffer copy = ByteBuffer.allocate(bytes.remaining());
+            copy.put(bytes.duplicate());
+            copy.flip();
+            orderedFutures.add(new CompletedFuture<>(copy));
         }
     }
 
     @Override
     public void flush() throws IOException {
-        for (Future<String> future : orderedFutures) {
-            try {
-                String result = future.get();
-                internalWriter.write(result);
+        try {
+            while (!orderedFutures.isEmpty()) {
+                Future<?> future = orderedFutures.getFirst();
+                Object result = deadline == null ? future.get() : future.get(deadline.remainingNanos(),
+                        TimeUnit.NANOSECONDS);
+                orderedFutures.removeFirst();
+                if (result instanceof ByteBuffer) {
+                    ((ByteWriter) internalWriter).write((ByteBuffer) result);
+                } else {
+                    internalWriter.write((String) result);
+                }
                 internalWriter.flush();
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            } catch (ExecutionException e) {
-                throw new IOException(e);
             }
+        } catch (InterruptedException e) {
+            cancelAll();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for parallel content");
+        } catch (TimeoutException e) {
+            cancelAll();
+            InterruptedIOException exception = new InterruptedIOException(
+                    "The deadline passed while waiting for parallel content");
+            exception.initCause(e);
+            throw exception;
+        } catch (ExecutionException | CancellationException e) {
+            cancelAll();
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Cancels all of the futures which have not been written yet.
+     */
+    private void cancelAll() {
+        for (Future<?> future : orderedFutures) {
+            future.cancel(true);
         }
         orderedFutures.clear();
     }
@@ -116,4 +161,40 @@ public class FutureWriter extends Writer {
 
     }
 
+    /**
+     * A future of content which has already been rendered.
+     */
+    private static class CompletedFuture<T> implements Future<T> {
+
+        private final T result;
+
+        public CompletedFuture(T result) {
+            this.result = result;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return true;
+        }
+
+        @Override
+        public T get() {
+            return result;
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) {
+            return result;
+        }
+    }
 }
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A writer which encodes the content into an output stream and writes the
+ * content which is already encoded, such as fragments of an off-heap tag
+ * cache, to the stream as it is.
+ *
+ * @author mbosecke
+ */
+public class OutputStreamByteWriter extends Writer implements ByteWriter {
+
+    private static final int TRANSFER_BUFFER_SIZE = 8192;
+
+    private final OutputStream out;
+
+    private final Charset charset;
+
+    private final Writer encoder;
+
+    private byte[] transferBuffer;
+
+    public OutputStreamByteWriter(OutputStream out, Charset charset) {
+        this.out = out;
+        this.charset = charset;
+
+        // flushing the encoder must not flush the stream every time encoded content is written
+        this.encoder = new OutputStreamWriter(new FilterOutputStream(out) {
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void flush() {
+            }
+        }, charset);
+    }
+
+    @Override
+    public Charset getCharset() {
+        return charset;
+    }
+
+    @Override
+    public void write(ByteBuffer bytes) throws IOException {
+        encoder.flush();
+        if (bytes.hasArray()) {
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            return;
+        }
+        if (transferBuffer == null) {
+            transferBuffer = new byte[TRANSFER_BUFFER_SIZE];
+        }
+        ByteBuffer source = bytes.duplicate();
+        while (source.hasRemaining()) {
+            int length = Math.min(source.remaining(), transferBuffer.length);
+            source.get(transferBuffer, 0, length);
+            out.write(transferBuffer, 0, length);
+        }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        encoder.write(cbuf, off, len);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        encoder.write(str, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        encoder.flush();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        encoder.flush();
+        out.close();
+    }
+}
@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble.utils;
+
+import java.io.CharArrayReader;
+
+/**
+ * A reader over the entire, already decoded, content of a template. The
+ * lexer uses the characters as they are instead of reading them, so a loader
+ * returning this reader must not modify the array afterwards.
+ *
+ * @author mbosecke
+ */
+public class TemplateContentReader extends CharArrayReader {
+
+    public TemplateContentReader(char[] content) {
+        super(content);
+    }
+
+    public TemplateContentReader(char[] content, int length) {
+        super(content, 0, length);
+    }
+
+    /**
+     * Returns the array holding the content, which may be longer than the
+     * content.
+     *
+     * @return The characters of the template
+     */
+    public char[] getContent() {
+        return buf;
+    }
+
+    /**
+     * Returns the number of characters of the content.
+     *
+     * @return The length of the content
+     */
+    public int getLength() {
+        return count;
+    }
+}
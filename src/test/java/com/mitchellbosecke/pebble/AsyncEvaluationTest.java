@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.mitchellbosecke.pebble.error.PebbleException;
+import com.mitchellbosecke.pebble.extension.TestingExtension;
+import com.mitchellbosecke.pebble.loader.StringLoader;
+import com.mitchellbosecke.pebble.reactive.RenderPublisher;
+import com.mitchellbosecke.pebble.reactive.Subscriber;
+import com.mitchellbosecke.pebble.reactive.Subscription;
+import com.mitchellbosecke.pebble.template.PebbleTemplate;
+import org.junit.Test;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncEvaluationTest extends AbstractTest {
+
+    @Test
+    public void testEvaluateAsync() throws PebbleException, InterruptedException, ExecutionException {
+        ExecutorService es = Executors.newCachedThreadPool();
+        ExecutorService async = Executors.newSingleThreadExecutor();
+        PebbleEngine pebble = new PebbleEngine.Builder().loader(new StringLoader()).executorService(es)
+                .asyncExecutor(async).build();
+
+        PebbleTemplate template = pebble
+                .getTemplate("hello {{ name }}{% parallel %} and {{ name }} again{% endparallel %}");
+
+        Map<String, Object> context = new HashMap<>();
+        context.put("name", "world");
+        assertEquals("hello world and world again", template.evaluateAsync(context).get());
+        es.shutdown();
+        async.shutdown();
+    }
+
+    @Test
+    public void testEvaluateAsyncWithoutExecutorService() throws PebbleException, InterruptedException {
+        PebbleEngine pebble = new PebbleEngine.Builder().loader(new StringLoader()).build();
+        PebbleTemplate template = pebble.getTemplate("hello {{ 'world' }}");
+        ListenableFuture<String> future = template.evaluateAsync(null);
+        assertTrue(future.isDone());
+        try {
+            future.get();
+            fail("Expected the future to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testEvaluateAsyncFailure() throws PebbleException, InterruptedException {
+        ExecutorService async = Executors.newSingleThreadExecutor();
+        PebbleEngine pebble = new PebbleEngine.Builder().loader(new StringLoader()).strictVariables(true)
+                .asyncExecutor(async).build();
+        PebbleTemplate template = pebble.getTemplate("hello {{ missing }}");
+        try {
+            template.evaluateAsync(Collections.<String, Object>emptyMap()).get();
+            fail("Expected the future to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof PebbleException);
+        }
+        async.shutdown();
+    }
+
+    @Test
+    public void testPublisherRespectsDemand() throws PebbleException, InterruptedException {
+        ExecutorService es = Executors.newCachedThreadPool();
+        PebbleEngine pebble = new PebbleEngine.Builder().loader(new StringLoader()).asyncExecutor(es).build();
+
+        // enough output to span several chunks
+        PebbleTemplate template = pebble.getTemplate("{% for i in range(1, 5000) %}{{ i }},{% endfor %}");
+
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        template.evaluatePublisher(null, null).subscribe(subscriber);
+
+        subscriber.subscription.request(1);
+        assertTrue(subscriber.firstChunk.await(5, TimeUnit.SECONDS));
+
+        // without any further demand no additional chunk must be emitted
+        Thread.sleep(50);
+        assertEquals(1, subscriber.chunks.size());
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertTrue(subscriber.done.await(5, TimeUnit.SECONDS));
+        assertNull(subscriber.error);
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 1; i <= 5000; i++) {
+            expected.append(i).append(',');
+        }
+        StringBuilder actual = new StringBuilder();
+        for (CharBuffer chunk : subscriber.chunks) {
+            actual.append(chunk);
+        }
+        assertEquals(expected.toString(), actual.toString());
+        assertTrue(subscriber.chunks.size() > 1);
+        es.shutdown();
+    }
+
+    @Test
+    public void testPublisherPausesTheEvaluationAtTheHighWaterMark() throws PebbleException, InterruptedException {
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        TestingExtension extension = new TestingExtension();
+        PebbleEngine pebble = new PebbleEngine.Builder().loader(new StringLoader()).extension(extension)
+                .asyncExecutor(es).build();
+        PebbleTemplate template = pebble.getTemplate(
+                "{% for i in range(1, 1000) %}{{ invocationCountingFunction() }},{% endfor %}");
+
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        new RenderPublisher(template, null, null, es, 10, 2).subscribe(subscriber);
+        subscriber.subscription.request(1);
+        assertTrue(subscriber.firstChunk.await(5, TimeUnit.SECONDS));
+
+        // one chunk has been emitted and two are queued, so only a few iterations have been rendered
+        Thread.sleep(50);
+        assertEquals(1, subscriber.chunks.size());
+        assertTrue(extension.getInvocationCountingFunction().getInvocationCount() < 100);
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertTrue(subscriber.done.await(5, TimeUnit.SECONDS));
+        assertNull(subscriber.error);
+        assertEquals(1000, extension.getInvocationCountingFunction().getInvocationCount());
+        es.shutdown();
+    }
+
+    @Test
+    public void testPublisherCancellationResumesAPausedEvaluation() throws PebbleException, InterruptedException,
+            ExecutionException, TimeoutException {
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        PebbleEngine pebble = new PebbleEngine.Builder().loader(new StringLoader()).asyncExecutor(es).build();
+        PebbleTemplate template = pebble.getTemplate("{% for i in range(1, 5000) %}{{ i }},{% endfor %}");
+
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        new RenderPublisher(template, null, null, es, 10, 2).subscribe(subscriber);
+        subscriber.subscription.request(1);
+        assertTrue(subscriber.firstChunk.await(5, TimeUnit.SECONDS));
+
+        // the paused evaluation gives the only thread of the executor back once it is aborted
+        subscriber.subscription.cancel();
+        assertEquals("hello", pebble.getTemplate("hello").evaluateAsync(null).get(5, TimeUnit.SECONDS));
+        es.shutdown();
+    }
+
+    @Test
+    public void testPublisherDoesNotBlockTheExecutorBelowTheHighWaterMark() throws PebbleException,
+            InterruptedException, ExecutionException, TimeoutException {
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        PebbleEngine pebble = new PebbleEngine.Builder().loader(new StringLoader()).asyncExecutor(es).build();
+        PebbleTemplate template = pebble.getTemplate("{% for i in range(1, 5000) %}{{ i }},{% endfor %}");
+
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        template.evaluatePublisher(null, null).subscribe(subscriber);
+        subscriber.subscription.request(1);
+        assertTrue(subscriber.firstChunk.await(5, TimeUnit.SECONDS));
+
+        // the only thread of the executor is available although the subscriber wants no more chunks, since the
+        // rest of the output fits below the high-water mark
+        assertEquals("hello", pebble.getTemplate("hello").evaluateAsync(null).get(5, TimeUnit.SECONDS));
+        assertEquals(1, subscriber.chunks.size());
+
+        subscriber.subscription.cancel();
+        es.shutdown();
+    }
+
+    @Test
+    public void testPublisherWithoutExecutorService() throws PebbleException, InterruptedException {
+        PebbleEngine pebble = new PebbleEngine.Builder().loader(new StringLoader()).build();
+        PebbleTemplate template = pebble.getTemplate("hello");
+
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        template.evaluatePublisher(null, null).subscribe(subscriber);
+        subscriber.subscription.request(1);
+
+        assertTrue(subscriber.done.await(5, TimeUnit.SECONDS));
+        assertTrue(subscriber.error instanceof IllegalStateException);
+    }
+
+    private static class CollectingSubscriber implements Subscriber<CharBuffer> {
+
+        private final List<CharBuffer> chunks = Collections.synchronizedList(new ArrayList<CharBuffer>());
+
+        private final CountDownLatch firstChunk = new CountDownLatch(1);
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile Subscription subscription;
+
+        private volatile Throwable error;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(CharBuffer item) {
+            chunks.add(item);
+            firstChunk.countDown();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            this.error = throwable;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+    }
+}
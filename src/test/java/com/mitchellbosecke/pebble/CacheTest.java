@@ -8,27 +8,65 @@
  ******************************************************************************/
 package com.mitchellbosecke.pebble;
 
+import com.google.common.base.Strings;
+import com.google.common.cache.Weigher;
+import com.mitchellbosecke.pebble.cache.BaseTagCacheKey;
+import com.mitchellbosecke.pebble.cache.CachedFragment;
+import com.mitchellbosecke.pebble.cache.MappedFragmentStore;
+import com.mitchellbosecke.pebble.cache.OffHeapTagCache;
+import com.mitchellbosecke.pebble.cache.TemplateWeigher;
+import com.mitchellbosecke.pebble.cache.TinyLfuCache;
 import com.mitchellbosecke.pebble.error.PebbleException;
+import com.mitchellbosecke.pebble.extension.AbstractExtension;
+import com.mitchellbosecke.pebble.extension.AbstractNodeVisitor;
+import com.mitchellbosecke.pebble.extension.NodeVisitor;
+import com.mitchellbosecke.pebble.extension.NodeVisitorFactory;
+import com.mitchellbosecke.pebble.loader.ClasspathLoader;
+import com.mitchellbosecke.pebble.loader.FileLoader;
+import com.mitchellbosecke.pebble.loader.StringLoader;
 import com.mitchellbosecke.pebble.template.PebbleTemplate;
+import com.mitchellbosecke.pebble.template.PebbleTemplateImpl;
+import com.mitchellbosecke.pebble.template.TemplateHandle;
+import com.mitchellbosecke.pebble.template.TemplateRepository;
+import com.mitchellbosecke.pebble.utils.OutputStreamByteWriter;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.security.SecureRandom;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class CacheTest extends AbstractTest {
 
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
 	public static final String LINE_SEPARATOR = System.lineSeparator();
 	
 	/**
@@ -174,6 +212,509 @@ public class CacheTest extends AbstractTest {
 		assertEquals(0, totalFailed.intValue());
 	}
 
+	/**
+	 * A burst of templates which are only used once must not evict the
+	 * templates which are used all the time.
+	 */
+	@Test
+	public void frequentlyUsedTemplatesSurviveScan() throws PebbleException {
+		TinyLfuCache<Object, PebbleTemplate> cache = new TinyLfuCache<>(16 * 1024, new TemplateWeigher(), 64);
+		PebbleEngine engine = new PebbleEngine.Builder().loader(new StringLoader()).templateCache(cache).build();
+
+		String layout = "{% for i in range(1, 10) %}<div>{{ i }}</div>{% endfor %}";
+		for (int i = 0; i < 20; i++) {
+			engine.getTemplate(layout);
+		}
+		for (int i = 0; i < 500; i++) {
+			engine.getTemplate("one off template " + i + " {{ i }}");
+		}
+
+		assertNotNull(cache.getIfPresent(layout));
+		assertTrue(cache.weightedSize() <= 16 * 1024);
+		assertTrue(cache.stats().evictionCount() > 0);
+		assertTrue(cache.stats().hitCount() >= 19);
+	}
+
+	@Test
+	public void rejectedCandidatesDoNotEvictLessFrequentVictims() {
+		TinyLfuCache<String, Integer> cache = new TinyLfuCache<>(100, new Weigher<String, Integer>() {
+
+			@Override
+			public int weigh(String key, Integer value) {
+				return value;
+			}
+		}, 16);
+
+		// the main space holds a rarely used entry followed by a frequently used one
+		cache.put("rare", 49);
+		cache.put("frequent", 49);
+		for (int i = 0; i < 10; i++) {
+			cache.getIfPresent("frequent");
+		}
+
+		// the candidate is more frequent than the first victim, but not than the second one
+		for (int i = 0; i < 3; i++) {
+			cache.getIfPresent("candidate");
+		}
+		cache.put("candidate", 60);
+
+		assertNull(cache.getIfPresent("candidate"));
+		assertNotNull(cache.getIfPresent("rare"));
+		assertNotNull(cache.getIfPresent("frequent"));
+	}
+
+	@Test
+	public void tinyLfuCacheCanBeUsedAsAMap() throws PebbleException, InterruptedException {
+		final TinyLfuCache<Object, PebbleTemplate> cache = new TinyLfuCache<>(16 * 1024, new TemplateWeigher(), 64);
+		final PebbleEngine engine = new PebbleEngine.Builder().loader(new StringLoader()).templateCache(cache)
+				.build();
+		final PebbleTemplate template = engine.getTemplate("template");
+
+		Map<Object, PebbleTemplate> map = cache.asMap();
+		assertSame(template, map.get("template"));
+		assertEquals(1, map.size());
+		assertNull(map.put("other", template));
+		assertSame(template, map.remove("other"));
+		assertFalse(map.containsKey("other"));
+
+		// concurrent reads are recorded without losing the entry
+		ExecutorService es = Executors.newFixedThreadPool(4);
+		final AtomicInteger misses = new AtomicInteger();
+		for (int i = 0; i < 4; i++) {
+			es.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					for (int j = 0; j < 10000; j++) {
+						if (cache.getIfPresent("template") != template) {
+							misses.incrementAndGet();
+						}
+					}
+				}
+			});
+		}
+		es.shutdown();
+		assertTrue(es.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(0, misses.get());
+
+		map.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.weightedSize());
+	}
+
+	@Test
+	public void dependenciesAreOnlyTrackedForCachedTemplates() throws PebbleException {
+		TinyLfuCache<Object, PebbleTemplate> cache = new TinyLfuCache<>(16 * 1024, new TemplateWeigher(), 64);
+		PebbleEngine engine = new PebbleEngine.Builder().loader(new StringLoader()).templateCache(cache).build();
+
+		engine.getTemplate("no dependencies");
+		assertFalse(engine.getDependencyGraph().contains("no dependencies"));
+
+		for (int i = 0; i < 500; i++) {
+			engine.getTemplate("{% include 'other' %} " + i);
+		}
+
+		// the evicted templates are forgotten
+		assertTrue(cache.stats().evictionCount() > 0);
+		for (int i = 0; i < 500; i++) {
+			String template = "{% include 'other' %} " + i;
+			assertEquals(cache.asMap().containsKey(template), engine.getDependencyGraph().contains(template));
+		}
+
+		PebbleEngine uncached = new PebbleEngine.Builder().loader(new StringLoader()).cacheActive(false).build();
+		uncached.getTemplate("{% include 'other' %}");
+		assertFalse(uncached.getDependencyGraph().contains("{% include 'other' %}"));
+	}
+
+	@Test
+	public void templatesAreWeighedByTheirSize() throws PebbleException {
+		PebbleEngine engine = new PebbleEngine.Builder().loader(new StringLoader()).build();
+		TemplateWeigher weigher = new TemplateWeigher();
+
+		PebbleTemplate small = engine.getTemplate("small");
+		PebbleTemplate large = engine.getTemplate(Strings.repeat("large ", 1000) + "{{ large }}");
+
+		assertTrue(weigher.weigh("large", large) > 10 * weigher.weigh("small", small));
+	}
+
+	@Test
+	public void invalidateEvictsTransitiveDependents() throws PebbleException, IOException {
+		PebbleEngine engine = new PebbleEngine.Builder().loader(new ClasspathLoader()).build();
+
+		// the parent templates are compiled during the evaluation
+		engine.getTemplate("templates/template.child.peb").evaluate(new StringWriter());
+		engine.getTemplate("templates/template.general.peb");
+
+		Set<String> invalidated = engine.invalidate("templates/template.grandfather.peb");
+
+		assertEquals(3, invalidated.size());
+		assertTrue(invalidated.contains("templates/template.parent.peb"));
+		assertTrue(invalidated.contains("templates/template.child.peb"));
+		assertNull(engine.getTemplateCache().getIfPresent("templates/template.grandfather.peb"));
+		assertNull(engine.getTemplateCache().getIfPresent("templates/template.parent.peb"));
+		assertNull(engine.getTemplateCache().getIfPresent("templates/template.child.peb"));
+		assertNotNull(engine.getTemplateCache().getIfPresent("templates/template.general.peb"));
+	}
+
+	@Test
+	public void fragmentsSurviveRestart() throws PebbleException, IOException {
+		File file = temporaryFolder.newFile("fragments.bin");
+		String source = "{% cache 'menu', section %}{{ count }}{% endcache %}";
+
+		Map<String, Object> context = new HashMap<>();
+		context.put("section", "home");
+		context.put("count", 1);
+
+		MappedFragmentStore store = new MappedFragmentStore(file, 64 * 1024, 4);
+		PebbleEngine engine = new PebbleEngine.Builder().loader(new StringLoader()).fragmentStore(store).build();
+		Writer writer = new StringWriter();
+		engine.getTemplate(source).evaluate(writer, context);
+		assertEquals("1", writer.toString());
+		store.close();
+
+		// a new engine starts with an empty tag cache
+		context.put("count", 2);
+		store = new MappedFragmentStore(file, 64 * 1024, 4);
+		engine = new PebbleEngine.Builder().loader(new StringLoader()).fragmentStore(store).build();
+		writer = new StringWriter();
+		engine.getTemplate(source).evaluate(writer, context);
+		assertEquals("1", writer.toString());
+
+		// a modified template does not use the fragments of the previous version
+		writer = new StringWriter();
+		engine.getTemplate(source + " ").evaluate(writer, context);
+		assertEquals("2 ", writer.toString());
+		store.close();
+	}
+
+	@Test
+	public void persistedFragmentsAreVersionedByTheIncludedTemplates() throws PebbleException, IOException {
+		File file = temporaryFolder.newFile("fragments.bin");
+		File directory = temporaryFolder.newFolder("templates");
+		Files.write(new File(directory, "page.peb").toPath(), "{% cache 'menu' %}{% include 'item' %}{% endcache %}"
+				.getBytes("UTF-8"));
+		Files.write(new File(directory, "item.peb").toPath(), "first".getBytes("UTF-8"));
+
+		for (String expected : new String[] { "first", "second" }) {
+			FileLoader loader = new FileLoader();
+			loader.setPrefix(directory.getPath());
+			loader.setSuffix(".peb");
+			MappedFragmentStore store = new MappedFragmentStore(file, 64 * 1024, 4);
+			PebbleEngine engine = new PebbleEngine.Builder().loader(loader).fragmentStore(store).build();
+			Writer writer = new StringWriter();
+			engine.getTemplate("page").evaluate(writer);
+			assertEquals(expected, writer.toString());
+			store.close();
+
+			// the included template is modified while the engine is stopped
+			Files.write(new File(directory, "item.peb").toPath(), "second".getBytes("UTF-8"));
+		}
+	}
+
+	@Test
+	public void dependencyHashIsComputedOncePerGeneration() throws PebbleException, IOException {
+		File directory = temporaryFolder.newFolder("templates");
+		Files.write(new File(directory, "page.peb").toPath(), "{% include 'item' %}".getBytes("UTF-8"));
+		Files.write(new File(directory, "item.peb").toPath(), "first".getBytes("UTF-8"));
+		FileLoader loader = new FileLoader();
+		loader.setPrefix(directory.getPath());
+		loader.setSuffix(".peb");
+		PebbleEngine engine = new PebbleEngine.Builder().loader(loader).build();
+
+		PebbleTemplateImpl page = (PebbleTemplateImpl) engine.getTemplate("page");
+		String hash = page.getDependencyHash();
+		assertNotNull(hash);
+		assertSame(hash, page.getDependencyHash());
+
+		// the hash is computed again once the included template has been invalidated
+		Files.write(new File(directory, "item.peb").toPath(), "second".getBytes("UTF-8"));
+		engine.invalidate("item");
+		assertFalse(hash.equals(page.getDependencyHash()));
+	}
+
+	@Test
+	public void persistedFragmentsOfTagsOnTheSameLineAreDistinct() throws PebbleException, IOException {
+		File file = temporaryFolder.newFile("fragments.bin");
+		String source = "{% cache 'menu' %}{{ first }}{% endcache %}{% cache 'menu' %}{{ second }}{% endcache %}";
+
+		Map<String, Object> context = new HashMap<>();
+		context.put("first", 1);
+		context.put("second", 2);
+
+		MappedFragmentStore store = new MappedFragmentStore(file, 64 * 1024, 4);
+		PebbleEngine engine = new PebbleEngine.Builder().loader(new StringLoader()).fragmentStore(store).build();
+		Writer writer = new StringWriter();
+		engine.getTemplate(source).evaluate(writer, context);
+		assertEquals("12", writer.toString());
+		store.close();
+	}
+
+	@Test
+	public void fragmentStoreEvictsOldestSegment() throws IOException {
+		File file = temporaryFolder.newFile("fragments.bin");
+		MappedFragmentStore store = new MappedFragmentStore(file, 4 * 1024, 4);
+
+		String content = Strings.repeat("x", 500);
+		for (int i = 0; i < 20; i++) {
+			store.put("key" + i, new CachedFragment(content + i));
+		}
+		assertNull(store.get("key0"));
+		assertEquals(content + 19, store.get("key19").getContent());
+		int size = store.size();
+		store.close();
+
+		// the index is rebuilt from the file
+		store = new MappedFragmentStore(file, 4 * 1024, 4);
+		assertEquals(size, store.size());
+		assertNull(store.get("key0"));
+		assertEquals(content + 19, store.get("key19").getContent());
+		store.close();
+	}
+
+	@Test
+	public void offHeapFragmentsAreWrittenWithoutDecoding() throws PebbleException, IOException {
+		OffHeapTagCache tagCache = new OffHeapTagCache(64 * 1024, 16, Charset.forName("UTF-8"));
+		PebbleEngine engine = new PebbleEngine.Builder().loader(new StringLoader()).tagCache(tagCache).build();
+		PebbleTemplate template = engine
+				.getTemplate("<{% cache 'greeting' %}h\u00e9llo {{ name }}, a long greeting{% endcache %}>");
+
+		Map<String, Object> context = new HashMap<>();
+		context.put("name", "w\u00f6rld");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Writer writer = new OutputStreamByteWriter(out, Charset.forName("UTF-8"));
+		template.evaluate(writer, context);
+		writer.flush();
+		assertEquals("<h\u00e9llo w\u00f6rld, a long greeting>", out.toString("UTF-8"));
+		assertEquals(32, tagCache.usedBytes());
+
+		// served from direct memory, to a byte oriented writer and to any other writer
+		context.put("name", "nobody");
+		out.reset();
+		writer = new OutputStreamByteWriter(out, Charset.forName("UTF-8"));
+		template.evaluate(writer, context);
+		writer.flush();
+		assertEquals("<h\u00e9llo w\u00f6rld, a long greeting>", out.toString("UTF-8"));
+
+		Writer stringWriter = new StringWriter();
+		template.evaluate(stringWriter, context);
+		assertEquals("<h\u00e9llo w\u00f6rld, a long greeting>", stringWriter.toString());
+	}
+
+	@Test
+	public void offHeapCacheEvictsLeastRecentlyUsedFragments() {
+		OffHeapTagCache tagCache = new OffHeapTagCache(4 * 1024, 1024, Charset.forName("UTF-8"));
+		String content = Strings.repeat("x", 1500);
+
+		tagCache.put(new TagKey("a"), new CachedFragment(content));
+		tagCache.put(new TagKey("b"), new CachedFragment(content));
+		tagCache.getIfPresent(new TagKey("a"));
+		tagCache.put(new TagKey("c"), new CachedFragment(content));
+
+		assertNull(tagCache.getIfPresent(new TagKey("b")));
+		assertEquals(content, ((CachedFragment) tagCache.getIfPresent(new TagKey("a"))).getContent());
+		assertEquals(content, ((CachedFragment) tagCache.getIfPresent(new TagKey("c"))).getContent());
+		assertEquals(1, tagCache.stats().evictionCount());
+		assertEquals(4 * 1024, tagCache.usedBytes());
+
+		// a fragment larger than the capacity is not cached
+		tagCache.put(new TagKey("d"), new CachedFragment(Strings.repeat("x", 5000)));
+		assertNull(tagCache.getIfPresent(new TagKey("d")));
+
+		tagCache.invalidateAll();
+		assertEquals(0, tagCache.usedBytes());
+	}
+
+	@Test
+	public void literalTargetsAreLinkedUntilInvalidation() throws PebbleException, IOException {
+		PebbleEngine engine = new PebbleEngine.Builder().loader(new ClasspathLoader()).build();
+		PebbleTemplate child = engine.getTemplate("templates/template.child.peb");
+		Writer writer = new StringWriter();
+		child.evaluate(writer);
+		String output = writer.toString();
+
+		// the parent is no longer looked up once it is linked to the child, as long as it is in use
+		PebbleTemplate parent = engine.getTemplate("templates/template.parent.peb");
+		engine.getTemplateCache().invalidate("templates/template.parent.peb");
+		writer = new StringWriter();
+		child.evaluate(writer);
+		assertEquals(output, writer.toString());
+		assertNull(engine.getTemplateCache().getIfPresent("templates/template.parent.peb"));
+
+		long generation = engine.getGeneration();
+		engine.invalidate("templates/template.parent.peb");
+		assertTrue(engine.getGeneration() > generation);
+		writer = new StringWriter();
+		child.evaluate(writer);
+		assertEquals(output, writer.toString());
+		assertNotNull(engine.getTemplateCache().getIfPresent("templates/template.parent.peb"));
+		assertNotNull(parent);
+	}
+
+	@Test
+	public void linksDoNotRetainEvictedTemplates() throws PebbleException, IOException {
+		PebbleEngine engine = new PebbleEngine.Builder().loader(new ClasspathLoader()).build();
+		PebbleTemplate child = engine.getTemplate("templates/template.child.peb");
+		Writer writer = new StringWriter();
+		child.evaluate(writer);
+		String output = writer.toString();
+
+		WeakReference<PebbleTemplate> parent = new WeakReference<>(engine.getTemplateCache().getIfPresent(
+				"templates/template.parent.peb"));
+		assertNotNull(parent.get());
+		engine.getTemplateCache().invalidate("templates/template.parent.peb");
+		for (int i = 0; i < 10 && parent.get() != null; i++) {
+			System.gc();
+		}
+		assertNull(parent.get());
+
+		// the evicted parent is looked up and cached again
+		writer = new StringWriter();
+		child.evaluate(writer);
+		assertEquals(output, writer.toString());
+		assertNotNull(engine.getTemplateCache().getIfPresent("templates/template.parent.peb"));
+	}
+
+	@Test
+	public void handlesPinTheTemplateUntilInvalidation() throws PebbleException, IOException {
+		File directory = temporaryFolder.newFolder("templates");
+		File file = new File(directory, "page.peb");
+		Files.write(file.toPath(), "first".getBytes("UTF-8"));
+		FileLoader loader = new FileLoader();
+		loader.setPrefix(directory.getPath());
+		loader.setSuffix(".peb");
+		PebbleEngine engine = new PebbleEngine.Builder().loader(loader).build();
+
+		TemplateHandle handle = engine.handle("page");
+		assertEquals("page", handle.getName());
+		assertEquals("first", render(handle));
+
+		// the pinned template is evaluated without looking it up
+		engine.getTemplateCache().invalidate("page");
+		assertEquals("first", render(handle));
+		assertNull(engine.getTemplateCache().getIfPresent("page"));
+
+		Files.write(file.toPath(), "second".getBytes("UTF-8"));
+		engine.invalidate("page");
+		assertEquals("second", render(handle));
+		assertSame(engine.getTemplate("page"), handle.getTemplate());
+	}
+
+	@Test
+	public void templatesWithIdenticalContentShareTheirAst() throws PebbleException, IOException {
+		File directory = temporaryFolder.newFolder("templates");
+		for (String brand : new String[] { "first", "second" }) {
+			File folder = new File(directory, brand);
+			assertTrue(folder.mkdir());
+			Files.write(new File(folder, "page.peb").toPath(), "<{% include './part' %}>".getBytes("UTF-8"));
+			Files.write(new File(folder, "part.peb").toPath(), brand.getBytes("UTF-8"));
+		}
+
+		final AtomicInteger parsed = new AtomicInteger();
+		FileLoader loader = new FileLoader();
+		loader.setPrefix(directory.getPath());
+		loader.setSuffix(".peb");
+		PebbleEngine engine = new PebbleEngine.Builder().loader(loader).extension(new AbstractExtension() {
+
+			@Override
+			public List<NodeVisitorFactory> getNodeVisitors() {
+				return Collections.<NodeVisitorFactory> singletonList(new NodeVisitorFactory() {
+
+					@Override
+					public NodeVisitor createVisitor(PebbleTemplate template) {
+						parsed.incrementAndGet();
+						return new AbstractNodeVisitor((PebbleTemplateImpl) template);
+					}
+				});
+			}
+		}).build();
+
+		PebbleTemplate first = engine.getTemplate("first/page");
+		PebbleTemplate second = engine.getTemplate("second/page");
+		assertEquals(1, parsed.get());
+
+		// relative names are resolved against the name of each template
+		Writer writer = new StringWriter();
+		first.evaluate(writer);
+		assertEquals("<first>", writer.toString());
+		writer = new StringWriter();
+		second.evaluate(writer);
+		assertEquals("<second>", writer.toString());
+		assertEquals(3, parsed.get());
+	}
+
+	@Test
+	public void enginesSharingARepositoryShareTheirAsts() throws PebbleException, IOException {
+		TemplateRepository repository = new TemplateRepository();
+		AtomicInteger parsed = new AtomicInteger();
+		PebbleEngine english = new PebbleEngine.Builder().loader(new StringLoader()).templateRepository(repository)
+				.extension(new GreetingExtension("hello", parsed)).build();
+		PebbleEngine french = new PebbleEngine.Builder().loader(new StringLoader()).templateRepository(repository)
+				.extension(new GreetingExtension("bonjour", parsed)).defaultLocale(Locale.FRENCH).build();
+
+		PebbleTemplate first = english.getTemplate("{{ greeting }} {{ 1.5 | numberformat('0.0') }}");
+		PebbleTemplate second = french.getTemplate("{{ greeting }} {{ 1.5 | numberformat('0.0') }}");
+		assertEquals(1, parsed.get());
+		assertEquals(1, repository.size());
+
+		// the globals and the locale are those of the engine rendering the template
+		Writer writer = new StringWriter();
+		first.evaluate(writer);
+		assertEquals("hello 1.5", writer.toString());
+		writer = new StringWriter();
+		second.evaluate(writer);
+		assertEquals("bonjour 1,5", writer.toString());
+	}
+
+	private static String render(PebbleTemplate template) throws PebbleException, IOException {
+		Writer writer = new StringWriter();
+		template.evaluate(writer);
+		return writer.toString();
+	}
+
+	private static class GreetingExtension extends AbstractExtension {
+
+		private final String greeting;
+
+		private final AtomicInteger parsed;
+
+		private GreetingExtension(String greeting, AtomicInteger parsed) {
+			this.greeting = greeting;
+			this.parsed = parsed;
+		}
+
+		@Override
+		public Map<String, Object> getGlobalVariables() {
+			return Collections.<String, Object> singletonMap("greeting", greeting);
+		}
+
+		@Override
+		public List<NodeVisitorFactory> getNodeVisitors() {
+			return Collections.<NodeVisitorFactory> singletonList(new CountingVisitorFactory(parsed));
+		}
+	}
+
+	private static class CountingVisitorFactory implements NodeVisitorFactory {
+
+		private final AtomicInteger parsed;
+
+		private CountingVisitorFactory(AtomicInteger parsed) {
+			this.parsed = parsed;
+		}
+
+		@Override
+		public NodeVisitor createVisitor(PebbleTemplate template) {
+			parsed.incrementAndGet();
+			return new AbstractNodeVisitor((PebbleTemplateImpl) template);
+		}
+	}
+
+	private static class TagKey extends BaseTagCacheKey {
+
+		public TagKey(String name) {
+			super(name);
+		}
+	}
+
 	static Random r = new SecureRandom();
 
 	public static class TestObject {
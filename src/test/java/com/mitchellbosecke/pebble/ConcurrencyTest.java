@@ -20,6 +20,7 @@ import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.security.SecureRandom;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
@@ -422,4 +423,50 @@ public class ConcurrencyTest extends AbstractTest {
         assertEquals("Expection the result of multiple threads and single thread execution to match.",
             singleThreadResult.toString(), multipleThreadResult.toString());
     }
+
+    @Test
+    public void testConcurrentCompilationOfSameTemplateIsSingleFlight() throws InterruptedException {
+        final AtomicInteger loads = new AtomicInteger();
+        StringLoader loader = new StringLoader() {
+
+            @Override
+            public Reader getReader(String templateName) throws LoaderException {
+                loads.incrementAndGet();
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getReader(templateName);
+            }
+        };
+        final PebbleEngine engine = new PebbleEngine.Builder().loader(loader).build();
+
+        ExecutorService es = Executors.newFixedThreadPool(10);
+        final AtomicInteger totalFailed = new AtomicInteger();
+        final Semaphore semaphore = new Semaphore(10);
+        for (int i = 0; i < 10; i++) {
+            semaphore.acquire();
+            es.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        engine.getTemplate("{% include 'other' %}hello");
+                    } catch (PebbleException e) {
+                        totalFailed.incrementAndGet();
+                    } finally {
+                        semaphore.release();
+                    }
+                }
+            });
+        }
+        semaphore.acquire(10);
+        es.shutdown();
+
+        assertEquals(0, totalFailed.intValue());
+        assertEquals(1, loads.intValue());
+        assertEquals(Collections.singleton("other"),
+                engine.getDependencyGraph().getDependencies("{% include 'other' %}hello"));
+    }
 }
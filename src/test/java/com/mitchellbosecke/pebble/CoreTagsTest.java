@@ -11,19 +11,31 @@
 package com.mitchellbosecke.pebble;
 
 import com.mitchellbosecke.pebble.error.PebbleException;
+import com.mitchellbosecke.pebble.extension.AbstractExtension;
+import com.mitchellbosecke.pebble.extension.Filter;
 import com.mitchellbosecke.pebble.extension.InvocationCountingFunction;
+import com.mitchellbosecke.pebble.extension.Pure;
 import com.mitchellbosecke.pebble.extension.TestingExtension;
 import com.mitchellbosecke.pebble.loader.StringLoader;
 import com.mitchellbosecke.pebble.template.PebbleTemplate;
+import com.mitchellbosecke.pebble.template.PebbleTemplateImpl;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class CoreTagsTest extends AbstractTest {
 
@@ -474,6 +486,93 @@ public class CoreTagsTest extends AbstractTest {
         assertEquals(1, function.getInvocationCount());
     }
 
+    @Test
+    public void testPureMacroIsMemoized() throws PebbleException, IOException {
+        final AtomicInteger invocations = new AtomicInteger();
+        PebbleEngine pebble = new PebbleEngine.Builder().loader(new StringLoader()).extension(new AbstractExtension() {
+
+            @Override
+            public Map<String, Filter> getFilters() {
+                Map<String, Filter> filters = new HashMap<>();
+                filters.put("counted", new CountingFilter(invocations));
+                return filters;
+            }
+        }).build();
+
+        PebbleTemplate template = pebble.getTemplate("{{ badge('new') }}{{ badge('new') }}{{ badge('old', 'x') }}"
+                + "{% macro badge(label, suffix='') %}<b>{{ label | counted }}{{ suffix }}</b>{% endmacro %}");
+
+        Writer writer = new StringWriter();
+        template.evaluate(writer);
+        assertEquals("<b>new</b><b>new</b><b>oldx</b>", writer.toString());
+        assertEquals(2, invocations.get());
+
+        writer = new StringWriter();
+        template.evaluate(writer);
+        assertEquals("<b>new</b><b>new</b><b>oldx</b>", writer.toString());
+        assertEquals(2, invocations.get());
+
+        // the output is keyed by the content of the template, not by the compiled template
+        pebble.getTemplateCache().invalidateAll();
+        writer = new StringWriter();
+        pebble.getTemplate("{{ badge('new') }}{% macro badge(label, suffix='') %}<b>{{ label | counted }}"
+                + "{{ suffix }}</b>{% endmacro %}").evaluate(writer);
+        assertEquals("<b>new</b>", writer.toString());
+        assertEquals(3, invocations.get());
+        writer = new StringWriter();
+        pebble.getTemplate(template.getName()).evaluate(writer);
+        assertEquals("<b>new</b><b>new</b><b>oldx</b>", writer.toString());
+        assertEquals(3, invocations.get());
+    }
+
+    @Test
+    public void testImpureMacroIsNotMemoized() throws PebbleException, IOException {
+        TestingExtension extension = new TestingExtension();
+        PebbleEngine pebble = new PebbleEngine.Builder().loader(new StringLoader()).extension(extension).build();
+
+        PebbleTemplate template = pebble.getTemplate("{{ test('a') }}{{ test('a') }}"
+                + "{% macro test(label) %}{{ label }}{{ invocationCountingFunction() }}{% endmacro %}");
+
+        Writer writer = new StringWriter();
+        template.evaluate(writer);
+        assertEquals("a1a2", writer.toString());
+        assertEquals(2, extension.getInvocationCountingFunction().getInvocationCount());
+    }
+
+    @Test
+    public void testPureMacroWithMutableArgumentIsNotMemoized() throws PebbleException, IOException {
+        PebbleEngine pebble = new PebbleEngine.Builder().loader(new StringLoader()).build();
+
+        PebbleTemplate template = pebble.getTemplate("{{ test(items) }}{% set items = [1, 2, 3] %}{{ test(items) }}"
+                + "{% macro test(items) %}{{ items | length }}{% endmacro %}");
+
+        Writer writer = new StringWriter();
+        Map<String, Object> context = new HashMap<>();
+        context.put("items", new ArrayList<>(Arrays.asList(1, 2)));
+        template.evaluate(writer, context);
+        assertEquals("23", writer.toString());
+    }
+
+    private static class CountingFilter implements Filter, Pure {
+
+        private final AtomicInteger invocations;
+
+        public CountingFilter(AtomicInteger invocations) {
+            this.invocations = invocations;
+        }
+
+        @Override
+        public List<String> getArgumentNames() {
+            return null;
+        }
+
+        @Override
+        public Object apply(Object input, Map<String, Object> args) {
+            invocations.incrementAndGet();
+            return input;
+        }
+    }
+
     @Test
     public void testMacroInvocationWithoutAllArguments() throws PebbleException, IOException {
         PebbleEngine pebble = new PebbleEngine.Builder().loader(new StringLoader()).strictVariables(false).build();
@@ -566,6 +665,108 @@ public class CoreTagsTest extends AbstractTest {
         assertEquals("true", writer.toString());
     }
 
+    @Test
+    public void testCacheWithKeyList() throws PebbleException, IOException {
+        PebbleEngine pebble = new PebbleEngine.Builder().loader(new StringLoader()).strictVariables(false).build();
+
+        String source = "{% cache 'product', id, user %}{{ id }}-{{ user }}-{{ count }}{% endcache %}";
+        PebbleTemplate template = pebble.getTemplate(source);
+
+        Map<String, Object> context = new HashMap<>();
+        context.put("id", 1);
+        context.put("user", "alice");
+        context.put("count", 1);
+        Writer writer = new StringWriter();
+        template.evaluate(writer, context);
+        assertEquals("1-alice-1", writer.toString());
+
+        // a different key is rendered separately
+        context.put("user", "bob");
+        context.put("count", 2);
+        writer = new StringWriter();
+        template.evaluate(writer, context);
+        assertEquals("1-bob-2", writer.toString());
+
+        // the same key is served from the cache
+        context.put("user", "alice");
+        context.put("count", 3);
+        writer = new StringWriter();
+        template.evaluate(writer, context);
+        assertEquals("1-alice-1", writer.toString());
+    }
+
+    @Test
+    public void testCacheWithTimeToLive() throws PebbleException, IOException, InterruptedException {
+        PebbleEngine pebble = new PebbleEngine.Builder().loader(new StringLoader()).strictVariables(false).build();
+
+        String source = "{% cache 'test' ttl 0.05 %}{{ count }}{% endcache %}";
+        PebbleTemplate template = pebble.getTemplate(source);
+
+        Map<String, Object> context = new HashMap<>();
+        context.put("count", 1);
+        Writer writer = new StringWriter();
+        template.evaluate(writer, context);
+        assertEquals("1", writer.toString());
+
+        context.put("count", 2);
+        writer = new StringWriter();
+        template.evaluate(writer, context);
+        assertEquals("1", writer.toString());
+
+        // the fragment has expired
+        Thread.sleep(100);
+        writer = new StringWriter();
+        template.evaluate(writer, context);
+        assertEquals("2", writer.toString());
+    }
+
+    @Test(timeout = 5000)
+    public void testCacheServesStaleFragmentWhileRefreshing() throws PebbleException, IOException,
+            InterruptedException {
+        PebbleEngine pebble = new PebbleEngine.Builder().loader(new StringLoader()).strictVariables(false)
+                .executorService(Executors.newCachedThreadPool()).build();
+
+        String source = "{% cache 'test' ttl 0.05 stale 60 %}{{ count }}{% endcache %}";
+        PebbleTemplate template = pebble.getTemplate(source);
+
+        Map<String, Object> context = new HashMap<>();
+        context.put("count", 1);
+        Writer writer = new StringWriter();
+        template.evaluate(writer, context);
+        assertEquals("1", writer.toString());
+
+        // the expired fragment is served while it is rendered again
+        Thread.sleep(100);
+        context.put("count", 2);
+        writer = new StringWriter();
+        template.evaluate(writer, context);
+        assertEquals("1", writer.toString());
+
+        String result;
+        do {
+            Thread.sleep(10);
+            writer = new StringWriter();
+            template.evaluate(writer, context);
+            result = writer.toString();
+        } while (result.equals("1"));
+        assertEquals("2", result);
+    }
+
+    @Test
+    public void testCacheWithNamespace() throws PebbleException, IOException {
+        PebbleEngine pebble = new PebbleEngine.Builder().loader(new StringLoader()).strictVariables(false).build();
+
+        String source = "{% cache 'a' namespace 'shared' %}first{% endcache %}"
+                + "{% cache 'a' namespace 'shared' %}second{% endcache %}"
+                + "{% cache 'a' namespace 'other' ttl 60 %}third{% endcache %}"
+                + "{% cache 'a' %}fourth{% endcache %}";
+        PebbleTemplate template = pebble.getTemplate(source);
+
+        Writer writer = new StringWriter();
+        template.evaluate(writer);
+        assertEquals("firstfirstthirdfourth", writer.toString());
+    }
+
     @Test(expected = PebbleException.class)
     public void testCacheWithNoName() throws PebbleException, IOException {
         PebbleEngine pebble = new PebbleEngine.Builder().loader(new StringLoader()).strictVariables(false).build();
@@ -788,6 +989,20 @@ public class CoreTagsTest extends AbstractTest {
         assertEquals("success", writer.toString());
     }
 
+    @Test
+    public void testIncludeOfStaticTemplate() throws PebbleException, IOException {
+        PebbleEngine pebble = new PebbleEngine.Builder().loader(new StringLoader()).build();
+        PebbleTemplate template = pebble.getTemplate("<{% include '<svg/>' %}{% include '{{ name }}' %}>");
+
+        Writer writer = new StringWriter();
+        template.evaluate(writer, Collections.<String, Object>singletonMap("name", "Bob"));
+        assertEquals("<<svg/>Bob>", writer.toString());
+
+        PebbleTemplateImpl included = (PebbleTemplateImpl) pebble.getTemplate("<svg/>");
+        assertEquals("<svg/>", new String(included.getStaticContent()));
+        assertNull(((PebbleTemplateImpl) pebble.getTemplate("{{ name }}")).getStaticContent());
+    }
+
     @Test
     public void testIncludeWithinBlock() throws PebbleException, IOException {
         PebbleEngine pebble = new PebbleEngine.Builder().strictVariables(false).build();
@@ -971,6 +1186,68 @@ public class CoreTagsTest extends AbstractTest {
         assertEquals("first" + LINE_SEPARATOR + "TEMPLATE1" + LINE_SEPARATOR + "first", writer.toString());
     }
 
+    @Test(timeout = 300)
+    public void testIsolatedIncludesAreEvaluatedConcurrently() throws PebbleException, IOException {
+
+        PebbleEngine pebble = new PebbleEngine.Builder().strictVariables(true)
+                .executorService(Executors.newCachedThreadPool()).parallelIncludes(true).build();
+
+        PebbleTemplate template = pebble.getTemplate("templates/template.parallelIsolatedInclude1.peb");
+
+        Writer writer = new StringWriter();
+        Map<String, Object> context = new HashMap<>();
+        context.put("slowObject", new SlowObject());
+        template.evaluate(writer, context);
+        assertEquals("first first", writer.toString());
+    }
+
+    @Test
+    public void testIncludeWithSideEffectsIsNotIsolated() throws PebbleException {
+        PebbleEngine pebble = new PebbleEngine.Builder().build();
+
+        assertTrue(((PebbleTemplateImpl) pebble.getTemplate("templates/template.parallelIsolatedInclude1.peb"))
+                .isIsolated());
+        assertFalse(((PebbleTemplateImpl) pebble.getTemplate("templates/template.parallelIsolatedInclude3.peb"))
+                .isIsolated());
+        assertFalse(((PebbleTemplateImpl) pebble.getTemplate("templates/template.parallelIsolatedInclude4.peb"))
+                .isIsolated());
+        assertFalse(((PebbleTemplateImpl) pebble.getTemplate("templates/template.parallelWithImport.peb"))
+                .isIsolated());
+    }
+
+    @Test(timeout = 1000)
+    public void testParallelIsCancelledWhenDeadlinePasses() throws PebbleException, IOException,
+            InterruptedException {
+        PebbleEngine pebble = new PebbleEngine.Builder().loader(new StringLoader())
+                .executorService(Executors.newCachedThreadPool()).build();
+        PebbleTemplate template = pebble.getTemplate("beginning {% parallel %}{{ blockingObject.block }}{% endparallel %}");
+
+        BlockingObject blockingObject = new BlockingObject();
+        Map<String, Object> context = new HashMap<>();
+        context.put("blockingObject", blockingObject);
+
+        Writer writer = new StringWriter();
+        try {
+            template.evaluate(writer, context, null, 50, TimeUnit.MILLISECONDS);
+            fail("Expected the deadline to pass");
+        } catch (InterruptedIOException e) {
+            // expected
+        }
+        assertEquals("beginning ", writer.toString());
+        assertTrue(blockingObject.interrupted.await(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testParallelWithinDeadline() throws PebbleException, IOException {
+        PebbleEngine pebble = new PebbleEngine.Builder().loader(new StringLoader())
+                .executorService(Executors.newCachedThreadPool()).build();
+        PebbleTemplate template = pebble.getTemplate("beginning {% parallel %}{{ 'middle' }}{% endparallel %} end");
+
+        Writer writer = new StringWriter();
+        template.evaluate(writer, null, null, 5, TimeUnit.SECONDS);
+        assertEquals("beginning middle end", writer.toString());
+    }
+
     @Test
     public void testParallelWithoutExecutorService() throws PebbleException, IOException {
 
@@ -1048,6 +1325,20 @@ public class CoreTagsTest extends AbstractTest {
         }
     }
 
+    public class BlockingObject {
+
+        private final CountDownLatch interrupted = new CountDownLatch(1);
+
+        public String block() {
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+            return "block";
+        }
+    }
+
     public class User {
 
         private final String username;
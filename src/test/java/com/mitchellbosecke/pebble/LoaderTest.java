@@ -12,20 +12,35 @@ import com.mitchellbosecke.pebble.error.LoaderException;
 import com.mitchellbosecke.pebble.error.PebbleException;
 import com.mitchellbosecke.pebble.loader.*;
 import com.mitchellbosecke.pebble.template.PebbleTemplate;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.*;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class LoaderTest extends AbstractTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Test
     public void testClassLoaderLoader() throws PebbleException, IOException {
         Loader<?> loader = new ClasspathLoader();
@@ -67,6 +82,205 @@ public class LoaderTest extends AbstractTest {
 
     }
 
+    @Test
+    public void testClassLoaderLoaderWithIndex() throws PebbleException, IOException {
+        File root = temporaryFolder.newFolder("classpath");
+        File directory = new File(root, "templates/nested");
+        assertTrue(directory.mkdirs());
+        write(new File(directory, "template.peb"), "INDEXED");
+        ClasspathLoader.writeIndex(new File(root, "templates"));
+
+        ClasspathLoader loader = new ClasspathLoader(new URLClassLoader(new URL[] { root.toURI().toURL() }, null));
+        loader.setPrefix("templates");
+        loader.setSuffix(".peb");
+        loader.setIndexed(true);
+        PebbleEngine engine = new PebbleEngine.Builder().loader(loader).build();
+        assertEquals("INDEXED", render(engine.getTemplate("nested/template")));
+
+        // a template missing from the index files is looked up through the classloader
+        write(new File(directory, "added.peb"), "ADDED");
+        assertEquals("ADDED", render(engine.getTemplate("nested/added")));
+        try {
+            engine.getTemplate("nested/missing");
+            fail("Expected a LoaderException");
+        } catch (LoaderException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testClassLoaderLoaderWithIndexFindsTemplatesOfJarsWithoutIndex() throws PebbleException,
+            IOException {
+        File root = temporaryFolder.newFolder("classpath");
+        File directory = new File(root, "templates");
+        assertTrue(directory.mkdirs());
+        write(new File(directory, "template.peb"), "INDEXED");
+        ClasspathLoader.writeIndex(directory);
+
+        URL jar = this.getClass().getResource("/templateinjar.jar");
+        ClasspathLoader loader = new ClasspathLoader(new URLClassLoader(new URL[] { root.toURI().toURL(), jar },
+                null));
+        loader.setPrefix("templates");
+        loader.setSuffix(".peb");
+        loader.setIndexed(true);
+        PebbleEngine engine = new PebbleEngine.Builder().loader(loader).strictVariables(false).build();
+        assertEquals("INDEXED", render(engine.getTemplate("template")));
+        assertEquals("SUCCESS", render(engine.getTemplate("loader/template.loaderTest")));
+    }
+
+    @Test
+    public void testClassLoaderLoaderScansJarsWithoutIndex() throws PebbleException, IOException {
+        URL resource = this.getClass().getResource("/templateinjar.jar");
+        ClasspathLoader loader = new ClasspathLoader(new URLClassLoader(new URL[] { resource }, null));
+        loader.setPrefix("templates");
+        loader.setSuffix(".peb");
+        loader.setIndexed(true);
+        PebbleEngine engine = new PebbleEngine.Builder().loader(loader).strictVariables(false).build();
+        assertEquals("SUCCESS", render(engine.getTemplate("loader/template.loaderTest")));
+    }
+
+    @Test(timeout = 30000)
+    public void testFileLoaderReloadsChangedTemplates() throws PebbleException, IOException, InterruptedException {
+        File directory = temporaryFolder.newFolder("templates");
+        File nested = new File(directory, "nested");
+        assertTrue(nested.mkdir());
+        File file = new File(nested, "template.peb");
+        write(file, "first");
+
+        FileLoader loader = new FileLoader();
+        loader.setPrefix(directory.getPath());
+        loader.setSuffix(".peb");
+        loader.setWatchChanges(true);
+        PebbleEngine engine = new PebbleEngine.Builder().loader(loader).build();
+
+        PebbleTemplate first = engine.getTemplate("nested/template");
+        assertEquals("first", render(first));
+
+        write(file, "second");
+
+        // the previously compiled template is served until the new one is ready; the file may be reloaded
+        // while it is being written, and then again once it has been written
+        PebbleTemplate current = engine.getTemplate("nested/template");
+        while (current == first || !"second".equals(render(current))) {
+            Thread.sleep(20);
+            current = engine.getTemplate("nested/template");
+        }
+        assertNotSame(first, current);
+        loader.stopWatching();
+    }
+
+    @Test
+    public void testEnginesDoNotListenToLoadersWhichDoNotWatch() {
+        final List<TemplateChangeListener> listeners = new ArrayList<>();
+        FileLoader loader = new FileLoader() {
+
+            @Override
+            public synchronized void addChangeListener(TemplateChangeListener listener) {
+                listeners.add(listener);
+                super.addChangeListener(listener);
+            }
+        };
+        new PebbleEngine.Builder().loader(loader).build();
+        new PebbleEngine.Builder().loader(new DelegatingLoader(new ArrayList<Loader<?>>(Collections.singletonList(
+                loader)))).build();
+        assertTrue(listeners.isEmpty());
+
+        loader.setWatchChanges(true);
+        new PebbleEngine.Builder().loader(loader).build();
+        assertEquals(1, listeners.size());
+        loader.stopWatching();
+    }
+
+    @Test
+    public void testReloaderIsClosedOnceEveryLoaderStopsWatching() {
+        FileLoader first = new FileLoader();
+        first.setWatchChanges(true);
+        FileLoader second = new FileLoader();
+        second.setWatchChanges(true);
+        List<Loader<?>> loaders = new ArrayList<>();
+        loaders.add(first);
+        loaders.add(second);
+        DelegatingLoader loader = new DelegatingLoader(loaders);
+
+        TemplateReloader reloader = new TemplateReloader(null);
+        loader.addChangeListener(reloader);
+        first.stopWatching();
+        assertFalse(reloader.isClosed());
+        second.stopWatching();
+        assertTrue(reloader.isClosed());
+
+        // a closed reloader ignores changes
+        reloader.templateChanged("template");
+    }
+
+    @Test
+    public void testEngineRevalidatesChangedTemplates() throws PebbleException, IOException {
+        File directory = temporaryFolder.newFolder("templates");
+        File base = new File(directory, "base.peb");
+        write(base, "[{% block content %}{% endblock %}]");
+        write(new File(directory, "child.peb"), "{% extends 'base' %}{% block content %}child{% endblock %}");
+
+        FileLoader loader = new FileLoader();
+        loader.setPrefix(directory.getPath());
+        loader.setSuffix(".peb");
+        PebbleEngine engine = new PebbleEngine.Builder().loader(loader).revalidationInterval(0, TimeUnit.SECONDS)
+                .build();
+
+        PebbleTemplate child = engine.getTemplate("child");
+        assertEquals("[child]", render(child));
+        assertSame(child, engine.getTemplate("child"));
+
+        write(base, "({% block content %}{% endblock %})");
+        assertTrue(base.setLastModified(base.lastModified() - 10000));
+
+        // the changed template is compiled again, which evicts the templates depending on it
+        assertEquals("(child)", render(engine.getTemplate("child")));
+        assertNotSame(child, engine.getTemplate("child"));
+    }
+
+    @Test
+    public void testEngineRevalidatesTemplatesChangedWhileRead() throws PebbleException, IOException {
+        EditedWhileReadLoader loader = new EditedWhileReadLoader();
+        PebbleEngine engine = new PebbleEngine.Builder().loader(loader).revalidationInterval(0, TimeUnit.SECONDS)
+                .build();
+
+        assertEquals("version 1", render(engine.getTemplate("template")));
+
+        // the edit made right after the first version was read is noticed
+        assertEquals("version 2", render(engine.getTemplate("template")));
+    }
+
+    @Test
+    public void testDelegatingLoaderSkipsChildrenWithoutMetadata() throws IOException, LoaderException {
+        File directory = temporaryFolder.newFolder("templates");
+        File file = new File(directory, "template.peb");
+        write(file, "content");
+
+        FileLoader fileLoader = new FileLoader();
+        fileLoader.setPrefix(directory.getPath());
+        fileLoader.setSuffix(".peb");
+        List<Loader<?>> loaders = new ArrayList<>();
+        loaders.add(new NoMetadataLoader());
+        loaders.add(fileLoader);
+        DelegatingLoader loader = new DelegatingLoader(loaders);
+
+        TemplateMetadata metadata = loader.getMetadata(loader.createCacheKey("template"));
+        assertNotNull(metadata);
+        assertEquals(file.lastModified(), metadata.getLastModified());
+    }
+
+    private static void write(File file, String content) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+            writer.write(content);
+        }
+    }
+
+    private static String render(PebbleTemplate template) throws PebbleException, IOException {
+        Writer writer = new StringWriter();
+        template.evaluate(writer);
+        return writer.toString();
+    }
+
     @Test
     public void testFileLoader() throws PebbleException, IOException, URISyntaxException {
         Loader<?> loader = new FileLoader();
@@ -80,6 +294,32 @@ public class LoaderTest extends AbstractTest {
 
     }
 
+    @Test
+    public void testArchiveLoader() throws PebbleException, IOException {
+        File directory = temporaryFolder.newFolder("templates");
+        File nested = new File(directory, "nested");
+        assertTrue(nested.mkdir());
+        write(new File(directory, "base.peb"), "[{% block content %}{% endblock %}]");
+        write(new File(nested, "page.peb"), "{% extends '../base' %}{% block content %}caf\u00e9{% endblock %}");
+
+        File archive = temporaryFolder.newFile("templates.pba");
+        new ArchivePacker().addDirectory(directory).write(archive);
+
+        ArchiveLoader loader = new ArchiveLoader(archive);
+        loader.setSuffix(".peb");
+        PebbleEngine engine = new PebbleEngine.Builder().loader(loader).build();
+        assertEquals("[caf\u00e9]", render(engine.getTemplate("nested/page")));
+
+        assertEquals(2, loader.getPaths().size());
+        assertNotNull(loader.getHash("base"));
+        try {
+            engine.getTemplate("missing");
+            fail("Expected a LoaderException");
+        } catch (LoaderException e) {
+            // expected
+        }
+    }
+
     @Test
     public void testDelegatingLoader() throws PebbleException, IOException {
         List<Loader<?>> loaders = new ArrayList<>();
@@ -96,6 +336,159 @@ public class LoaderTest extends AbstractTest {
         assertEquals("LOADER ONE", writer.toString());
     }
 
+    @Test
+    public void testFileLoaderDecodesLargeTemplates() throws PebbleException, IOException {
+        File folder = temporaryFolder.newFolder("templates");
+        StringBuilder content = new StringBuilder();
+        while (content.length() < 100000) {
+            content.append("h\u00e9llo w\u00f6rld \ud83d\ude00\n");
+        }
+        String large = content.toString();
+        Files.write(new File(folder, "large.peb").toPath(), (large + "{{ name }}").getBytes("UTF-8"));
+        Files.write(new File(folder, "small.peb").toPath(), "\u00e9{{ name }} ".getBytes("UTF-8"));
+
+        FileLoader loader = new FileLoader();
+        loader.setPrefix(folder.getAbsolutePath());
+        loader.setSuffix(".peb");
+        PebbleEngine engine = new PebbleEngine.Builder().loader(loader).build();
+        Map<String, Object> context = new HashMap<>();
+        context.put("name", "Bob");
+
+        Writer writer = new StringWriter();
+        engine.getTemplate("large").evaluate(writer, context);
+        assertEquals(large + "Bob", writer.toString());
+
+        writer = new StringWriter();
+        engine.getTemplate("small").evaluate(writer, context);
+        assertEquals("\u00e9Bob ", writer.toString());
+    }
+
+    @Test
+    public void testFileLoadersOfDifferentCharsetsDecodeOnTheSameThread() throws PebbleException, IOException {
+        File folder = temporaryFolder.newFolder("templates");
+        Files.write(new File(folder, "template.peb").toPath(), "\u00e9".getBytes("UTF-8"));
+
+        for (String charset : new String[] { "UTF-8", "ISO-8859-1", "UTF-8" }) {
+            FileLoader loader = new FileLoader();
+            loader.setPrefix(folder.getAbsolutePath());
+            loader.setSuffix(".peb");
+            loader.setCharset(charset);
+            PebbleEngine engine = new PebbleEngine.Builder().loader(loader).build();
+
+            Writer writer = new StringWriter();
+            engine.getTemplate("template").evaluate(writer);
+            assertEquals(new String("\u00e9".getBytes("UTF-8"), charset), writer.toString());
+        }
+    }
+
+    @Test
+    public void testDelegatingLoaderRemembersResolutions() throws LoaderException {
+        CountingLoader first = new CountingLoader("a");
+        CountingLoader second = new CountingLoader("b");
+        List<Loader<?>> loaders = new ArrayList<>();
+        loaders.add(first);
+        loaders.add(second);
+        DelegatingLoader loader = new DelegatingLoader(loaders);
+
+        assertSame(loader.createCacheKey("b"), loader.createCacheKey("b"));
+
+        loader.getReader(loader.createCacheKey("b"));
+        loader.getReader(loader.createCacheKey("b"));
+        assertEquals(1, first.lookups);
+        assertEquals(2, second.lookups);
+
+        // missing templates are remembered until invalidated
+        for (int i = 0; i < 2; i++) {
+            try {
+                loader.getReader(loader.createCacheKey("c"));
+                fail("expected a LoaderException");
+            } catch (LoaderException e) {
+                // expected
+            }
+        }
+        assertEquals(2, first.lookups);
+        assertEquals(3, second.lookups);
+
+        second.names.add("c");
+        loader.invalidate("c");
+        loader.getReader(loader.createCacheKey("c"));
+        assertEquals(4, second.lookups);
+    }
+
+    /**
+     * Finds the templates with the given names and counts the lookups
+     */
+    private class CountingLoader extends StringLoader {
+
+        private final List<String> names = new ArrayList<>();
+
+        private int lookups = 0;
+
+        public CountingLoader(String name) {
+            names.add(name);
+        }
+
+        @Override
+        public Reader getReader(String templateName) throws LoaderException {
+            lookups++;
+            if (!names.contains(templateName)) {
+                throw new LoaderException(null, "Could not find template " + templateName);
+            }
+            return new StringReader(templateName);
+        }
+    }
+
+    /**
+     * Changes the template right after each time it is read
+     */
+    private class EditedWhileReadLoader extends StringLoader {
+
+        private int version = 1;
+
+        @Override
+        public Reader getReader(String templateName) {
+            return new StringReader("version " + version++);
+        }
+
+        @Override
+        public TemplateMetadata getMetadata(String templateName) {
+            return new TemplateMetadata(version, TemplateMetadata.UNKNOWN, null);
+        }
+    }
+
+    /**
+     * Finds no template and provides no metadata
+     */
+    private class NoMetadataLoader implements Loader<String> {
+
+        @Override
+        public Reader getReader(String templateName) throws LoaderException {
+            throw new LoaderException(null, "Could not find template " + templateName);
+        }
+
+        @Override
+        public void setCharset(String charset) {
+        }
+
+        @Override
+        public void setPrefix(String prefix) {
+        }
+
+        @Override
+        public void setSuffix(String suffix) {
+        }
+
+        @Override
+        public String resolveRelativePath(String relativePath, String anchorPath) {
+            return null;
+        }
+
+        @Override
+        public String createCacheKey(String templateName) {
+            return templateName;
+        }
+    }
+
     /**
      * Always fail to find a template
      *
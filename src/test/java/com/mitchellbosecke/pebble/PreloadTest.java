@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * This file is part of Pebble.
+ *
+ * Copyright (c) 2014 by Mitchell Bösecke
+ *
+ * For the full copyright and license information, please view the LICENSE
+ * file that was distributed with this source code.
+ ******************************************************************************/
+package com.mitchellbosecke.pebble;
+
+import com.mitchellbosecke.pebble.error.LoaderException;
+import com.mitchellbosecke.pebble.error.PebbleException;
+import com.mitchellbosecke.pebble.loader.BulkLoader;
+import com.mitchellbosecke.pebble.loader.ClasspathLoader;
+import com.mitchellbosecke.pebble.loader.Loader;
+import com.mitchellbosecke.pebble.template.PebbleTemplate;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class PreloadTest extends AbstractTest {
+
+    @Test
+    public void testPreloadCompilesTransitiveDependencies() throws InterruptedException, ExecutionException {
+        ExecutorService es = Executors.newFixedThreadPool(4);
+        PebbleEngine pebble = new PebbleEngine.Builder().loader(new ClasspathLoader()).build();
+
+        PreloadReport report = pebble.preload(Arrays.asList("templates/template.child.peb"), es).get();
+
+        assertEquals(3, report.getCompilationTimes().size());
+        assertTrue(report.getCompilationTimes().containsKey("templates/template.child.peb"));
+        assertTrue(report.getCompilationTimes().containsKey("templates/template.parent.peb"));
+        assertTrue(report.getCompilationTimes().containsKey("templates/template.grandfather.peb"));
+        assertNotNull(pebble.getTemplateCache().getIfPresent("templates/template.grandfather.peb"));
+        assertTrue(!report.hasFailures());
+        es.shutdown();
+    }
+
+    @Test
+    public void testCompilationPrefetchesReferencedTemplates() throws PebbleException, InterruptedException {
+        ExecutorService es = Executors.newFixedThreadPool(2);
+        PebbleEngine pebble = new PebbleEngine.Builder().loader(new ClasspathLoader()).prefetchExecutor(es).build();
+
+        pebble.getTemplate("templates/template.child.peb");
+
+        // the grandfather is only prefetched once the parent has been compiled
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pebble.getTemplateCache().getIfPresent("templates/template.grandfather.peb") == null
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNotNull(pebble.getTemplateCache().getIfPresent("templates/template.parent.peb"));
+        assertNotNull(pebble.getTemplateCache().getIfPresent("templates/template.grandfather.peb"));
+        es.shutdown();
+    }
+
+    @Test
+    public void testCompilationFetchesReferencedTemplatesInOneBatch() throws PebbleException, IOException {
+        Map<String, String> templates = new HashMap<>();
+        templates.put("child", "{% extends 'parent' %}{% block content %}{% include 'header' %}"
+                + "{% include 'footer' %}{% endblock %}");
+        templates.put("parent", "<{% block content %}{% endblock %}>");
+        templates.put("header", "H");
+        templates.put("footer", "F");
+        CountingBulkLoader loader = new CountingBulkLoader(templates);
+        PebbleEngine pebble = new PebbleEngine.Builder().loader(loader).build();
+
+        PebbleTemplate template = pebble.getTemplate("child");
+        Writer writer = new StringWriter();
+        template.evaluate(writer);
+
+        assertEquals("<HF>", writer.toString());
+        assertEquals(1, loader.singleFetches);
+        assertEquals(1, loader.bulkFetches);
+    }
+
+    @Test
+    public void testPreloadReportsFailures() throws InterruptedException, ExecutionException {
+        ExecutorService es = Executors.newFixedThreadPool(4);
+        PebbleEngine pebble = new PebbleEngine.Builder().loader(new ClasspathLoader()).build();
+
+        PreloadReport report = pebble.preload(
+                Arrays.asList("templates/template.include1.peb", "templates/nonexisting.peb"), es).get();
+
+        assertEquals(2, report.getCompilationTimes().size());
+        assertEquals(1, report.getFailures().size());
+        assertTrue(report.getFailures().get("templates/nonexisting.peb") instanceof LoaderException);
+        es.shutdown();
+    }
+
+    private static class CountingBulkLoader implements Loader<String>, BulkLoader<String> {
+
+        private final Map<String, String> templates;
+
+        private int singleFetches = 0;
+
+        private int bulkFetches = 0;
+
+        public CountingBulkLoader(Map<String, String> templates) {
+            this.templates = templates;
+        }
+
+        @Override
+        public Reader getReader(String templateName) throws LoaderException {
+            singleFetches++;
+            if (!templates.containsKey(templateName)) {
+                throw new LoaderException(null, "Could not find template \"" + templateName + "\"");
+            }
+            return new StringReader(templates.get(templateName));
+        }
+
+        @Override
+        public Map<String, Reader> getReaders(Collection<String> templateNames) {
+            bulkFetches++;
+            Map<String, Reader> readers = new HashMap<>();
+            for (String templateName : templateNames) {
+                if (templates.containsKey(templateName)) {
+                    readers.put(templateName, new StringReader(templates.get(templateName)));
+                }
+            }
+            return readers;
+        }
+
+        @Override
+        public void setCharset(String charset) {
+        }
+
+        @Override
+        public void setPrefix(String prefix) {
+        }
+
+        @Override
+        public void setSuffix(String suffix) {
+        }
+
+        @Override
+        public String resolveRelativePath(String relativePath, String anchorPath) {
+            return null;
+        }
+
+        @Override
+        public String createCacheKey(String templateName) {
+            return templateName;
+        }
+    }
+}